@@ -0,0 +1,104 @@
+package bench;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import common.LatencyHistogram;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Mini harnais de micro-benchmarks (warmup + mesure à durée fixe).
+ * Chaque résultat est ajouté en JSON (une ligne) au fichier bench.out
+ * pour pouvoir comparer les runs et détecter les régressions.
+ */
+public final class Bench {
+    public interface Op {
+        /** @return nombre d'octets traités par l'opération (0 si non pertinent) */
+        long run() throws Exception;
+    }
+
+    private static final Gson gson = new Gson();
+    private static final long WARMUP_MS = Long.getLong("bench.warmupMs", 2000);
+    private static final long MEASURE_MS = Long.getLong("bench.measureMs", 5000);
+    private static final String OUT = System.getProperty("bench.out", "bench-results.jsonl");
+
+    private static volatile long sink;
+
+    private Bench() {}
+
+    /** Empêche le JIT d'éliminer un résultat non utilisé ; retourne 0 octet. */
+    public static long consume(long value) {
+        sink ^= value;
+        return 0;
+    }
+
+    public static Map<String, Object> params(Object... kv) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < kv.length; i += 2) m.put(String.valueOf(kv[i]), kv[i + 1]);
+        return m;
+    }
+
+    public static JsonObject run(String name, Map<String, Object> params, Op op) throws Exception {
+        long end = System.nanoTime() + WARMUP_MS * 1_000_000L;
+        while (System.nanoTime() < end) op.run();
+
+        LatencyHistogram h = new LatencyHistogram();
+        long ops = 0, bytes = 0;
+        long cpuStart = processCpuNanos();
+        long start = System.nanoTime();
+        end = start + MEASURE_MS * 1_000_000L;
+        long now = start;
+        while (now < end) {
+            bytes += op.run();
+            long t = System.nanoTime();
+            h.recordNanos(t - now);
+            now = t;
+            ops++;
+        }
+        double seconds = (now - start) / 1e9;
+        long cpu = processCpuNanos() - cpuStart;
+
+        JsonObject res = new JsonObject();
+        res.addProperty("benchmark", name);
+        res.add("params", gson.toJsonTree(params));
+        res.addProperty("timestamp", System.currentTimeMillis());
+        res.addProperty("ops", ops);
+        res.addProperty("ops_per_sec", ops / seconds);
+        res.addProperty("ns_per_op", (now - start) / (double) ops);
+        res.addProperty("p50_us", h.percentileMicros(50));
+        res.addProperty("p99_us", h.percentileMicros(99));
+        if (bytes > 0) res.addProperty("mb_per_sec", bytes / seconds / (1024.0 * 1024.0));
+        if (cpuStart >= 0 && cpu > 0) {
+            res.addProperty("cpu_cores", cpu / 1e9 / seconds);
+            // débit par cœur : octets traités par seconde de CPU du processus (client et slaves compris)
+            if (bytes > 0) res.addProperty("mb_per_cpu_sec", bytes / (cpu / 1e9) / (1024.0 * 1024.0));
+        }
+        report(res);
+        return res;
+    }
+
+    // -1 si la JVM n'expose pas le temps CPU du processus
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof com.sun.management.OperatingSystemMXBean
+                ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+    }
+
+    static synchronized void report(JsonObject res) throws IOException {
+        System.out.printf("%-40s %-40s %14.1f ops/s %12.0f ns/op%s%n",
+                res.get("benchmark").getAsString(),
+                res.get("params").toString(),
+                res.get("ops_per_sec").getAsDouble(),
+                res.get("ns_per_op").getAsDouble(),
+                (res.has("mb_per_sec") ? String.format(" %10.1f MB/s", res.get("mb_per_sec").getAsDouble()) : "")
+                        + (res.has("mb_per_cpu_sec") ? String.format(" %10.1f MB/s/cœur", res.get("mb_per_cpu_sec").getAsDouble()) : ""));
+        try (PrintWriter pw = new PrintWriter(new FileWriter(OUT, true))) {
+            pw.println(gson.toJson(res));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package bench;
+
+import client.ClientSocket;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import common.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Générateur de charge de bout en bout : démarre un master et N slaves sur loopback,
+ * puis des clients concurrents exécutent un mélange d'uploads, downloads, LIST
+ * et lectures de plage via ClientSocket.
+ *
+ * Usage: java -cp out:lib/gson-2.10.1.jar bench.ClusterLoadGenerator
+ *            [slaves=3] [clients=8] [duration=30] [mix=upload:25,download:45,list:10,range:20]
+ *            [sizes=4K,256K,4M] [rangeSize=64K] [out=load-report.json]
+ */
+public class ClusterLoadGenerator {
+    private static final String[] OPS = {"upload", "download", "list", "range"};
+
+    private final Map<String, LatencyHistogram> latencies = new HashMap<>();
+    private final Map<String, LongAdder> bytes = new HashMap<>();
+    private final Map<String, LongAdder> errors = new HashMap<>();
+    private final List<Stored> stored = new CopyOnWriteArrayList<>();
+
+    private final int[] weights = new int[OPS.length];
+    private final long[] sizes;
+    private final int rangeSize;
+    private final List<File> sources = new ArrayList<>();
+
+    private static class Stored {
+        final String fileId;
+        final long size;
+        Stored(String fileId, long size) { this.fileId = fileId; this.size = size; }
+    }
+
+    ClusterLoadGenerator(String mix, long[] sizes, int rangeSize) {
+        this.sizes = sizes;
+        this.rangeSize = rangeSize;
+        for (String op : OPS) {
+            latencies.put(op, new LatencyHistogram());
+            bytes.put(op, new LongAdder());
+            errors.put(op, new LongAdder());
+        }
+        for (String part : mix.split(",")) {
+            String[] kv = part.split(":");
+            int idx = Arrays.asList(OPS).indexOf(kv[0].trim());
+            if (idx < 0) throw new IllegalArgumentException("Opération inconnue: " + kv[0]);
+            weights[idx] = Integer.parseInt(kv[1].trim());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> conf = new HashMap<>();
+        for (String a : args) {
+            String[] kv = a.split("=", 2);
+            if (kv.length == 2) conf.put(kv[0], kv[1]);
+        }
+        int slaveCount = Integer.parseInt(conf.getOrDefault("slaves", "3"));
+        int clients = Integer.parseInt(conf.getOrDefault("clients", "8"));
+        int duration = Integer.parseInt(conf.getOrDefault("duration", "30"));
+        String mix = conf.getOrDefault("mix", "upload:25,download:45,list:10,range:20");
+        long[] sizes = Arrays.stream(conf.getOrDefault("sizes", "4K,256K,4M").split(","))
+                .mapToLong(ClusterLoadGenerator::parseSize).toArray();
+        int rangeSize = (int) parseSize(conf.getOrDefault("rangeSize", "64K"));
+        String out = conf.getOrDefault("out", "load-report.json");
+
+        LocalCluster cluster = LocalCluster.start(slaveCount);
+        ClusterLoadGenerator gen = new ClusterLoadGenerator(mix, sizes, rangeSize);
+        gen.prepare(cluster);
+        JsonObject report = gen.run(cluster, clients, duration);
+        report.addProperty("slaves", slaveCount);
+        report.addProperty("clients", clients);
+        report.addProperty("mix", mix);
+
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        try (Writer w = new FileWriter(out)) {
+            gson.toJson(report, w);
+        }
+        System.out.println(gson.toJson(report));
+        System.exit(0);
+    }
+
+    // un fichier source par taille + un fichier stocké par taille pour que les lectures aient une cible
+    void prepare(LocalCluster cluster) throws IOException {
+        File dir = Files.createTempDirectory("load-").toFile();
+        ClientSocket client = cluster.client();
+        Random rnd = new Random(42);
+        for (long size : sizes) {
+            File f = new File(dir, "src-" + size + ".bin");
+            byte[] data = new byte[(int) size];
+            rnd.nextBytes(data);
+            Files.write(f.toPath(), data);
+            sources.add(f);
+            stored.add(new Stored(client.uploadFile(f), size));
+        }
+    }
+
+    JsonObject run(LocalCluster cluster, int clients, int durationSeconds) throws Exception {
+        long deadline = System.nanoTime() + durationSeconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            ClientSocket client = cluster.client();
+            File dest = Files.createTempFile("load-dl-", ".bin").toFile();
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < deadline) runOne(client, dest);
+                dest.delete();
+            }, "load-client-" + i);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) t.join();
+        return report((System.nanoTime() - start) / 1e9);
+    }
+
+    private void runOne(ClientSocket client, File dest) {
+        String op = pick();
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long t0 = System.nanoTime();
+        try {
+            long n = 0;
+            switch (op) {
+                case "upload": {
+                    File f = sources.get(rnd.nextInt(sources.size()));
+                    stored.add(new Stored(client.uploadFile(f), f.length()));
+                    n = f.length();
+                    break;
+                }
+                case "download": {
+                    Stored s = stored.get(rnd.nextInt(stored.size()));
+                    client.downloadFile(s.fileId, dest.getPath());
+                    n = s.size;
+                    break;
+                }
+                case "list":
+                    client.listFiles();
+                    break;
+                case "range": {
+                    Stored s = stored.get(rnd.nextInt(stored.size()));
+                    long offset = s.size > rangeSize ? rnd.nextLong(s.size - rangeSize) : 0;
+                    n = client.readRange(s.fileId, offset, rangeSize).length;
+                    break;
+                }
+            }
+            latencies.get(op).recordNanos(System.nanoTime() - t0);
+            bytes.get(op).add(n);
+        } catch (IOException e) {
+            errors.get(op).increment();
+        }
+    }
+
+    private String pick() {
+        int total = 0;
+        for (int w : weights) total += w;
+        int r = ThreadLocalRandom.current().nextInt(total);
+        for (int i = 0; i < OPS.length; i++) {
+            r -= weights[i];
+            if (r < 0) return OPS[i];
+        }
+        return OPS[0];
+    }
+
+    private JsonObject report(double seconds) {
+        JsonObject root = new JsonObject();
+        root.addProperty("duration_s", seconds);
+        long totalOps = 0, totalBytes = 0;
+        JsonObject ops = new JsonObject();
+        for (String op : OPS) {
+            LatencyHistogram h = latencies.get(op);
+            if (h.count() == 0 && errors.get(op).sum() == 0) continue;
+            JsonObject o = new JsonObject();
+            o.addProperty("ops", h.count());
+            o.addProperty("errors", errors.get(op).sum());
+            o.addProperty("ops_per_sec", h.count() / seconds);
+            o.addProperty("mb_per_sec", bytes.get(op).sum() / seconds / (1024.0 * 1024.0));
+            o.addProperty("p50_ms", h.percentileMicros(50) / 1000.0);
+            o.addProperty("p90_ms", h.percentileMicros(90) / 1000.0);
+            o.addProperty("p99_ms", h.percentileMicros(99) / 1000.0);
+            o.addProperty("p999_ms", h.percentileMicros(99.9) / 1000.0);
+            o.addProperty("max_ms", h.maxMicros() / 1000.0);
+            ops.add(op, o);
+            totalOps += h.count();
+            totalBytes += bytes.get(op).sum();
+        }
+        root.addProperty("ops_per_sec", totalOps / seconds);
+        root.addProperty("mb_per_sec", totalBytes / seconds / (1024.0 * 1024.0));
+        root.add("operations", ops);
+        return root;
+    }
+
+    static long parseSize(String s) {
+        s = s.trim().toUpperCase();
+        long mult = 1;
+        if (s.endsWith("K")) mult = 1024;
+        else if (s.endsWith("M")) mult = 1024 * 1024;
+        else if (s.endsWith("G")) mult = 1024L * 1024 * 1024;
+        if (mult > 1) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * mult;
+    }
+}
@@ -0,0 +1,195 @@
+package bench;
+
+import client.ClientSocket;
+import server.FileCatalogue;
+import server.MainServer;
+import slaves.FragmentCommitter;
+import slaves.Slave;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmarks des chemins chauds du master et des slaves.
+ *
+ * Usage: java -cp out:lib/gson-2.10.1.jar bench.HotPathBenchmarks [filtre]
+ * Propriétés: bench.warmupMs, bench.measureMs, bench.out, bench.maxRows (défaut 10^6, max 10^7).
+ */
+public class HotPathBenchmarks {
+    private static final int FRAGMENT_SIZE = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        String filter = args.length >= 1 ? args[0] : "";
+        LocalCluster cluster = LocalCluster.start(1);
+
+        if (selected(filter, "csv")) benchSplitCsvLine();
+        if (selected(filter, "header")) benchHeaderParsing();
+        if (selected(filter, "catalogue")) benchReadFragmentMappings();
+        if (selected(filter, "store")) benchStockerFragment(cluster);
+        if (selected(filter, "storepath")) benchCheminStockage(cluster);
+        if (selected(filter, "relay")) benchRelay(cluster);
+        if (selected(filter, "durability")) benchDurabilite(cluster);
+        System.exit(0);
+    }
+
+    private static boolean selected(String filter, String name) {
+        return filter.isEmpty() || filter.equals(name);
+    }
+
+    static void benchSplitCsvLine() throws Exception {
+        String simple = "0f8fad5b-d9cb-469f-a165-70867728950e,12,3,192.168.1.20,5003,1048576";
+        String quoted = "0f8fad5b-d9cb-469f-a165-70867728950e,\"rapport, final \"\"v2\"\".pdf\",5242880,5,2026-02-17T10:00:00Z";
+        Bench.run("FileCatalogue.splitCsvLine", Bench.params("line", "simple"), () -> Bench.consume(FileCatalogue.splitCsvLine(simple).length));
+        Bench.run("FileCatalogue.splitCsvLine", Bench.params("line", "quoted"), () -> Bench.consume(FileCatalogue.splitCsvLine(quoted).length));
+    }
+
+    static void benchHeaderParsing() throws Exception {
+        byte[] header = ("{\"type\":\"STORE_FRAGMENT\",\"data\":{\"file_id\":\"0f8fad5b-d9cb-469f-a165-70867728950e\","
+                + "\"fragment_id\":42,\"length\":1048576}}\n").getBytes(StandardCharsets.UTF_8);
+        Bench.run("MainServer.readJsonLine", Bench.params("bytes", header.length),
+                () -> MainServer.readJsonLine(new ByteArrayInputStream(header)).length() > 0 ? header.length : 0);
+        Bench.run("Slave.lireLigneJSON", Bench.params("bytes", header.length),
+                () -> Slave.lireLigneJSON(new ByteArrayInputStream(header)).length() > 0 ? header.length : 0);
+    }
+
+    static void benchReadFragmentMappings() throws Exception {
+        long maxRows = Long.getLong("bench.maxRows", 1_000_000L);
+        for (long rows = 10_000; rows <= Math.min(maxRows, 10_000_000L); rows *= 10) {
+            new File(FileCatalogue.SNAPSHOT_FILE).delete();
+            String target = writeFragmentsCsv(rows);
+            final long n = rows;
+            // démarrage sans snapshot : tout le journal est rejoué
+            Bench.run("FileCatalogue.reload", Bench.params("rows", n, "snapshot", false),
+                    () -> Bench.consume(FileCatalogue.reload()));
+            FileCatalogue.compact();
+            Bench.run("FileCatalogue.reload", Bench.params("rows", n, "snapshot", true),
+                    () -> Bench.consume(FileCatalogue.reload()));
+            Bench.run("FileCatalogue.readFragmentMappings", Bench.params("rows", n),
+                    () -> Bench.consume(FileCatalogue.readFragmentMappings(target).size()));
+        }
+        // remet un catalogue vide pour le benchmark de relais
+        new File(FileCatalogue.FRAGMENTS_CSV).delete();
+        new File(FileCatalogue.SNAPSHOT_FILE).delete();
+        FileCatalogue.ensureLogsDir();
+        FileCatalogue.reload();
+    }
+
+    // fragments de fichiers de 8 fragments, l'identifiant cherché est au milieu du fichier
+    private static String writeFragmentsCsv(long rows) throws IOException {
+        String target = null;
+        try (BufferedWriter bw = Files.newBufferedWriter(new File(FileCatalogue.FRAGMENTS_CSV).toPath())) {
+            bw.write("fileId,fragmentIndex,slaveId,slaveHost,slavePort,fragmentSize\n");
+            String fileId = null;
+            for (long i = 0; i < rows; i++) {
+                if (i % 8 == 0) fileId = UUID.randomUUID().toString();
+                if (i == rows / 2) target = fileId;
+                bw.write(fileId + "," + (i % 8) + "," + (i % 4) + ",127.0.0.1," + (5001 + i % 4) + "," + FRAGMENT_SIZE + "\n");
+            }
+        }
+        return target;
+    }
+
+    static void benchStockerFragment(LocalCluster cluster) throws Exception {
+        Slave slave = cluster.getSlaves().get(0);
+        int port = slave.getListenPort();
+        byte[] payload = new byte[FRAGMENT_SIZE];
+        new Random(1).nextBytes(payload);
+        for (int size : new int[]{4096, 8192, 65536, 262144, 1048576}) {
+            slave.setTailleBuffer(size);
+            Bench.run("Slave.stockerFragment", Bench.params("bufferSize", size, "fragmentSize", FRAGMENT_SIZE),
+                    () -> storeFragment(port, "bench-store", 0, payload));
+        }
+        slave.setTailleBuffer(8192);
+    }
+
+    // avant/après la réception par canal : ancien flux (tampon de 8 Ko sur le tas) contre canal + tampon direct
+    static void benchCheminStockage(LocalCluster cluster) throws Exception {
+        Slave slave = cluster.getSlaves().get(0);
+        int port = slave.getListenPort();
+        for (int size : new int[]{65536, FRAGMENT_SIZE, 8 * FRAGMENT_SIZE}) {
+            byte[] payload = new byte[size];
+            new Random(size).nextBytes(payload);
+            for (boolean sha256 : new boolean[]{false, true}) {
+                slave.setHacherAuStockage(sha256);
+                for (boolean canal : new boolean[]{false, true}) {
+                    slave.setCopieDirecte(canal);
+                    Bench.run("Slave.stockerFragment", Bench.params("path", canal ? "channel" : "stream",
+                            "sha256", sha256, "fragmentSize", size), () -> storeFragment(port, "bench-path", 0, payload));
+                }
+            }
+        }
+        slave.setCopieDirecte(true);
+        slave.setHacherAuStockage(true);
+    }
+
+    // une opération = `threads` fragments stockés en parallèle, chacun sur sa connexion
+    static void benchDurabilite(LocalCluster cluster) throws Exception {
+        Slave slave = cluster.getSlaves().get(0);
+        int port = slave.getListenPort();
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        for (int size : new int[]{65536, FRAGMENT_SIZE}) {
+            byte[] payload = new byte[size];
+            new Random(size).nextBytes(payload);
+            for (FragmentCommitter.Mode mode : FragmentCommitter.Mode.values()) {
+                slave.setDurabilite(mode);
+                for (int threads : new int[]{1, 8}) {
+                    final int n = threads;
+                    Bench.run("Slave.durability", Bench.params("mode", mode.name().toLowerCase(), "threads", n, "fragmentSize", size), () -> {
+                        List<Future<Long>> acks = new ArrayList<>();
+                        for (int i = 0; i < n; i++) {
+                            final int frag = i;
+                            acks.add(pool.submit(() -> storeFragment(port, "bench-durability", frag, payload)));
+                        }
+                        long total = 0;
+                        for (Future<Long> f : acks) total += f.get();
+                        return total;
+                    });
+                }
+            }
+        }
+        slave.setDurabilite(FragmentCommitter.Mode.NONE);
+        pool.shutdown();
+    }
+
+    static long storeFragment(int port, String fileId, int fragmentId, byte[] payload) throws Exception {
+        try (Socket s = new Socket("localhost", port)) {
+            OutputStream out = s.getOutputStream();
+            String header = "{\"type\":\"STORE_FRAGMENT\",\"data\":{\"file_id\":\"" + fileId + "\",\"fragment_id\":"
+                    + fragmentId + ",\"length\":" + payload.length + "}}\n";
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            out.write(payload);
+            out.flush();
+            String ack = MainServer.readJsonLine(s.getInputStream());
+            if (ack == null || !ack.contains("\"OK\"")) throw new IOException("STORE refusé: " + ack);
+        }
+        return payload.length;
+    }
+
+    static void benchRelay(LocalCluster cluster) throws Exception {
+        ClientSocket client = cluster.client();
+        File dir = Files.createTempDirectory("relay-").toFile();
+        for (int mb : new int[]{1, 8}) {
+            File f = new File(dir, "relay-" + mb + ".bin");
+            byte[] data = new byte[mb * FRAGMENT_SIZE];
+            new Random(mb).nextBytes(data);
+            Files.write(f.toPath(), data);
+            String fileId = client.uploadFile(f);
+            File dest = new File(dir, "relay-" + mb + ".out");
+            Bench.run("relay.upload", Bench.params("sizeMB", mb), () -> {
+                client.uploadFile(f);
+                return f.length();
+            });
+            Bench.run("relay.download", Bench.params("sizeMB", mb), () -> {
+                client.downloadFile(fileId, dest.getPath());
+                return dest.length();
+            });
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package bench;
+
+import client.ClientSocket;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import server.MainServer;
+import slaves.Slave;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Master + N slaves dans le même processus, sur loopback, avec un catalogue
+ * isolé dans un dossier temporaire. Utilisé par les benchmarks et le
+ * générateur de charge.
+ */
+public class LocalCluster {
+    private final File root;
+    private final int masterPort;
+    private final List<Slave> slaves = new ArrayList<>();
+
+    private LocalCluster(File root, int masterPort) {
+        this.root = root;
+        this.masterPort = masterPort;
+    }
+
+    /** Doit être appelé avant tout accès à FileCatalogue (catalogue.dir est lu une seule fois). */
+    public static LocalCluster start(int slaveCount) throws Exception {
+        File root = Files.createTempDirectory("cluster-").toFile();
+        System.setProperty("catalogue.dir", new File(root, "logs").getPath());
+
+        int masterPort = freePort();
+        LocalCluster cluster = new LocalCluster(root, masterPort);
+        daemon("master", () -> {
+            try {
+                MainServer.start(masterPort);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        ClientSocket probe = new ClientSocket("localhost", masterPort);
+        while (!probe.testConnection()) Thread.sleep(50);
+
+        for (int i = 1; i <= slaveCount; i++) cluster.addSlave(i);
+        cluster.awaitSlaves(slaveCount);
+        return cluster;
+    }
+
+    public Slave addSlave(int id) throws IOException {
+        int port = freePort();
+        Slave s = new Slave(String.valueOf(id), "localhost", masterPort, port,
+                new File(root, "slave" + id + "_storage").getPath());
+        slaves.add(s);
+        daemon("slave-" + id, s::demarrer);
+        return s;
+    }
+
+    public void awaitSlaves(int count) throws Exception {
+        ClientSocket c = client();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            JsonObject stats = JsonParser.parseString(c.getStats()).getAsJsonObject();
+            if (stats.getAsJsonObject("gauges").get("slaves_registered").getAsLong() >= count) return;
+            Thread.sleep(50);
+        }
+        throw new IOException("Slaves non enregistrés après 10s");
+    }
+
+    public ClientSocket client() {
+        return new ClientSocket("localhost", masterPort);
+    }
+
+    public int getMasterPort() {
+        return masterPort;
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    public List<Slave> getSlaves() {
+        return slaves;
+    }
+
+    public static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void daemon(String name, Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -5,22 +5,97 @@ package client;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import common.Log;
+import common.Tracer;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 public class ClientSocket {
     private final String masterHost;
     private final int masterPort;
     private static final int BUFFER_SIZE = 1024 * 1024;
+    // fragments envoyés en parallèle par un upload direct
+    private static final int DIRECT_WORKERS = Integer.getInteger("client.directWorkers", 8);
     private final Gson gson = new Gson();
+    // réplica du catalogue pour LIST / FRAGMENTS (optionnel, le master sert de repli)
+    private String replicaHost;
+    private int replicaPort;
+    // cache disque des fragments (optionnel) : les fichiers sont immuables, un fileId déjà lu est servi localement
+    private FragmentCache cache;
+    // spans des opérations client, écrits dans client.traceFile si la propriété est fournie
+    private static final Tracer tracer = new Tracer("client");
+    private static final Log log = Log.get("client");
+
+    static {
+        String traceFile = System.getProperty("client.traceFile");
+        if (traceFile != null) tracer.startDumping(Paths.get(traceFile), Long.getLong("trace.dumpSec", 10L));
+    }
 
-
+    /**
+     * Progression d'un transfert. En upload en masse, onProgress reçoit le total agrégé et les
+     * méthodes par fichier sont appelées depuis les threads d'envoi (l'implémentation doit être thread-safe).
+     */
     public interface ProgressListener {
         void onProgress(long bytesTransferred, long totalBytes);
+
+        default void onFileProgress(File file, long bytesTransferred, long totalBytes) {}
+
+        /** fileId null et error renseignée si l'envoi du fichier a échoué. */
+        default void onFileComplete(File file, String fileId, IOException error) {}
+    }
+
+    /** Résultat d'un upload en masse : un fileId (ou une erreur) par fichier, dans l'ordre demandé. */
+    public static class UploadManifest {
+        public static class Entry {
+            private final String path;
+            private final long size;
+            private String fileId;
+            private String error;
+
+            Entry(String path, long size) {
+                this.path = path;
+                this.size = size;
+            }
+
+            public String getPath() { return path; }
+            public long getSize() { return size; }
+            public String getFileId() { return fileId; }
+            public String getError() { return error; }
+            public boolean isOk() { return fileId != null; }
+        }
+
+        private final List<Entry> entries;
+
+        UploadManifest(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        public List<Entry> getEntries() { return Collections.unmodifiableList(entries); }
+
+        public long failedCount() {
+            return entries.stream().filter(e -> !e.isOk()).count();
+        }
+
+        /** Écrit le manifeste en JSON (chemin, taille, fileId, erreur). */
+        public void save(File file) throws IOException {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                new Gson().toJson(entries, w);
+            }
+        }
     }
 
 
@@ -63,6 +138,32 @@ public class ClientSocket {
         this.masterPort = masterPort;
     }
 
+    /** Envoie les lectures de métadonnées à un réplica ; les écritures restent sur le master. */
+    public void setReadReplica(String host, int port) {
+        this.replicaHost = host;
+        this.replicaPort = port;
+    }
+
+    /** Active le cache local des téléchargements ; null le désactive. */
+    public void setCache(FragmentCache cache) {
+        this.cache = cache;
+    }
+
+    public FragmentCache getCache() {
+        return cache;
+    }
+
+    /** Spans des opérations de ce processus (dump() pour les écrire au format Chrome trace). */
+    public static Tracer getTracer() {
+        return tracer;
+    }
+
+    // trace de l'opération : celle du thread si l'appel est imbriqué (repli RELAY, cache), sinon une nouvelle
+    private static String openTrace() {
+        String trace = Tracer.current();
+        return trace != null ? trace : Tracer.newTraceId();
+    }
+
     // ======================== UPLOAD ========================
 
 
@@ -71,56 +172,353 @@ public class ClientSocket {
             throw new FileNotFoundException("Fichier introuvable: " + file.getAbsolutePath());
         }
 
+        String outer = Tracer.current();
+        String trace = openTrace();
+        Tracer.setCurrent(trace);
+        long start = System.nanoTime();
         try (Socket socket = new Socket(masterHost, masterPort)) {
             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
             DataInputStream in = new DataInputStream(socket.getInputStream());
 
-            // 1. Envoyer la commande UPLOAD
+            // 1. Envoyer la commande UPLOAD (mode FLOW : envoi contrôlé par les crédits du master)
             PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
-            pw.println("UPLOAD");
+            pw.println("TRACE " + trace);
+            pw.println("UPLOAD FLOW");
             pw.flush();
 
-            // 2. Envoyer le nom et la taille du fichier
+            String fileId = sendFile(in, out, file, file.getName(), listener);
+            log.info("Upload réussi", "file", file.getName(), "fileId", fileId);
+            return fileId;
+        } finally {
+            tracer.span("client.upload", trace, start, "file", file.getName(), "bytes", String.valueOf(file.length()));
+            Tracer.setCurrent(outer);
+        }
+    }
+
+    /**
+     * Upload direct : le master fournit le plan (slaves et jeton d'écriture par fragment), les
+     * fragments partent en parallèle vers les slaves, puis les accusés signés sont rapportés au
+     * master qui inscrit le fichier. Le master demande un upload classique (RELAY) pour les petits
+     * fichiers ou s'il n'a pas de secret de cluster.
+     */
+    public String uploadFileDirect(File file, ProgressListener listener) throws IOException {
+        if (!file.exists() || !file.isFile()) {
+            throw new FileNotFoundException("Fichier introuvable: " + file.getAbsolutePath());
+        }
+        String outer = Tracer.current();
+        String trace = openTrace();
+        Tracer.setCurrent(trace);
+        long start = System.nanoTime();
+        try {
+            return uploadDirect(file, listener, trace);
+        } finally {
+            tracer.span("client.upload_direct", trace, start, "file", file.getName(), "bytes", String.valueOf(file.length()));
+            Tracer.setCurrent(outer);
+        }
+    }
+
+    private String uploadDirect(File file, ProgressListener listener, String trace) throws IOException {
+        List<DirectTarget[]> plan = new ArrayList<>();
+        String fileId;
+        int fragmentSize;
+        long expiresAt;
+        try (Socket socket = new Socket(masterHost, masterPort)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(("TRACE " + trace + "\nUPLOAD_PLAN\n").getBytes(StandardCharsets.UTF_8));
             out.writeUTF(file.getName());
             out.writeLong(file.length());
             out.flush();
 
-            // 3. Attendre READY
-            String response = in.readUTF();
-            if (!"READY".equals(response)) {
-                throw new IOException("Serveur non pret: " + response);
+            String status = in.readUTF();
+            if ("RELAY".equals(status)) return uploadFile(file, listener);
+            if (!"PLAN".equals(status)) throw new IOException("Erreur upload: " + status);
+            fileId = in.readUTF();
+            fragmentSize = in.readInt();
+            int count = in.readInt();
+            expiresAt = in.readLong();
+            for (int i = 0; i < count; i++) {
+                DirectTarget[] targets = new DirectTarget[in.readInt()];
+                for (int t = 0; t < targets.length; t++) {
+                    targets[t] = new DirectTarget(in.readInt(), in.readUTF(), in.readInt(), in.readUTF());
+                }
+                plan.add(targets);
+            }
+        }
+
+        // un fragment par tâche, toutes ses copies envoyées par la même tâche
+        long totalSize = file.length();
+        AtomicLong sent = new AtomicLong();
+        List<String[]> receipts = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(DIRECT_WORKERS, plan.size())));
+        List<Future<?>> tasks = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int i = 0; i < plan.size(); i++) {
+                final int index = i;
+                tasks.add(pool.submit(() -> {
+                    // threads propres à cet upload : la trace suit les STORE_FRAGMENT (storeDirect)
+                    Tracer.setCurrent(trace);
+                    int size = (int) Math.min(fragmentSize, totalSize - (long) index * fragmentSize);
+                    byte[] data = new byte[size];
+                    synchronized (raf) {
+                        raf.seek((long) index * fragmentSize);
+                        raf.readFully(data);
+                    }
+                    IOException last = null;
+                    int ok = 0;
+                    for (DirectTarget t : plan.get(index)) {
+                        long storeStart = System.nanoTime();
+                        try {
+                            String receipt = storeDirect(t, fileId, index, data, expiresAt);
+                            receipts.add(new String[]{String.valueOf(index), String.valueOf(t.slaveId), receipt});
+                            ok++;
+                        } catch (IOException e) {
+                            last = e;
+                        } finally {
+                            tracer.span("client.store", trace, storeStart, "slave", String.valueOf(t.slaveId),
+                                    "fragment", String.valueOf(index), "bytes", String.valueOf(size));
+                        }
+                    }
+                    if (ok == 0) throw last;
+                    long all = sent.addAndGet(size);
+                    if (listener != null) listener.onProgress(all, totalSize);
+                    return null;
+                }));
+            }
+            pool.shutdown();
+            for (Future<?> f : tasks) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload direct interrompu");
+        } catch (ExecutionException e) {
+            throw new IOException("Erreur upload direct: " + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        try (Socket socket = new Socket(masterHost, masterPort)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(("TRACE " + trace + "\nUPLOAD_COMMIT " + fileId + "\n").getBytes(StandardCharsets.UTF_8));
+            out.writeInt(receipts.size());
+            for (String[] r : receipts) {
+                out.writeInt(Integer.parseInt(r[0]));
+                out.writeInt(Integer.parseInt(r[1]));
+                out.writeUTF(r[2]);
             }
+            out.flush();
+            String status = in.readUTF();
+            if (!"OK".equals(status)) throw new IOException("Erreur upload: " + status);
+            return in.readUTF();
+        }
+    }
 
-            // 4. Lire et envoyer le fichier par fragments de 1MB
-            long totalSize = file.length();
-            long bytesSent = 0;
+    /**
+     * Nouvelle version d'un fichier déjà stocké : seules les parties modifiées sont envoyées.
+     * Les signatures des fragments de la version de base (SIGNATURES) servent à retrouver dans le
+     * fichier local, à n'importe quel décalage, les fragments inchangés ; le master les reprend sur
+     * les slaves (UPLOAD_DELTA) et seuls les octets littéraux transitent. Upload classique si la
+     * base n'a rien à offrir (petit fichier regroupé, signatures indisponibles).
+     *
+     * @return le fileId de la nouvelle version (la version de base reste inchangée)
+     */
+    public String uploadFileDelta(File file, String baseFileId, ProgressListener listener) throws IOException {
+        if (!file.exists() || !file.isFile()) {
+            throw new FileNotFoundException("Fichier introuvable: " + file.getAbsolutePath());
+        }
+        String outer = Tracer.current();
+        String trace = openTrace();
+        Tracer.setCurrent(trace);
+        long start = System.nanoTime();
+        try {
+            DeltaEncoder encoder = new DeltaEncoder(fetchSignatures(baseFileId, trace));
+            if (!encoder.usable()) return uploadFile(file, listener);
+            return uploadDelta(file, baseFileId, encoder, listener, trace);
+        } finally {
+            tracer.span("client.upload_delta", trace, start, "file", file.getName(), "base", baseFileId);
+            Tracer.setCurrent(outer);
+        }
+    }
 
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                    out.flush();
-                    bytesSent += bytesRead;
+    private List<DeltaEncoder.Signature> fetchSignatures(String fileId, String trace) throws IOException {
+        List<DeltaEncoder.Signature> signatures = new ArrayList<>();
+        try (Socket socket = new Socket(masterHost, masterPort)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = socket.getOutputStream();
+            out.write(("TRACE " + trace + "\nSIGNATURES " + fileId + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String status = in.readUTF();
+            if (!"OK".equals(status)) throw new IOException("Erreur signatures: " + in.readUTF());
+            in.readUTF(); // nom
+            in.readLong(); // taille
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                signatures.add(new DeltaEncoder.Signature(i, in.readLong(), in.readLong(), in.readUTF()));
+            }
+        }
+        return signatures;
+    }
 
-                    if (listener != null) {
-                        listener.onProgress(bytesSent, totalSize);
+    private String uploadDelta(File file, String baseFileId, DeltaEncoder encoder, ProgressListener listener,
+                               String trace) throws IOException {
+        long totalSize = file.length();
+        long[] literal = {0};
+        try (Socket socket = new Socket(masterHost, masterPort)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(("TRACE " + trace + "\nUPLOAD_DELTA " + baseFileId + "\n").getBytes(StandardCharsets.UTF_8));
+            out.writeUTF(file.getName());
+            out.writeLong(totalSize);
+            out.flush();
+            String status = in.readUTF();
+            if (!"READY".equals(status)) throw new IOException("Erreur upload delta: " + status);
+
+            try (InputStream fis = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+                encoder.encode(fis, new DeltaEncoder.Sink() {
+                    @Override
+                    public void copy(int baseIndex, long length) throws IOException {
+                        out.writeUTF("COPY");
+                        out.writeInt(baseIndex);
                     }
-                }
+
+                    @Override
+                    public void data(byte[] b, int off, int len) throws IOException {
+                        out.writeUTF("DATA");
+                        out.writeInt(len);
+                        out.write(b, off, len);
+                        literal[0] += len;
+                    }
+                }, done -> {
+                    if (listener != null) listener.onProgress(done, totalSize);
+                });
             }
+            out.writeUTF("END");
+            out.flush();
 
-            // 5. Recevoir confirmation et fileId
-            String status = in.readUTF();
-            if ("OK".equals(status)) {
-                String fileId = in.readUTF();
-                System.out.println("Upload reussi! FileId: " + fileId);
-                return fileId;
-            } else {
-                throw new IOException("Erreur upload: " + status);
+            status = in.readUTF();
+            if (!"OK".equals(status)) throw new IOException("Erreur upload delta: " + status);
+            String fileId = in.readUTF();
+            log.info("Upload delta réussi", "file", file.getName(), "fileId", fileId, "base", baseFileId,
+                    "envoyes", literal[0], "taille", totalSize);
+            return fileId;
+        }
+    }
+
+    private static class DirectTarget {
+        final int slaveId;
+        final String host;
+        final int port;
+        final String token;
+
+        DirectTarget(int slaveId, String host, int port, String token) {
+            this.slaveId = slaveId;
+            this.host = host;
+            this.port = port;
+            this.token = token;
+        }
+    }
+
+    // STORE_FRAGMENT avec jeton ; renvoie l'accusé signé par le slave
+    private String storeDirect(DirectTarget t, String fileId, int index, byte[] data, long expiresAt) throws IOException {
+        try (Socket socket = new Socket(t.host, t.port)) {
+            socket.setSoTimeout(60000);
+            JsonObject msg = new JsonObject();
+            msg.addProperty("type", "STORE_FRAGMENT");
+            JsonObject d = new JsonObject();
+            d.addProperty("file_id", fileId);
+            d.addProperty("fragment_id", index);
+            d.addProperty("length", data.length);
+            d.addProperty("token", t.token);
+            d.addProperty("expires", expiresAt);
+            Tracer.inject(d);
+            msg.add("data", d);
+
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            out.write((gson.toJson(msg) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(data);
+            out.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line = reader.readLine();
+            if (line == null) throw new IOException("Slave " + t.slaveId + " ne répond pas");
+            JsonObject ack = gson.fromJson(line, JsonObject.class).getAsJsonObject("data");
+            String status = ack.has("status") ? ack.get("status").getAsString() : line;
+            if (!"OK".equals(status) || !ack.has("receipt")) {
+                throw new IOException("Slave " + t.slaveId + " a refusé le fragment " + index + ": " + status);
             }
+            return ack.get("receipt").getAsString();
         }
     }
 
+    // envoie un fichier sur une connexion déjà ouverte en mode FLOW ; renvoie le fileId
+    private static String sendFile(DataInputStream in, DataOutputStream out, File file, String name,
+                                   ProgressListener listener) throws IOException {
+        // 2. Envoyer le nom et la taille du fichier
+        out.writeUTF(name);
+        out.writeLong(file.length());
+        out.flush();
+
+        // 3. Attendre READY
+        String response = in.readUTF();
+        if (!"READY".equals(response)) {
+            throw new IOException("Serveur non pret: " + response);
+        }
+
+        // 4. Lire et envoyer le fichier par fragments de 1MB, un crédit par fragment
+        long totalSize = file.length();
+        long bytesSent = 0;
+        int credits = 0;
+
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int bytesRead;
+            while ((bytesRead = readChunk(fis, buffer)) > 0) {
+                while (credits == 0) {
+                    credits += readCredit(in);
+                }
+                out.write(buffer, 0, bytesRead);
+                out.flush();
+                credits--;
+                bytesSent += bytesRead;
+
+                if (listener != null) {
+                    listener.onProgress(bytesSent, totalSize);
+                }
+            }
+        }
+
+        // 5. Recevoir confirmation et fileId (les crédits restants sont ignorés)
+        String status = in.readUTF();
+        while ("CREDIT".equals(status)) {
+            in.readInt();
+            status = in.readUTF();
+        }
+        if ("OK".equals(status)) {
+            return in.readUTF();
+        } else {
+            throw new IOException("Erreur upload: " + status);
+        }
+    }
+
+    // remplit le buffer (un fragment complet) sauf en fin de fichier
+    private static int readChunk(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int r = in.read(buffer, total, buffer.length - total);
+            if (r == -1) break;
+            total += r;
+        }
+        return total;
+    }
+
+    private static int readCredit(DataInputStream in) throws IOException {
+        String msg = in.readUTF();
+        if (!"CREDIT".equals(msg)) {
+            throw new IOException("Erreur upload: " + msg);
+        }
+        return in.readInt();
+    }
+
     /**
      * Upload sans listener de progression.
      */
@@ -128,6 +526,140 @@ public class ClientSocket {
         return uploadFile(file, null);
     }
 
+    /**
+     * Upload en masse : 'workers' connexions au master, chacune réutilisée pour une suite de
+     * fichiers (UPLOAD_SESSION). Les fichiers en échec sont notés dans le manifeste sans
+     * interrompre les autres.
+     */
+    public UploadManifest uploadFiles(List<File> files, int workers, ProgressListener listener) throws IOException {
+        List<UploadManifest.Entry> entries = new ArrayList<>();
+        for (File f : files) entries.add(new UploadManifest.Entry(f.getPath(), f.length()));
+        return uploadAll(files, entries, workers, listener);
+    }
+
+    /** Upload récursif d'un dossier ; chaque fichier est nommé par son chemin relatif au dossier. */
+    public UploadManifest uploadDirectory(File dir, int workers, ProgressListener listener) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new FileNotFoundException("Dossier introuvable: " + dir.getAbsolutePath());
+        }
+        Path root = dir.toPath();
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(root)) {
+            paths = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        List<File> files = new ArrayList<>();
+        List<UploadManifest.Entry> entries = new ArrayList<>();
+        for (Path p : paths) {
+            files.add(p.toFile());
+            entries.add(new UploadManifest.Entry(root.relativize(p).toString().replace(File.separatorChar, '/'), p.toFile().length()));
+        }
+        return uploadAll(files, entries, workers, listener);
+    }
+
+    private UploadManifest uploadAll(List<File> files, List<UploadManifest.Entry> entries, int workers,
+                                     ProgressListener listener) throws IOException {
+        for (File f : files) {
+            if (!f.isFile()) throw new FileNotFoundException("Fichier introuvable: " + f.getAbsolutePath());
+        }
+        long total = 0;
+        for (File f : files) total += f.length();
+        final long totalBytes = total;
+        AtomicLong sentAll = new AtomicLong();
+        AtomicInteger next = new AtomicInteger();
+
+        int n = Math.max(1, Math.min(workers, files.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(n);
+        List<Future<?>> running = new ArrayList<>();
+        for (int w = 0; w < n; w++) {
+            running.add(pool.submit(() -> {
+                UploadSession session = null;
+                try {
+                    int i;
+                    while ((i = next.getAndIncrement()) < files.size()) {
+                        File file = files.get(i);
+                        UploadManifest.Entry entry = entries.get(i);
+                        long[] counted = {0};
+                        ProgressListener perFile = (sent, size) -> {
+                            long all = sentAll.addAndGet(sent - counted[0]);
+                            counted[0] = sent;
+                            if (listener != null) {
+                                listener.onFileProgress(file, sent, size);
+                                listener.onProgress(all, totalBytes);
+                            }
+                        };
+                        try {
+                            if (session == null) session = new UploadSession();
+                            entry.fileId = session.send(file, entry.path, perFile);
+                            if (listener != null) listener.onFileComplete(file, entry.fileId, null);
+                        } catch (IOException e) {
+                            // connexion inutilisable après une erreur : la suivante en ouvre une neuve
+                            if (session != null) session.closeQuietly();
+                            session = null;
+                            sentAll.addAndGet(file.length() - counted[0]);
+                            entry.error = e.getMessage();
+                            if (listener != null) listener.onFileComplete(file, null, e);
+                        }
+                    }
+                } finally {
+                    if (session != null) session.close();
+                }
+                return null;
+            }));
+        }
+        pool.shutdown();
+        try {
+            for (Future<?> f : running) f.get();
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload en masse interrompu");
+        } catch (ExecutionException e) {
+            throw new IOException("Erreur upload en masse", e.getCause());
+        }
+        return new UploadManifest(entries);
+    }
+
+    // connexion UPLOAD_SESSION réutilisée pour plusieurs fichiers
+    private class UploadSession {
+        // une trace par connexion : le master rattache toute la session à la même
+        private final String trace = Tracer.newTraceId();
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        UploadSession() throws IOException {
+            socket = new Socket(masterHost, masterPort);
+            // petits messages de contrôle à chaque fichier : pas d'attente de Nagle
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            out.write(("TRACE " + trace + "\nUPLOAD_SESSION\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        String send(File file, String name, ProgressListener listener) throws IOException {
+            long start = System.nanoTime();
+            try {
+                out.writeUTF("FILE");
+                return sendFile(in, out, file, name, listener);
+            } finally {
+                tracer.span("client.upload", trace, start, "file", name, "bytes", String.valueOf(file.length()));
+            }
+        }
+
+        void close() {
+            try {
+                out.writeUTF("END");
+                out.flush();
+            } catch (IOException ignored) {
+            }
+            closeQuietly();
+        }
+
+        void closeQuietly() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
     // ======================== DOWNLOAD ========================
 
     /**
@@ -139,11 +671,27 @@ public class ClientSocket {
      * @throws IOException en cas d'erreur réseau
      */
     public void downloadFile(String fileId, String savePath, ProgressListener listener) throws IOException {
+        String outer = Tracer.current();
+        String trace = openTrace();
+        Tracer.setCurrent(trace);
+        long start = System.nanoTime();
+        boolean fromCache = false;
+        try {
+            fromCache = cache != null && downloadFromCache(fileId, savePath, listener);
+            if (!fromCache) download(fileId, savePath, listener, trace);
+        } finally {
+            tracer.span("client.download", trace, start, "file", fileId, "cache", String.valueOf(fromCache));
+            Tracer.setCurrent(outer);
+        }
+    }
+
+    private void download(String fileId, String savePath, ProgressListener listener, String trace) throws IOException {
         try (Socket socket = new Socket(masterHost, masterPort)) {
             DataInputStream in = new DataInputStream(socket.getInputStream());
 
             // 1. Envoyer la commande DOWNLOAD
             PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            pw.println("TRACE " + trace);
             pw.println("DOWNLOAD " + fileId);
             pw.flush();
 
@@ -159,7 +707,7 @@ public class ClientSocket {
             long totalSize = in.readLong();
             int fragmentCount = in.readInt();
 
-            System.out.println("Download: " + originalName + " (" + totalSize + " bytes, " + fragmentCount + " fragments)");
+            log.info("Download", "nom", originalName, "bytes", totalSize, "fragments", fragmentCount);
 
             // 4. Recevoir et écrire les fragments
             File outputFile = new File(savePath);
@@ -169,33 +717,95 @@ public class ClientSocket {
             }
 
             long bytesReceived = 0;
+            // le cache suppose des fragments de même taille (sauf le dernier) ; faux pour une version delta.
+            // Tant que le download n'est pas complet, rien ne garantit que le fichier l'est : le fichier
+            // est oublié du cache en cas d'échec comme dès qu'un fragment de taille différente arrive.
+            int firstSize = -1;
+            boolean uniform = true;
+            boolean caching = cache != null;
+            boolean complete = false;
 
             try (FileOutputStream fos = new FileOutputStream(outputFile)) {
                 for (int i = 0; i < fragmentCount; i++) {
+                    long fragmentStart = System.nanoTime();
                     int fragmentSize = in.readInt();
 
                     if (fragmentSize == -1) {
                         throw new IOException("Erreur lors de la recuperation du fragment #" + i);
                     }
 
+                    if (firstSize < 0) firstSize = fragmentSize;
+                    else if (fragmentSize > firstSize || (i < fragmentCount - 1 && fragmentSize != firstSize)) uniform = false;
+                    if (caching && !uniform) {
+                        caching = false;
+                        cache.invalidate(fileId);
+                    }
+
                     byte[] fragmentData = new byte[fragmentSize];
                     in.readFully(fragmentData);
                     fos.write(fragmentData);
+                    if (caching) {
+                        if (i == 0) cache.putMeta(fileId, originalName, totalSize, fragmentCount, fragmentSize);
+                        cache.put(fileId, i, fragmentData);
+                    }
 
+                    tracer.span("client.fragment", trace, fragmentStart, "fragment", String.valueOf(i),
+                            "bytes", String.valueOf(fragmentSize));
                     bytesReceived += fragmentSize;
                     if (listener != null) {
                         listener.onProgress(bytesReceived, totalSize);
                     }
 
-                    System.out.println("Fragment #" + i + " recu (" + fragmentSize + " bytes)");
+                    log.debug("Fragment reçu", "fragment", i, "bytes", fragmentSize);
                 }
                 fos.flush();
+                complete = true;
+            } finally {
+                if (cache != null && (!complete || !uniform)) cache.invalidate(fileId);
             }
 
-            System.out.println("Download termine! Sauvegarde: " + savePath);
+            if (cache != null) cache.flush();
+            log.info("Download terminé", "fileId", fileId, "fichier", savePath);
         }
     }
 
+    // fichier connu du cache : fragments locaux, les manquants relus par plage ; false si rien n'est en cache
+    private boolean downloadFromCache(String fileId, String savePath, ProgressListener listener) throws IOException {
+        FragmentCache.FileMeta meta = cache.meta(fileId);
+        if (meta == null) return false;
+        byte[][] local = new byte[meta.fragments][];
+        int found = 0;
+        for (int i = 0; i < meta.fragments; i++) {
+            local[i] = cache.get(fileId, i);
+            if (local[i] != null) found++;
+        }
+        if (found == 0) return false;
+
+        File outputFile = new File(savePath);
+        if (outputFile.getParentFile() != null) {
+            outputFile.getParentFile().mkdirs();
+        }
+        long bytesReceived = 0;
+        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
+            for (int i = 0; i < meta.fragments; i++) {
+                byte[] data = local[i];
+                if (data == null) {
+                    long offset = (long) i * meta.fragmentSize;
+                    data = readRange(fileId, offset, (int) Math.min(meta.fragmentSize, meta.size - offset));
+                    cache.put(fileId, i, data);
+                }
+                fos.write(data);
+                bytesReceived += data.length;
+                if (listener != null) {
+                    listener.onProgress(bytesReceived, meta.size);
+                }
+            }
+        }
+        cache.flush();
+        log.info("Download depuis le cache", "fileId", fileId, "locaux", found, "fragments", meta.fragments, "fichier", savePath);
+        return true;
+    }
+
     /**
      * Download sans listener de progression.
      */
@@ -203,6 +813,75 @@ public class ClientSocket {
         downloadFile(fileId, savePath, null);
     }
 
+    /**
+     * Lire une plage d'octets d'un fichier sans le télécharger en entier.
+     *
+     * @param fileId l'identifiant du fichier
+     * @param offset position de début dans le fichier
+     * @param length nombre d'octets demandés (tronqué à la fin du fichier)
+     * @return les octets lus
+     * @throws IOException en cas d'erreur réseau
+     */
+    public byte[] readRange(String fileId, long offset, int length) throws IOException {
+        byte[] cached = cache != null ? readRangeFromCache(fileId, offset, length) : null;
+        if (cached != null) return cached;
+        String outer = Tracer.current();
+        String trace = openTrace();
+        Tracer.setCurrent(trace);
+        long start = System.nanoTime();
+        try (Socket socket = new Socket(masterHost, masterPort)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            pw.println("TRACE " + trace);
+            pw.println("DOWNLOAD_RANGE " + fileId + " " + offset + " " + length);
+            pw.flush();
+
+            String status = in.readUTF();
+            if (!"OK".equals(status)) {
+                String errorMsg = in.readUTF();
+                throw new IOException("Erreur lecture plage: " + errorMsg);
+            }
+
+            in.readUTF(); // nom original
+            long rangeSize = in.readLong();
+            int parts = in.readInt();
+
+            byte[] result = new byte[(int) rangeSize];
+            int pos = 0;
+            for (int i = 0; i < parts; i++) {
+                int partSize = in.readInt();
+                if (partSize == -1 || pos + partSize > result.length) {
+                    throw new IOException("Erreur lors de la recuperation de la plage (partie #" + i + ")");
+                }
+                in.readFully(result, pos, partSize);
+                pos += partSize;
+            }
+            return result;
+        } finally {
+            tracer.span("client.range", trace, start, "file", fileId, "offset", String.valueOf(offset),
+                    "length", String.valueOf(length));
+            Tracer.setCurrent(outer);
+        }
+    }
+
+    // plage servie par le cache si tous les fragments qu'elle couvre y sont, sinon null
+    private byte[] readRangeFromCache(String fileId, long offset, int length) {
+        FragmentCache.FileMeta meta = cache.meta(fileId);
+        if (meta == null || offset < 0 || offset >= meta.size || length <= 0) return null;
+        long end = Math.min(meta.size, offset + length);
+        byte[] result = new byte[(int) (end - offset)];
+        for (int i = (int) (offset / meta.fragmentSize); (long) i * meta.fragmentSize < end; i++) {
+            byte[] data = cache.get(fileId, i);
+            if (data == null) return null;
+            long fragStart = (long) i * meta.fragmentSize;
+            long from = Math.max(offset, fragStart);
+            long to = Math.min(end, fragStart + data.length);
+            System.arraycopy(data, (int) (from - fragStart), result, (int) (from - offset), (int) (to - from));
+        }
+        return result;
+    }
+
     // ======================== LIST ========================
 
     /**
@@ -212,9 +891,20 @@ public class ClientSocket {
      * @throws IOException en cas d'erreur réseau
      */
     public List<FileInfo> listFiles() throws IOException {
+        if (replicaHost != null) {
+            try {
+                return listFiles(replicaHost, replicaPort);
+            } catch (IOException e) {
+                // réplica indisponible ou en retard : on interroge le master
+            }
+        }
+        return listFiles(masterHost, masterPort);
+    }
+
+    private List<FileInfo> listFiles(String host, int port) throws IOException {
         List<FileInfo> files = new ArrayList<>();
 
-        try (Socket socket = new Socket(masterHost, masterPort)) {
+        try (Socket socket = new Socket(host, port)) {
             DataInputStream in = new DataInputStream(socket.getInputStream());
 
             // Envoyer la commande LIST
@@ -245,12 +935,46 @@ public class ClientSocket {
                 files.add(info);
             }
 
-            System.out.println(fileCount + " fichier(s) disponible(s)");
+            log.info("LIST", "fichiers", fileCount);
         }
 
         return files;
     }
 
+    /**
+     * Emplacements des fragments d'un fichier (toutes les copies), servis par le réplica si configuré.
+     *
+     * @return JSON {fileId, name, size, fragments, date, locations: [[{slaveId, host, port, size}]]}
+     * @throws IOException en cas d'erreur réseau ou de fichier inconnu
+     */
+    public String getFragmentMap(String fileId) throws IOException {
+        if (replicaHost != null) {
+            try {
+                return getFragmentMap(replicaHost, replicaPort, fileId);
+            } catch (IOException e) {
+                // repli sur le master
+            }
+        }
+        return getFragmentMap(masterHost, masterPort, fileId);
+    }
+
+    private String getFragmentMap(String host, int port, String fileId) throws IOException {
+        try (Socket socket = new Socket(host, port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            pw.println("FRAGMENTS " + fileId);
+            pw.flush();
+
+            String status = in.readUTF();
+            String body = in.readUTF();
+            if (!"OK".equals(status)) {
+                throw new IOException("Erreur FRAGMENTS: " + body);
+            }
+            return body;
+        }
+    }
+
     // ======================== DELETE ========================
 
     /**
@@ -261,11 +985,14 @@ public class ClientSocket {
      * @throws IOException en cas d'erreur réseau
      */
     public String deleteFile(String fileId) throws IOException {
+        String trace = Tracer.newTraceId();
+        long start = System.nanoTime();
         try (Socket socket = new Socket(masterHost, masterPort)) {
             DataInputStream in = new DataInputStream(socket.getInputStream());
 
             // Envoyer la commande DELETE
             PrintWriter pw = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            pw.println("TRACE " + trace);
             pw.println("DELETE " + fileId);
             pw.flush();
 
@@ -273,11 +1000,14 @@ public class ClientSocket {
             String message = in.readUTF();
 
             if ("OK".equals(status)) {
-                System.out.println("Fichier supprime: " + message);
+                if (cache != null) cache.invalidate(fileId);
+                log.info("Fichier supprimé", "fileId", fileId, "message", message);
                 return message;
             } else {
                 throw new IOException("Erreur DELETE: " + message);
             }
+        } finally {
+            tracer.span("client.delete", trace, start, "file", fileId);
         }
     }
 
@@ -0,0 +1,185 @@
+package client;
+
+import common.RollingHash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * Découpe un nouveau contenu en fragments repris de la version de base et en octets littéraux,
+ * à la manière de rsync : une fenêtre de la taille des fragments glisse d'un octet à la fois,
+ * son empreinte (common.RollingHash) est cherchée parmi celles des fragments de base et une
+ * correspondance n'est retenue que si le SHA-256 de la fenêtre est aussi le même. Les fragments
+ * de base plus courts (le dernier, en général) ne sont cherchés qu'à la fin du fichier.
+ * Les littéraux sont émis par blocs d'au plus une fenêtre.
+ */
+class DeltaEncoder {
+    /** Signature d'un fragment de la version de base ; length -1 si inconnue. */
+    static class Signature {
+        final int index;
+        final long length;
+        final long weak;
+        final String sha256;
+
+        Signature(int index, long length, long weak, String sha256) {
+            this.index = index;
+            this.length = length;
+            this.weak = weak;
+            this.sha256 = sha256;
+        }
+    }
+
+    interface Sink {
+        void copy(int baseIndex, long length) throws IOException;
+
+        void data(byte[] b, int off, int len) throws IOException;
+    }
+
+    private final int window;
+    private final Map<Long, List<Signature>> full = new HashMap<>();
+    private final Map<Long, List<Signature>> shorter = new HashMap<>();
+    // filtre des empreintes de 'full' (un bit par empreinte) : la map n'est consultée qu'en cas de bit à 1
+    private final long[] filtre;
+    private final int masque;
+    private final MessageDigest sha;
+
+    DeltaEncoder(List<Signature> signatures) {
+        // fenêtre = taille la plus fréquente (celle des fragments pleins)
+        Map<Long, Integer> sizes = new HashMap<>();
+        for (Signature s : signatures) if (s.length > 0) sizes.merge(s.length, 1, Integer::sum);
+        long best = 0;
+        for (Map.Entry<Long, Integer> e : sizes.entrySet()) {
+            if (best == 0 || e.getValue() > sizes.get(best) || (e.getValue().equals(sizes.get(best)) && e.getKey() > best)) best = e.getKey();
+        }
+        window = (int) best;
+        for (Signature s : signatures) {
+            if (s.length <= 0 || s.sha256.isEmpty()) continue;
+            if (s.length == window) full.computeIfAbsent(s.weak, k -> new ArrayList<>()).add(s);
+            else if (s.length < window) shorter.computeIfAbsent(s.length, k -> new ArrayList<>()).add(s);
+        }
+        int bits = Integer.highestOneBit(Math.max(1024, full.size() * 64)) << 1;
+        filtre = new long[bits >>> 6];
+        masque = bits - 1;
+        for (long weak : full.keySet()) {
+            int b = bit(weak);
+            filtre[b >>> 6] |= 1L << b;
+        }
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** false si la base n'offre rien à reprendre (fichier regroupé, signatures indisponibles). */
+    boolean usable() {
+        return window > 0 && (!full.isEmpty() || !shorter.isEmpty());
+    }
+
+    /** Parcourt 'in' et décrit son contenu à 'sink' ; progress reçoit le nombre d'octets traités. */
+    void encode(InputStream in, Sink sink, LongConsumer progress) throws IOException {
+        byte[] buf = new byte[4 * window];
+        long bufOffset = 0; // position dans le fichier de buf[0]
+        int lit = 0;        // début des littéraux en attente
+        int start = 0;      // début de la fenêtre
+        int end = 0;        // fin des octets lus
+        boolean eof = false;
+        boolean hashed = false;
+        long reported = 0;
+        RollingHash rolling = new RollingHash(window);
+
+        while (true) {
+            // au plus une fenêtre de littéraux en attente : après compactage, lit..end tient dans 2 fenêtres
+            if (!eof && end - start < window + 1) {
+                if (buf.length - end < window + 1) {
+                    System.arraycopy(buf, lit, buf, 0, end - lit);
+                    bufOffset += lit;
+                    start -= lit;
+                    end -= lit;
+                    lit = 0;
+                }
+                while (end - start < window + 1) {
+                    int r = in.read(buf, end, buf.length - end);
+                    if (r == -1) { eof = true; break; }
+                    end += r;
+                }
+            }
+            if (end - start < window) break;
+
+            if (!hashed) {
+                rolling.reset(buf, start, window);
+                hashed = true;
+            }
+            long weak = rolling.value();
+            int b = bit(weak);
+            Signature match = (filtre[b >>> 6] & (1L << b)) == 0 ? null : find(full.get(weak), weak, buf, start, window);
+            if (match != null) {
+                if (start > lit) sink.data(buf, lit, start - lit);
+                sink.copy(match.index, window);
+                start += window;
+                lit = start;
+                hashed = false;
+            } else {
+                // dernière fenêtre possible sans correspondance : le reste est traité après la boucle
+                if (end - start == window) break;
+                if (start - lit == window) {
+                    sink.data(buf, lit, window);
+                    lit = start;
+                }
+                rolling.roll(buf[start], buf[start + window]);
+                start++;
+            }
+            if (bufOffset + start - reported >= window) {
+                reported = bufOffset + start;
+                progress.accept(reported);
+            }
+        }
+
+        // fin du fichier : le plus long fragment de base plus court qu'une fenêtre qui termine le contenu
+        Signature tail = null;
+        for (Map.Entry<Long, List<Signature>> e : shorter.entrySet()) {
+            int len = (int) (long) e.getKey();
+            if (len > end - lit || (tail != null && len <= tail.length)) continue;
+            Signature s = find(e.getValue(), RollingHash.of(buf, end - len, len), buf, end - len, len);
+            if (s != null) tail = s;
+        }
+        int literalEnd = tail != null ? end - (int) tail.length : end;
+        for (int p = lit; p < literalEnd; p += window) sink.data(buf, p, Math.min(window, literalEnd - p));
+        if (tail != null) sink.copy(tail.index, tail.length);
+        progress.accept(bufOffset + end);
+    }
+
+    // candidats de même empreinte : le SHA-256 de la fenêtre n'est calculé qu'une fois, et seulement s'il y en a
+    private Signature find(List<Signature> candidates, long weak, byte[] buf, int off, int len) {
+        if (candidates == null) return null;
+        String hex = null;
+        for (Signature s : candidates) {
+            if (s.weak != weak || s.length != len) continue;
+            if (hex == null) {
+                sha.reset();
+                sha.update(buf, off, len);
+                hex = toHex(sha.digest());
+            }
+            if (hex.equalsIgnoreCase(s.sha256)) return s;
+        }
+        return null;
+    }
+
+    // bits de poids fort : ceux de poids faible d'un polynôme dépendent surtout des derniers octets
+    private int bit(long weak) {
+        return (int) ((weak * 0x9E3779B97F4A7C15L) >>> 32) & masque;
+    }
+
+    private static String toHex(byte[] d) {
+        StringBuilder sb = new StringBuilder(d.length * 2);
+        for (byte b : d) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+}
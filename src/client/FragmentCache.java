@@ -0,0 +1,245 @@
+package client;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Cache disque des fragments téléchargés, indexé par (fileId, index).
+ *
+ * Un fileId désigne un contenu immuable : un fragment en cache n'est jamais périmé, seulement
+ * évincé (LRU) quand le total dépasse maxBytes. Le SHA-256 de chaque fragment est noté à
+ * l'insertion et vérifié à chaque lecture ; un fragment abîmé est retiré et relu sur le réseau.
+ * L'index (cache.idx, du moins au plus récemment utilisé) est réécrit par flush().
+ */
+public class FragmentCache {
+    private static final String INDEX_FILE = "cache.idx";
+    private static final Pattern SAFE_ID = Pattern.compile("[A-Za-z0-9._-]+");
+
+    public static class FileMeta {
+        public final String name;
+        public final long size;
+        public final int fragments;
+        // taille des fragments sauf le dernier
+        public final int fragmentSize;
+
+        FileMeta(String name, long size, int fragments, int fragmentSize) {
+            this.name = name;
+            this.size = size;
+            this.fragments = fragments;
+            this.fragmentSize = fragmentSize;
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final String sha256;
+
+        Entry(long size, String sha256) {
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FileMeta> files = new HashMap<>();
+    private long usedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong corrupted = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public FragmentCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        load();
+    }
+
+    public static boolean cacheable(String fileId) {
+        return fileId != null && SAFE_ID.matcher(fileId).matches();
+    }
+
+    public synchronized FileMeta meta(String fileId) {
+        return files.get(fileId);
+    }
+
+    public synchronized void putMeta(String fileId, String name, long size, int fragments, int fragmentSize) {
+        if (!cacheable(fileId)) return;
+        files.put(fileId, new FileMeta(name, size, fragments, fragmentSize));
+    }
+
+    /** Contenu du fragment, ou null s'il est absent ou ne correspond plus à son checksum. */
+    public byte[] get(String fileId, int index) {
+        String key = key(fileId, index);
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(pathOf(fileId, index));
+        } catch (IOException ex) {
+            data = null;
+        }
+        if (data == null || data.length != e.size || !sha256(data).equals(e.sha256)) {
+            corrupted.incrementAndGet();
+            misses.incrementAndGet();
+            remove(key);
+            return null;
+        }
+        hits.incrementAndGet();
+        return data;
+    }
+
+    public void put(String fileId, int index, byte[] data) {
+        if (!cacheable(fileId) || data.length > maxBytes) return;
+        String key = key(fileId, index);
+        Path path = pathOf(fileId, index);
+        try {
+            Files.createDirectories(path.getParent());
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            return;
+        }
+        List<String> victims = new ArrayList<>();
+        synchronized (this) {
+            Entry previous = entries.put(key, new Entry(data.length, sha256(data)));
+            if (previous != null) usedBytes -= previous.size;
+            usedBytes += data.length;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Entry> oldest = it.next();
+                if (oldest.getKey().equals(key)) continue;
+                usedBytes -= oldest.getValue().size;
+                victims.add(oldest.getKey());
+                it.remove();
+            }
+        }
+        evicted.addAndGet(victims.size());
+        for (String v : victims) deleteQuietly(pathOf(v));
+    }
+
+    /** Oublie un fichier (supprimé côté serveur). */
+    public void invalidate(String fileId) {
+        List<String> keys = new ArrayList<>();
+        synchronized (this) {
+            files.remove(fileId);
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getKey().startsWith(fileId + "/")) {
+                    usedBytes -= e.getValue().size;
+                    keys.add(e.getKey());
+                    it.remove();
+                }
+            }
+        }
+        for (String k : keys) deleteQuietly(pathOf(k));
+        deleteQuietly(dir.resolve(fileId));
+    }
+
+    /** Réécrit l'index ; les métadonnées des fichiers sans fragment en cache ne sont pas gardées. */
+    public void flush() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        synchronized (this) {
+            Set<String> withData = new HashSet<>();
+            for (String k : entries.keySet()) withData.add(k.substring(0, k.indexOf('/')));
+            files.keySet().retainAll(withData);
+            for (Map.Entry<String, FileMeta> f : files.entrySet()) {
+                FileMeta m = f.getValue();
+                sb.append("F,").append(f.getKey()).append(',').append(m.size).append(',').append(m.fragments)
+                        .append(',').append(m.fragmentSize).append(',').append(m.name).append('\n');
+            }
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                sb.append("C,").append(e.getKey()).append(',').append(e.getValue().size)
+                        .append(',').append(e.getValue().sha256).append('\n');
+            }
+        }
+        Path tmp = dir.resolve(INDEX_FILE + ".tmp");
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, dir.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getCorrupted() { return corrupted.get(); }
+    public long getEvicted() { return evicted.get(); }
+
+    // relit l'index ; les entrées dont le fichier a disparu ou changé de taille sont ignorées
+    private void load() throws IOException {
+        Path index = dir.resolve(INDEX_FILE);
+        if (!Files.exists(index)) return;
+        for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+            try {
+                if (line.startsWith("F,")) {
+                    String[] p = line.split(",", 6);
+                    files.put(p[1], new FileMeta(p[5], Long.parseLong(p[2]), Integer.parseInt(p[3]), Integer.parseInt(p[4])));
+                } else if (line.startsWith("C,")) {
+                    String[] p = line.split(",");
+                    long size = Long.parseLong(p[2]);
+                    Path path = pathOf(p[1]);
+                    if (!Files.isRegularFile(path) || Files.size(path) != size) continue;
+                    entries.put(p[1], new Entry(size, p[3]));
+                    usedBytes += size;
+                }
+            } catch (RuntimeException e) {
+                // ligne incomplète (arrêt pendant l'écriture) : ignorée
+            }
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null) usedBytes -= e.size;
+        deleteQuietly(pathOf(key));
+    }
+
+    private static String key(String fileId, int index) {
+        return fileId + "/" + index;
+    }
+
+    private Path pathOf(String fileId, int index) {
+        return dir.resolve(fileId).resolve(index + ".frag");
+    }
+
+    private Path pathOf(String key) {
+        int slash = key.indexOf('/');
+        return pathOf(key.substring(0, slash), Integer.parseInt(key.substring(slash + 1)));
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(d.length * 2);
+            for (byte b : d) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
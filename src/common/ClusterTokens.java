@@ -0,0 +1,65 @@
+package common;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * Jetons d'écriture et accusés de réception des uploads directs (client -> slaves).
+ * HMAC-SHA256 avec le secret partagé cluster.secret : le master signe l'autorisation
+ * d'écrire un fragment précis sur un slave précis, le slave signe l'accusé que le client
+ * rapporte au master. Sans secret configuré, l'upload direct est désactivé.
+ *
+ * Avec un secret, les commandes du master qui modifient un slave (STORE_FRAGMENT, STORE_BATCH,
+ * LINK_FRAGMENT, DELETE_FRAGMENT) sont elles aussi signées (masterToken) : un slave refuse toute
+ * écriture qui ne porte ni jeton client ni signature du master.
+ */
+public final class ClusterTokens {
+    private static final byte[] SECRET = System.getProperty("cluster.secret", "").getBytes(StandardCharsets.UTF_8);
+
+    private ClusterTokens() {
+    }
+
+    public static boolean isConfigured() {
+        return SECRET.length > 0;
+    }
+
+    public static String writeToken(String fileId, int fragmentIndex, long length, String slaveId, long expiresAt) {
+        return hmac("write|" + fileId + "|" + fragmentIndex + "|" + length + "|" + slaveId + "|" + expiresAt);
+    }
+
+    public static String receipt(String fileId, int fragmentIndex, long length, String slaveId) {
+        return hmac("stored|" + fileId + "|" + fragmentIndex + "|" + length + "|" + slaveId);
+    }
+
+    /** Signature d'une commande du master pour un slave ; 'cibles' liste les fragments visés (fragment()). */
+    public static String masterToken(String type, String slaveId, long expiresAt, String cibles) {
+        return hmac("master|" + type + "|" + slaveId + "|" + expiresAt + "|" + cibles);
+    }
+
+    /** Un fragment dans les cibles d'une commande signée ; length -1 quand la commande n'en porte pas. */
+    public static String fragment(String fileId, int fragmentIndex, long length) {
+        return fileId + ":" + fragmentIndex + ":" + length;
+    }
+
+    /** Comparaison en temps constant. */
+    public static boolean matches(String expected, String given) {
+        if (given == null) return false;
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hmac(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+            byte[] sig = mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(sig.length * 2);
+            for (byte b : sig) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Journal asynchrone à niveaux : l'appelant dépose l'entrée dans un tampon circulaire sans verrou
+ * (log.bufferSize) et un thread d'écriture la met en forme et l'écrit. Tampon plein : l'entrée est
+ * perdue et comptée (dropped()), le chemin de données n'attend jamais la console.
+ *
+ * Format d'une ligne : "2026-01-01T12:00:00.000Z INFO  master [thread] message cle=valeur ...".
+ * Le message est un texte fixe, les parties variables passent en paires clé, valeur ; un Throwable
+ * en dernier argument ajoute sa pile. Au-delà de log.repeatPerSec occurrences par seconde d'un même
+ * message d'un composant, les suivantes sont supprimées puis résumées par une ligne.
+ *
+ * Propriétés : log.level (DEBUG, INFO, WARN, ERROR ; INFO par défaut), log.file (sinon
+ * stdout, et stderr pour WARN/ERROR).
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final Level THRESHOLD = parseLevel(System.getProperty("log.level", "INFO"));
+    private static final int CAPACITY = Math.max(64, Integer.getInteger("log.bufferSize", 8192));
+    private static final int REPEAT_PER_SEC = Integer.getInteger("log.repeatPerSec", 20);
+    private static final int MAX_REPEAT_KEYS = 10_000;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ISO_INSTANT.withZone(ZoneOffset.UTC);
+
+    private static final class Entry {
+        final long time;
+        final Level level;
+        final String component;
+        final String thread;
+        final String message;
+        final Object[] args;
+
+        Entry(long time, Level level, String component, String thread, String message, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.component = component;
+            this.thread = thread;
+            this.message = message;
+            this.args = args;
+        }
+    }
+
+    // fenêtre d'une seconde par (composant, message) pour limiter les répétitions
+    private static final class Window {
+        final AtomicLong second = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger suppressed = new AtomicInteger();
+    }
+
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    // head : prochain emplacement réservé par un appelant ; tail : prochain emplacement lu par le writer
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+
+    private static final PrintStream out;
+    private static final PrintStream err;
+
+    static {
+        String file = System.getProperty("log.file");
+        PrintStream o = System.out;
+        PrintStream e = System.err;
+        if (file != null) {
+            try {
+                OutputStream f = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+                o = e = new PrintStream(f, false, StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                System.err.println("Fichier de log " + file + " inutilisable: " + ex.getMessage());
+            }
+        }
+        out = o;
+        err = e;
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // les programmes courts (client en ligne de commande) ne perdent pas leurs dernières lignes
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(2000), "log-flush"));
+    }
+
+    private final String component;
+
+    private Log(String component) {
+        this.component = component;
+    }
+
+    public static Log get(String component) {
+        return new Log(component);
+    }
+
+    public static boolean enabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    public void debug(String message, Object... args) { log(Level.DEBUG, message, args); }
+    public void info(String message, Object... args) { log(Level.INFO, message, args); }
+    public void warn(String message, Object... args) { log(Level.WARN, message, args); }
+    public void error(String message, Object... args) { log(Level.ERROR, message, args); }
+
+    public void log(Level level, String message, Object... args) {
+        if (!enabled(level)) return;
+        long now = System.currentTimeMillis();
+        int suppressed = repeatCheck(message, now / 1000);
+        if (suppressed < 0) return;
+        String thread = Thread.currentThread().getName();
+        if (suppressed > 0) {
+            offer(new Entry(now, level, component, thread, message + " (" + suppressed + " répétition(s) supprimée(s))", args));
+        } else {
+            offer(new Entry(now, level, component, thread, message, args));
+        }
+    }
+
+    /** Entrées perdues faute de place dans le tampon. */
+    public static long dropped() {
+        return dropped.get();
+    }
+
+    /** Attend que le writer ait écrit tout ce qui a été déposé avant l'appel (au plus timeoutMs). */
+    public static void flush(long timeoutMs) {
+        long target = head.get();
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000;
+        while (tail.get() < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+        }
+        out.flush();
+        err.flush();
+    }
+
+    // -1 : message supprimé ; sinon nombre d'occurrences supprimées dans la fenêtre précédente
+    private int repeatCheck(String message, long second) {
+        if (REPEAT_PER_SEC <= 0) return 0;
+        String key = component + '\u0000' + message;
+        Window w = windows.get(key);
+        if (w == null) {
+            if (windows.size() >= MAX_REPEAT_KEYS) windows.clear();
+            w = windows.computeIfAbsent(key, k -> new Window());
+        }
+        long current = w.second.get();
+        if (current != second && w.second.compareAndSet(current, second)) {
+            w.count.set(1);
+            return w.suppressed.getAndSet(0);
+        }
+        if (w.count.incrementAndGet() <= REPEAT_PER_SEC) return 0;
+        w.suppressed.incrementAndGet();
+        return -1;
+    }
+
+    // réserve un emplacement seulement s'il est libre : chaque emplacement réservé finit par être rempli
+    private static void offer(Entry e) {
+        long h;
+        do {
+            h = head.get();
+            if (h - tail.get() >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(h, h + 1));
+        ring.set((int) (h % CAPACITY), e);
+    }
+
+    private static void writeLoop() {
+        StringBuilder sb = new StringBuilder(256);
+        long idleNanos = 0;
+        long reportedDrops = 0;
+        while (true) {
+            long t = tail.get();
+            int slot = (int) (t % CAPACITY);
+            Entry e = ring.get(slot);
+            if (e == null) {
+                // rien à écrire (ou emplacement réservé pas encore rempli) : attente croissante jusqu'à 10 ms
+                out.flush();
+                err.flush();
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    err.println(TIME.format(Instant.now()) + " WARN  log [log-writer] entrées perdues (tampon plein) total=" + drops);
+                    reportedDrops = drops;
+                }
+                idleNanos = Math.min(10_000_000, Math.max(50_000, idleNanos * 2));
+                LockSupport.parkNanos(idleNanos);
+                continue;
+            }
+            idleNanos = 0;
+            ring.set(slot, null);
+            tail.set(t + 1);
+            sb.setLength(0);
+            format(e, sb);
+            (e.level.compareTo(Level.WARN) >= 0 ? err : out).println(sb);
+        }
+    }
+
+    private static void format(Entry e, StringBuilder sb) {
+        sb.append(TIME.format(Instant.ofEpochMilli(e.time))).append(' ');
+        String level = e.level.name();
+        sb.append(level);
+        for (int i = level.length(); i < 5; i++) sb.append(' ');
+        sb.append(' ').append(e.component).append(" [").append(e.thread).append("] ").append(e.message);
+        Object[] args = e.args;
+        int pairs = args.length / 2 * 2;
+        for (int i = 0; i < pairs; i += 2) {
+            sb.append(' ').append(args[i]).append('=');
+            String v = String.valueOf(args[i + 1]);
+            if (v.isEmpty() || v.indexOf(' ') >= 0 || v.indexOf('"') >= 0) {
+                sb.append('"').append(v.replace("\"", "\\\"")).append('"');
+            } else {
+                sb.append(v);
+            }
+        }
+        if (args.length % 2 == 1) {
+            Object last = args[args.length - 1];
+            if (last instanceof Throwable) {
+                StringWriter w = new StringWriter();
+                ((Throwable) last).printStackTrace(new PrintWriter(w));
+                sb.append(System.lineSeparator()).append(w.toString().stripTrailing());
+            } else {
+                sb.append(' ').append(last);
+            }
+        }
+    }
+
+    private static Level parseLevel(String s) {
+        try {
+            return Level.valueOf(s.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
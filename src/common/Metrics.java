@@ -0,0 +1,201 @@
+package common;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registre de métriques partagé par le master et les slaves.
+ * Compteurs LongAdder (sans verrou), jauges et histogrammes de latence.
+ * Export JSON (commande STATS) et format texte Prometheus (fichier).
+ */
+public class Metrics {
+    private final String component;
+    private final long startedAt = System.currentTimeMillis();
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> levels = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    // débits calculés par tick() à partir des compteurs
+    private final Map<String, Long> lastValues = new ConcurrentHashMap<>();
+    private final Map<String, Double> rates = new ConcurrentHashMap<>();
+    private volatile long lastTick = System.nanoTime();
+
+    private ScheduledExecutorService reporter;
+
+    public Metrics(String component) {
+        this.component = component;
+    }
+
+    public static String label(String name, String key, String value) {
+        return name + "{" + key + "=\"" + value + "\"}";
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /** Jauge incrémentée/décrémentée (opérations en cours, etc.). */
+    public LongAdder level(String name) {
+        return levels.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    public double rate(String counterName) {
+        Double r = rates.get(counterName);
+        return r == null ? 0 : r;
+    }
+
+    /** Recalcule les débits par seconde de tous les compteurs. */
+    public void tick() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTick) / 1e9;
+        if (seconds <= 0) return;
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            long v = e.getValue().sum();
+            Long prev = lastValues.put(e.getKey(), v);
+            rates.put(e.getKey(), prev == null ? 0 : (v - prev) / seconds);
+        }
+        lastTick = now;
+    }
+
+    /** Démarre le calcul des débits (1s) et le dump Prometheus périodique. */
+    public synchronized void startReporting(Path promFile, long dumpPeriodSeconds) {
+        if (reporter != null) return;
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-" + component);
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+        if (promFile != null) {
+            reporter.scheduleAtFixedRate(() -> {
+                try {
+                    writePrometheus(promFile);
+                } catch (IOException e) {
+                    Log.get(component).error("Erreur dump metrics", "erreur", e.getMessage());
+                }
+            }, dumpPeriodSeconds, dumpPeriodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) reporter.shutdownNow();
+        reporter = null;
+    }
+
+    public JsonObject toJson() {
+        JsonObject root = new JsonObject();
+        root.addProperty("component", component);
+        root.addProperty("uptime_ms", System.currentTimeMillis() - startedAt);
+
+        JsonObject c = new JsonObject();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) c.addProperty(e.getKey(), e.getValue().sum());
+        root.add("counters", c);
+
+        JsonObject g = new JsonObject();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(levels).entrySet()) g.addProperty(e.getKey(), e.getValue().sum());
+        for (Map.Entry<String, LongSupplier> e : new TreeMap<>(gauges).entrySet()) g.addProperty(e.getKey(), safeGet(e.getValue()));
+        root.add("gauges", g);
+
+        JsonObject r = new JsonObject();
+        for (Map.Entry<String, Double> e : new TreeMap<>(rates).entrySet()) r.addProperty(e.getKey(), round(e.getValue()));
+        root.add("rates", r);
+
+        JsonObject l = new JsonObject();
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram h = e.getValue();
+            JsonObject o = new JsonObject();
+            o.addProperty("count", h.count());
+            o.addProperty("mean_ms", round(h.meanMicros() / 1000.0));
+            o.addProperty("p50_ms", round(h.percentileMicros(50) / 1000.0));
+            o.addProperty("p90_ms", round(h.percentileMicros(90) / 1000.0));
+            o.addProperty("p99_ms", round(h.percentileMicros(99) / 1000.0));
+            o.addProperty("p999_ms", round(h.percentileMicros(99.9) / 1000.0));
+            o.addProperty("max_ms", round(h.maxMicros() / 1000.0));
+            l.add(e.getKey(), o);
+        }
+        root.add("latency", l);
+        return root;
+    }
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String p = component + "_";
+        Set<String> typed = new HashSet<>();
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(counters).entrySet()) {
+            if (typed.add(baseName(e.getKey()))) sb.append("# TYPE ").append(p).append(baseName(e.getKey())).append(" counter\n");
+            sb.append(p).append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(levels).entrySet()) {
+            if (typed.add(baseName(e.getKey()))) sb.append("# TYPE ").append(p).append(baseName(e.getKey())).append(" gauge\n");
+            sb.append(p).append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> e : new TreeMap<>(gauges).entrySet()) {
+            if (typed.add(baseName(e.getKey()))) sb.append("# TYPE ").append(p).append(baseName(e.getKey())).append(" gauge\n");
+            sb.append(p).append(e.getKey()).append(' ').append(safeGet(e.getValue())).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(histograms).entrySet()) {
+            String name = p + e.getKey() + "_seconds";
+            LatencyHistogram h = e.getValue();
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for (double q : new double[]{0.5, 0.9, 0.99, 0.999}) {
+                sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                  .append(h.percentileMicros(q * 100) / 1e6).append('\n');
+            }
+            sb.append(name).append("_sum ").append(h.sumMicros() / 1e6).append('\n');
+            sb.append(name).append("_count ").append(h.count()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /** Écriture atomique (fichier temporaire + rename) pour le scraping. */
+    public void writePrometheus(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            w.write(toPrometheus());
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String baseName(String key) {
+        int i = key.indexOf('{');
+        return i < 0 ? key : key.substring(0, i);
+    }
+
+    private static long safeGet(LongSupplier s) {
+        try {
+            return s.getAsLong();
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static double round(double v) {
+        return Math.round(v * 1000.0) / 1000.0;
+    }
+}
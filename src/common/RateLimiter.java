@@ -0,0 +1,52 @@
+package common;
+
+/**
+ * Seau à jetons : au plus ratePerSecond unités par seconde en moyenne, avec une rafale
+ * d'une seconde. acquire() bloque le temps nécessaire ; un débit <= 0 désactive la limite.
+ */
+public class RateLimiter {
+    private volatile double ratePerSecond;
+    private double available;
+    private long lastRefill = System.nanoTime();
+
+    public RateLimiter(double ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+        this.available = ratePerSecond;
+    }
+
+    public void setRate(double ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+    }
+
+    public double getRate() {
+        return ratePerSecond;
+    }
+
+    /** Prend 'units' jetons ; une demande plus grande que la rafale passe en dette. */
+    public void acquire(long units) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            double rate = ratePerSecond;
+            if (rate <= 0) return;
+            refill(rate);
+            available -= units;
+            waitNanos = available >= 0 ? 0 : (long) (-available / rate * 1e9);
+        }
+        if (waitNanos > 0) Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+    }
+
+    public synchronized boolean tryAcquire(long units) {
+        double rate = ratePerSecond;
+        if (rate <= 0) return true;
+        refill(rate);
+        if (available < units) return false;
+        available -= units;
+        return true;
+    }
+
+    private void refill(double rate) {
+        long now = System.nanoTime();
+        available = Math.min(rate, available + (now - lastRefill) / 1e9 * rate);
+        lastRefill = now;
+    }
+}
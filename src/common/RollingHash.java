@@ -0,0 +1,47 @@
+package common;
+
+/**
+ * Empreinte glissante des uploads delta : polynôme h = Σ b[i]·B^(n-1-i) mod 2^64 sur les octets
+ * d'une fenêtre. Le slave la calcule en flux sur un fragment entier (update), le client la fait
+ * glisser d'un octet en O(1) sur le nouveau fichier (roll) ; sur 64 bits les fausses
+ * correspondances sont assez rares pour ne confirmer par SHA-256 que les vraies.
+ */
+public final class RollingHash {
+    private static final long BASE = 0x100000001B3L;
+
+    private final long poidsSortant;
+    private long valeur;
+
+    /** Fenêtre glissante de 'fenetre' octets. */
+    public RollingHash(int fenetre) {
+        long p = 1;
+        for (int i = 1; i < fenetre; i++) p *= BASE;
+        this.poidsSortant = p;
+    }
+
+    /** Prolonge une empreinte avec len octets (h = 0 pour commencer). */
+    public static long update(long h, byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) h = h * BASE + (b[i] & 0xff);
+        return h;
+    }
+
+    public static long of(byte[] b, int off, int len) {
+        return update(0, b, off, len);
+    }
+
+    /** Empreinte de la fenêtre qui commence en off (fenetre octets). */
+    public long reset(byte[] b, int off, int len) {
+        valeur = of(b, off, len);
+        return valeur;
+    }
+
+    /** Fait avancer la fenêtre d'un octet : 'sortant' la quitte, 'entrant' y entre. */
+    public long roll(byte sortant, byte entrant) {
+        valeur = (valeur - (sortant & 0xff) * poidsSortant) * BASE + (entrant & 0xff);
+        return valeur;
+    }
+
+    public long value() {
+        return valeur;
+    }
+}
@@ -0,0 +1,186 @@
+package common;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Traces des requêtes : un identifiant par opération client, propagé au master (ligne
+ * "TRACE <id>" avant la commande) puis aux slaves (champ "trace" de l'objet data).
+ * Chaque composant note ses spans dans un tampon circulaire (trace.bufferSize, les plus
+ * anciens sont écrasés) et les écrit au format Chrome trace (chrome://tracing, Perfetto).
+ * Les horodatages sont en temps réel : les fichiers de plusieurs machines se superposent.
+ */
+public class Tracer {
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("trace.enabled", "true"));
+    private static final int CAPACITY = Math.max(16, Integer.getInteger("trace.bufferSize", 65_536));
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+    private static final Gson gson = new Gson();
+
+    private static final class Span {
+        final String name;
+        final String traceId;
+        final long startMicros;
+        final long durationMicros;
+        final long threadId;
+        final String threadName;
+        final String[] args;
+
+        Span(String name, String traceId, long startMicros, long durationMicros, Thread t, String[] args) {
+            this.name = name;
+            this.traceId = traceId;
+            this.startMicros = startMicros;
+            this.durationMicros = durationMicros;
+            this.threadId = t.getId();
+            this.threadName = t.getName();
+            this.args = args;
+        }
+    }
+
+    private final String component;
+    private final int pid;
+    // décalage nanoTime -> microsecondes depuis l'epoch, fixé au démarrage
+    private final long epochOffsetMicros = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    private final AtomicReferenceArray<Span> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong next = new AtomicLong();
+    private ScheduledExecutorService dumper;
+
+    public Tracer(String component) {
+        this.component = component;
+        // plusieurs composants peuvent partager une JVM (MultiSlaveLaunch) : un pid par composant
+        this.pid = (int) ((ProcessHandle.current().pid() * 31 + component.hashCode()) & 0x7fffffff);
+    }
+
+    public static String newTraceId() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    }
+
+    /** Trace de l'opération en cours sur ce thread, null si aucune. */
+    public static String current() {
+        return CURRENT.get();
+    }
+
+    public static void setCurrent(String traceId) {
+        if (traceId == null) CURRENT.remove();
+        else CURRENT.set(traceId);
+    }
+
+    /** Ajoute la trace courante à l'objet data d'une requête vers un slave. */
+    public static void inject(JsonObject data) {
+        String t = CURRENT.get();
+        if (t != null) data.addProperty("trace", t);
+    }
+
+    /** Trace portée par l'objet data d'une requête, null si absente. */
+    public static String extract(JsonObject data) {
+        return data != null && data.has("trace") && data.get("trace").isJsonPrimitive() ? data.get("trace").getAsString() : null;
+    }
+
+    /**
+     * Note un span commencé à startNanos (System.nanoTime()) et terminé maintenant.
+     * args : paires clé, valeur affichées dans le détail du span.
+     */
+    public void span(String name, String traceId, long startNanos, String... args) {
+        if (!ENABLED) return;
+        long end = System.nanoTime();
+        Span s = new Span(name, traceId, epochOffsetMicros + startNanos / 1000, (end - startNanos) / 1000,
+                Thread.currentThread(), args);
+        ring.lazySet((int) (next.getAndIncrement() % CAPACITY), s);
+    }
+
+    /** Span rattaché à la trace courante du thread. */
+    public void span(String name, long startNanos, String... args) {
+        span(name, current(), startNanos, args);
+    }
+
+    /** Écrit le contenu du tampon (du plus ancien au plus récent) au format Chrome trace. */
+    public void dump(Path file) throws IOException {
+        JsonArray events = new JsonArray();
+        JsonObject process = new JsonObject();
+        process.addProperty("name", "process_name");
+        process.addProperty("ph", "M");
+        process.addProperty("pid", pid);
+        JsonObject processArgs = new JsonObject();
+        processArgs.addProperty("name", component);
+        process.add("args", processArgs);
+        events.add(process);
+
+        Map<Long, String> threads = new HashMap<>();
+        long end = next.get();
+        for (long i = Math.max(0, end - CAPACITY); i < end; i++) {
+            Span s = ring.get((int) (i % CAPACITY));
+            if (s == null) continue;
+            threads.putIfAbsent(s.threadId, s.threadName);
+            JsonObject e = new JsonObject();
+            e.addProperty("name", s.name);
+            e.addProperty("cat", component);
+            e.addProperty("ph", "X");
+            e.addProperty("ts", s.startMicros);
+            e.addProperty("dur", s.durationMicros);
+            e.addProperty("pid", pid);
+            e.addProperty("tid", s.threadId);
+            JsonObject args = new JsonObject();
+            if (s.traceId != null) args.addProperty("trace", s.traceId);
+            for (int k = 0; k + 1 < s.args.length; k += 2) args.addProperty(s.args[k], s.args[k + 1]);
+            e.add("args", args);
+            events.add(e);
+        }
+        for (Map.Entry<Long, String> t : threads.entrySet()) {
+            JsonObject meta = new JsonObject();
+            meta.addProperty("name", "thread_name");
+            meta.addProperty("ph", "M");
+            meta.addProperty("pid", pid);
+            meta.addProperty("tid", t.getKey());
+            JsonObject args = new JsonObject();
+            args.addProperty("name", t.getValue());
+            meta.add("args", args);
+            events.add(meta);
+        }
+
+        JsonObject root = new JsonObject();
+        root.add("traceEvents", events);
+        root.addProperty("displayTimeUnit", "ms");
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            gson.toJson(root, w);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Réécrit le fichier de trace toutes les periodSeconds secondes (trace.dumpSec). */
+    public synchronized void startDumping(Path file, long periodSeconds) {
+        if (dumper != null || !ENABLED || periodSeconds <= 0) return;
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "trace-" + component);
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                dump(file);
+            } catch (IOException e) {
+                Log.get(component).error("Erreur dump trace", "erreur", e.getMessage());
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopDumping() {
+        if (dumper != null) dumper.shutdownNow();
+        dumper = null;
+    }
+}
@@ -0,0 +1,106 @@
+package server;
+
+import common.ClusterTokens;
+import common.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uploads directs : le master ne voit passer que le plan et les accusés, les octets vont du
+ * client aux slaves. Un plan fixe les slaves de chaque fragment et leurs jetons d'écriture ;
+ * il est consommé par UPLOAD_COMMIT, ou abandonné à expiration (les copies déjà écrites sont
+ * alors supprimées des slaves).
+ */
+public class DirectUploadPlanner {
+    private static final long TOKEN_TTL_MS = Long.getLong("direct.tokenTtlSec", 600L) * 1000;
+    // délai laissé au client pour rapporter les accusés après la fin de validité des jetons
+    private static final long COMMIT_GRACE_MS = 60_000L;
+
+    static class Plan {
+        String fileId;
+        String fileName;
+        long fileSize;
+        int fragmentSize;
+        int fragmentCount;
+        int ringEpoch = -1;
+        long expiresAt;
+        final List<List<SlaveInfo>> targets = new ArrayList<>();
+        // fragments placés hors anneau : emplacements à inscrire dans fragments.csv
+        boolean[] explicit;
+
+        long sizeOf(int index) {
+            return Math.min(fragmentSize, fileSize - (long) index * fragmentSize);
+        }
+    }
+
+    private final Map<String, Plan> pending = new ConcurrentHashMap<>();
+    private final Metrics metrics;
+
+    public DirectUploadPlanner(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("direct_plans_pending", pending::size);
+    }
+
+    public long newExpiry() {
+        return System.currentTimeMillis() + TOKEN_TTL_MS;
+    }
+
+    public void register(Plan plan) {
+        purgeExpired();
+        pending.put(plan.fileId, plan);
+        metrics.counter("direct_plans_total").increment();
+    }
+
+    public String token(Plan plan, int index, SlaveInfo slave) {
+        return ClusterTokens.writeToken(plan.fileId, index, plan.sizeOf(index), String.valueOf(slave.getId()), plan.expiresAt);
+    }
+
+    /** Retire le plan ; null s'il est inconnu ou expiré. */
+    public Plan take(String fileId) {
+        Plan plan = pending.remove(fileId);
+        if (plan == null) return null;
+        if (plan.expiresAt + COMMIT_GRACE_MS < System.currentTimeMillis()) {
+            discard(plan);
+            return null;
+        }
+        return plan;
+    }
+
+    public boolean validReceipt(Plan plan, int index, SlaveInfo slave, String receipt) {
+        return ClusterTokens.matches(
+                ClusterTokens.receipt(plan.fileId, index, plan.sizeOf(index), String.valueOf(slave.getId())), receipt);
+    }
+
+    /** Supprime en arrière-plan les copies qu'un plan abandonné a pu laisser sur les slaves. */
+    public void discard(Plan plan) {
+        metrics.counter("direct_plans_discarded_total").increment();
+        Thread cleanup = new Thread(() -> {
+            for (int i = 0; i < plan.fragmentCount; i++) {
+                for (SlaveInfo s : plan.targets.get(i)) {
+                    FileCatalogue.FragmentMapping m = new FileCatalogue.FragmentMapping();
+                    m.fileId = plan.fileId;
+                    m.fragmentIndex = i;
+                    m.slaveId = s.getId();
+                    m.slaveHost = s.getHost();
+                    m.slavePort = s.getPort();
+                    m.fragmentSize = (int) plan.sizeOf(i);
+                    MainServer.deleteFragmentOnSlave(m);
+                }
+            }
+        }, "direct-upload-cleanup");
+        cleanup.setDaemon(true);
+        cleanup.start();
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        pending.values().removeIf(p -> {
+            if (p.expiresAt + COMMIT_GRACE_MS >= now) return false;
+            discard(p);
+            return true;
+        });
+    }
+}
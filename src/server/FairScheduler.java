@@ -0,0 +1,152 @@
+package server;
+
+import common.Metrics;
+
+import java.util.*;
+
+/**
+ * Partage équitable des relais volumineux entre clients.
+ *
+ * Chaque fragment (ou lot) relayé d'un gros transfert doit obtenir l'un des 'slots' places.
+ * Les places libérées sont attribuées par file équitable pondérée (start-time fair queuing) :
+ * le client servi est celui dont la prochaine demande commence le plus tôt en temps virtuel ;
+ * chaque demande servie repousse le début de la suivante du même client de octets / poids.
+ * Un client seul prend toutes les places ; plusieurs clients se partagent le débit au prorata
+ * de leur poids, quel que soit le nombre de connexions ouvertes par chacun.
+ *
+ * Les métadonnées et les petits transferts ne passent pas par ici (voie rapide).
+ */
+public class FairScheduler {
+    public static final class Ticket {
+        final String client;
+
+        Ticket(String client) {
+            this.client = client;
+        }
+    }
+
+    private static final class Waiter {
+        final long bytes;
+        boolean granted;
+
+        Waiter(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class ClientQueue {
+        final double weight;
+        final Deque<Waiter> waiters = new ArrayDeque<>();
+        double finish;
+
+        ClientQueue(double weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final int slots;
+    private final Map<String, Double> weights;
+    private final double defaultWeight;
+    private final Metrics metrics;
+
+    private final Map<String, ClientQueue> queues = new HashMap<>();
+    private double virtualTime;
+    private int inUse;
+    private int waiting;
+
+    /**
+     * @param weights "hôte=poids,hôte=poids" ; l'entrée "default" fixe le poids des autres clients
+     */
+    public FairScheduler(int slots, String weights, Metrics metrics) {
+        this.slots = slots;
+        this.metrics = metrics;
+        this.weights = new HashMap<>();
+        double def = 1.0;
+        for (String entry : weights.split(",")) {
+            String[] kv = entry.trim().split("=");
+            if (kv.length != 2) continue;
+            double w = Double.parseDouble(kv[1].trim());
+            if (w <= 0) continue;
+            if (kv[0].trim().equals("default")) def = w;
+            else this.weights.put(kv[0].trim(), w);
+        }
+        this.defaultWeight = def;
+        metrics.gauge("scheduler_waiting", () -> { synchronized (this) { return waiting; } });
+        metrics.gauge("scheduler_slots_in_use", () -> { synchronized (this) { return inUse; } });
+        metrics.gauge("scheduler_clients", () -> { synchronized (this) { return queues.size(); } });
+    }
+
+    public boolean isEnabled() {
+        return slots > 0;
+    }
+
+    /** Attend une place pour relayer 'bytes' octets ; null si l'ordonnancement est désactivé. */
+    public Ticket acquire(String client, long bytes) throws InterruptedException {
+        if (slots <= 0) return null;
+        long start = System.nanoTime();
+        String depth = Metrics.label("scheduler_queue_depth", "client", client);
+        Waiter w = new Waiter(Math.max(1, bytes));
+        synchronized (this) {
+            queues.computeIfAbsent(client, c -> new ClientQueue(weights.getOrDefault(c, defaultWeight))).waiters.add(w);
+            waiting++;
+            metrics.level(depth).increment();
+            try {
+                dispatch();
+                while (!w.granted) wait();
+            } catch (InterruptedException e) {
+                if (w.granted) {
+                    inUse--;
+                    dispatch();
+                } else {
+                    ClientQueue q = queues.get(client);
+                    if (q != null) q.waiters.remove(w);
+                    waiting--;
+                }
+                throw e;
+            } finally {
+                metrics.level(depth).decrement();
+            }
+        }
+        metrics.histogram("scheduler_wait").recordNanos(System.nanoTime() - start);
+        return new Ticket(client);
+    }
+
+    public void release(Ticket ticket) {
+        if (ticket == null) return;
+        synchronized (this) {
+            inUse--;
+            dispatch();
+        }
+    }
+
+    // sous le verrou : attribue les places libres aux demandes de plus petit début virtuel
+    private void dispatch() {
+        boolean granted = false;
+        while (inUse < slots) {
+            ClientQueue best = null;
+            double bestStart = Double.MAX_VALUE, bestFinish = Double.MAX_VALUE;
+            for (ClientQueue q : queues.values()) {
+                Waiter head = q.waiters.peek();
+                if (head == null) continue;
+                double s = Math.max(q.finish, virtualTime);
+                double f = s + head.bytes / q.weight;
+                if (s < bestStart || (s == bestStart && f < bestFinish)) {
+                    best = q;
+                    bestStart = s;
+                    bestFinish = f;
+                }
+            }
+            if (best == null) break;
+            Waiter head = best.waiters.poll();
+            best.finish = bestFinish;
+            virtualTime = bestStart;
+            head.granted = true;
+            waiting--;
+            inUse++;
+            granted = true;
+        }
+        // clients sans demande en attente et sans avance sur le temps virtuel : inutile de les garder
+        queues.values().removeIf(q -> q.waiters.isEmpty() && q.finish <= virtualTime);
+        if (granted) notifyAll();
+    }
+}
@@ -1,18 +1,61 @@
 package server;
 
+import common.Log;
+
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
+/**
+ * Catalogue du master : journaux CSV en append + index en mémoire.
+ *
+ * Au démarrage l'index est chargé depuis catalogue.snap (binaire), puis seule la fin des CSV
+ * écrite après le snapshot est rejouée. La compaction réécrit les CSV sans les lignes
+ * supprimées (taille -1) ou remplacées, puis écrit un nouveau snapshot.
+ */
 public final class FileCatalogue {
-    public static final String LOGS_DIR = "logs";
+    public static final String LOGS_DIR = System.getProperty("catalogue.dir", "logs");
     public static final String SLAVES_FILE = LOGS_DIR + "/slave.txt";
     public static final String FRAGMENTS_CSV = LOGS_DIR + "/fragments.csv";
     public static final String FILES_CSV = LOGS_DIR + "/files.csv";
+    public static final String PACKED_CSV = LOGS_DIR + "/packed.csv";
+    public static final String RING_CSV = LOGS_DIR + "/ring.csv";
+    public static final String SNAPSHOT_FILE = LOGS_DIR + "/catalogue.snap";
+    // journaux suivis par le snapshot et les réplicas, dans cet ordre
+    private static final Log log = Log.get("master");
+    private static final String[] LOGS = {FILES_CSV, FRAGMENTS_CSV, PACKED_CSV, RING_CSV};
+    public static final int LOG_COUNT = LOGS.length;
+
+    private static final String FRAGMENTS_HEADER = "fileId,fragmentIndex,slaveId,slaveHost,slavePort,fragmentSize\n";
+    private static final String FILES_HEADER = "fileId,name,size,fragments,date,placement\n";
+    private static final String PACKED_HEADER = "fileId,containerId,offset,length\n";
+    private static final String RING_HEADER = "epoch,slaveId,weight,host,port\n";
+
+    private static final int SNAPSHOT_MAGIC = 0x43415432; // "CAT2"
+    private static final int CRC_WINDOW = 4096;
+
+    // index en mémoire ; modifié uniquement sous le verrou de la classe
+    private static final Map<String, FileMetadata> files = Collections.synchronizedMap(new LinkedHashMap<>());
+    private static final Map<String, List<FragmentMapping>> fragments = new ConcurrentHashMap<>();
+    private static final Map<String, PackedLocation> packed = new ConcurrentHashMap<>();
+    private static final Map<Integer, List<RingMember>> rings = new ConcurrentHashMap<>();
+    private static volatile boolean loaded;
+    // lignes appliquées depuis le dernier snapshot (rejouées au prochain démarrage)
+    private static long rowsSinceSnapshot;
+    // change à chaque compaction et à chaque démarrage : les offsets des réplicas ne valent plus
+    private static long generation = System.currentTimeMillis();
+    private static Thread compactor;
 
     private FileCatalogue() {}
 
@@ -20,17 +63,31 @@ public final class FileCatalogue {
         try {
             Files.createDirectories(Paths.get(LOGS_DIR));
 
-            File fragments = new File(FRAGMENTS_CSV);
-            if (!fragments.exists()) {
-                try (FileWriter fw = new FileWriter(fragments, true)) {
-                    fw.write("fileId,fragmentIndex,slaveId,slaveHost,slavePort,fragmentSize\n");
+            File fragmentsCsv = new File(FRAGMENTS_CSV);
+            if (!fragmentsCsv.exists()) {
+                try (FileWriter fw = new FileWriter(fragmentsCsv, true)) {
+                    fw.write(FRAGMENTS_HEADER);
+                }
+            }
+
+            File filesCsv = new File(FILES_CSV);
+            if (!filesCsv.exists()) {
+                try (FileWriter fw = new FileWriter(filesCsv, true)) {
+                    fw.write(FILES_HEADER);
+                }
+            }
+
+            File packedCsv = new File(PACKED_CSV);
+            if (!packedCsv.exists()) {
+                try (FileWriter fw = new FileWriter(packedCsv, true)) {
+                    fw.write(PACKED_HEADER);
                 }
             }
 
-            File files = new File(FILES_CSV);
-            if (!files.exists()) {
-                try (FileWriter fw = new FileWriter(files, true)) {
-                    fw.write("fileId,name,size,fragments,date\n");
+            File ringCsv = new File(RING_CSV);
+            if (!ringCsv.exists()) {
+                try (FileWriter fw = new FileWriter(ringCsv, true)) {
+                    fw.write(RING_HEADER);
                 }
             }
 
@@ -45,105 +102,731 @@ public final class FileCatalogue {
     }
 
     public static synchronized void appendFragmentMapping(String fileId, int fragmentIndex, SlaveInfo slave, int fragmentSize) {
-        String line = String.format("%s,%d,%d,%s,%d,%d\n",
-                escapeCsv(fileId),
-                fragmentIndex,
-                slave.getId(),
-                escapeCsv(slave.getHost()),
-                slave.getPort(),
-                fragmentSize);
+        ensureLoaded();
+        FragmentMapping m = new FragmentMapping();
+        m.fileId = fileId;
+        m.fragmentIndex = fragmentIndex;
+        m.slaveId = slave.getId();
+        m.slaveHost = slave.getHost();
+        m.slavePort = slave.getPort();
+        m.fragmentSize = fragmentSize;
         try (FileWriter fw = new FileWriter(FRAGMENTS_CSV, true)) {
-            fw.write(line);
+            fw.write(formatFragment(m));
+            applyFragment(m);
         } catch (IOException e) {
-            System.err.println("Impossible d'écrire fragments.csv : " + e.getMessage());
+            log.error("Écriture impossible", "fichier", "fragments.csv", "erreur", e.getMessage());
         }
     }
 
-    public static synchronized void appendFileMetadata(String fileId, String name, long size, int fragments) {
-        String date = DateTimeFormatter.ISO_INSTANT.format(Instant.now());
-        String line = String.format("%s,%s,%d,%d,%s\n",
-                escapeCsv(fileId),
-                escapeCsv(name),
-                size,
-                fragments,
-                escapeCsv(date));
+    public static void appendFileMetadata(String fileId, String name, long size, int fragments) {
+        appendFileMetadata(fileId, name, size, fragments, -1, 0);
+    }
+
+    // ringEpoch >= 0 : fragments placés par l'anneau de cette époque, seules les exceptions sont dans fragments.csv
+    public static synchronized void appendFileMetadata(String fileId, String name, long size, int fragments,
+                                                       int ringEpoch, int ringReplicas) {
+        ensureLoaded();
+        FileMetadata fm = new FileMetadata();
+        fm.fileId = fileId;
+        fm.name = name;
+        fm.size = size;
+        fm.fragments = fragments;
+        fm.ringEpoch = ringEpoch;
+        fm.ringReplicas = ringReplicas;
+        fm.date = DateTimeFormatter.ISO_INSTANT.format(Instant.now());
         try (FileWriter fw = new FileWriter(FILES_CSV, true)) {
-            fw.write(line);
+            fw.write(formatFile(fm));
+            applyFile(fm);
         } catch (IOException e) {
-            System.err.println("Impossible d'écrire files.csv : " + e.getMessage());
+            log.error("Écriture impossible", "fichier", "files.csv", "erreur", e.getMessage());
         }
     }
 
-    public static FileMetadata readFileMetadata(String fileId) {
-        try (BufferedReader br = new BufferedReader(new FileReader(FILES_CSV))) {
-            br.readLine(); // skip header
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                String[] parts = splitCsvLine(line);
-                if (parts.length < 5) continue;
-                if (parts[0].equals(fileId)) {
-                    FileMetadata fm = new FileMetadata();
-                    fm.fileId = parts[0];
-                    fm.name = parts[1];
-                    fm.size = Long.parseLong(parts[2]);
-                    fm.fragments = Integer.parseInt(parts[3]);
-                    fm.date = parts[4];
-                    return fm;
-                }
-            }
+    // suppression : ligne de taille -1, appliquée comme les autres et éliminée à la compaction
+    public static synchronized boolean appendFileTombstone(String fileId) {
+        ensureLoaded();
+        FileMetadata current = files.get(fileId);
+        if (current == null) return false;
+        FileMetadata fm = new FileMetadata();
+        fm.fileId = fileId;
+        fm.name = current.name;
+        fm.size = -1;
+        fm.fragments = 0;
+        fm.date = DateTimeFormatter.ISO_INSTANT.format(Instant.now());
+        try (FileWriter fw = new FileWriter(FILES_CSV, true)) {
+            fw.write(formatFile(fm));
+            applyFile(fm);
+            return true;
+        } catch (IOException e) {
+            log.error("Écriture impossible", "fichier", "files.csv", "erreur", e.getMessage());
+            return false;
+        }
+    }
+
+    public static long fileCount() {
+        ensureLoaded();
+        return files.size();
+    }
+
+    public static synchronized void appendPackedLocation(String fileId, String containerId, long offset, long length) {
+        ensureLoaded();
+        PackedLocation pl = new PackedLocation();
+        pl.fileId = fileId;
+        pl.containerId = containerId;
+        pl.offset = offset;
+        pl.length = length;
+        try (FileWriter fw = new FileWriter(PACKED_CSV, true)) {
+            fw.write(formatPacked(pl));
+            applyPacked(pl);
+        } catch (IOException e) {
+            log.error("Écriture impossible", "fichier", "packed.csv", "erreur", e.getMessage());
+        }
+    }
+
+    public static synchronized void appendRingEpoch(List<RingMember> members) {
+        ensureLoaded();
+        try (FileWriter fw = new FileWriter(RING_CSV, true)) {
+            StringBuilder sb = new StringBuilder();
+            for (RingMember m : members) sb.append(formatRing(m));
+            fw.write(sb.toString());
+            for (RingMember m : members) applyRing(m);
         } catch (IOException e) {
-            System.err.println("Erreur lecture files.csv: " + e.getMessage());
+            log.error("Écriture impossible", "fichier", "ring.csv", "erreur", e.getMessage());
         }
-        return null;
     }
 
+    public static List<RingMember> readRing(int epoch) {
+        ensureLoaded();
+        List<RingMember> members = rings.get(epoch);
+        return members == null ? Collections.emptyList() : members;
+    }
+
+    public static int latestRingEpoch() {
+        ensureLoaded();
+        int latest = -1;
+        for (int e : rings.keySet()) latest = Math.max(latest, e);
+        return latest;
+    }
+
+    public static PackedLocation readPackedLocation(String fileId) {
+        ensureLoaded();
+        PackedLocation pl = packed.get(fileId);
+        return pl == null ? null : pl.copy();
+    }
+
+    public static FileMetadata readFileMetadata(String fileId) {
+        ensureLoaded();
+        FileMetadata fm = files.get(fileId);
+        return fm == null ? null : fm.copy();
+    }
+
+    // copies : l'appelant peut les modifier (cas des fichiers regroupés)
     public static List<FragmentMapping> readFragmentMappings(String fileId) {
+        ensureLoaded();
         List<FragmentMapping> list = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(FRAGMENTS_CSV))) {
-            br.readLine(); // skip header
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                String[] parts = splitCsvLine(line);
-                if (parts.length < 6) continue;
-                if (!parts[0].equals(fileId)) continue;
-                FragmentMapping m = new FragmentMapping();
-                m.fileId = parts[0];
-                m.fragmentIndex = Integer.parseInt(parts[1]);
-                m.slaveId = Integer.parseInt(parts[2]);
-                m.slaveHost = parts[3];
-                m.slavePort = Integer.parseInt(parts[4]);
-                m.fragmentSize = Integer.parseInt(parts[5]);
-                list.add(m);
+        List<FragmentMapping> current = fragments.get(fileId);
+        if (current != null) for (FragmentMapping m : current) list.add(m.copy());
+        return list;
+    }
+
+    // toutes les lignes explicites de fragments.csv (fichiers placés par capacité, conteneurs, exceptions)
+    public static List<FragmentMapping> allFragmentMappings() {
+        ensureLoaded();
+        List<FragmentMapping> res = new ArrayList<>();
+        for (List<FragmentMapping> list : fragments.values()) {
+            for (FragmentMapping m : list) res.add(m.copy());
+        }
+        return res;
+    }
+
+    /**
+     * Déplacement d'une copie : la nouvelle ligne et la suppression de l'ancienne sont écrites
+     * en une seule fois. Renvoie false si la copie source n'est plus au catalogue (fichier supprimé).
+     */
+    public static synchronized boolean moveFragment(FragmentMapping from, SlaveInfo to) {
+        ensureLoaded();
+        List<FragmentMapping> current = fragments.get(from.fileId);
+        boolean present = false;
+        if (current != null) {
+            for (FragmentMapping m : current) {
+                if (m.fragmentIndex == from.fragmentIndex && m.slaveId == from.slaveId) present = true;
             }
+        }
+        if (!present) return false;
+        FragmentMapping added = from.copy();
+        added.slaveId = to.getId();
+        added.slaveHost = to.getHost();
+        added.slavePort = to.getPort();
+        FragmentMapping removed = from.copy();
+        removed.fragmentSize = -1;
+        try (FileWriter fw = new FileWriter(FRAGMENTS_CSV, true)) {
+            fw.write(formatFragment(added) + formatFragment(removed));
+            applyFragment(added);
+            applyFragment(removed);
+            return true;
         } catch (IOException e) {
-            System.err.println("Erreur lecture fragments.csv: " + e.getMessage());
+            log.error("Écriture impossible", "fichier", "fragments.csv", "erreur", e.getMessage());
+            return false;
         }
-        return list;
     }
 
     public static List<FileMetadata> listAllFiles() {
+        ensureLoaded();
         List<FileMetadata> res = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(FILES_CSV))) {
-            br.readLine();
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                String[] parts = splitCsvLine(line);
-                if (parts.length < 5) continue;
+        synchronized (files) {
+            for (FileMetadata fm : files.values()) res.add(fm.copy());
+        }
+        return res;
+    }
+
+    // ======================== INDEX EN MÉMOIRE ========================
+
+    private static void ensureLoaded() {
+        if (!loaded) load();
+    }
+
+    /** Charge le snapshot puis rejoue la fin des CSV. Renvoie le nombre de lignes rejouées. */
+    public static synchronized long load() {
+        if (loaded) return 0;
+        return reload();
+    }
+
+    // recharge complète depuis le disque (démarrage, benchmarks)
+    public static synchronized long reload() {
+        clearIndex();
+        long[] offsets = readSnapshot();
+        if (offsets == null) {
+            clearIndex();
+            offsets = new long[LOG_COUNT];
+        }
+        long rows = 0;
+        // files.csv en dernier : une suppression retire aussi les fragments rejoués avant elle
+        try {
+            rows += replay(RING_CSV, offsets[3], 5, parts -> applyRing(parseRing(parts)));
+            rows += replay(FRAGMENTS_CSV, offsets[1], 6, parts -> applyFragment(parseFragment(parts)));
+            rows += replay(PACKED_CSV, offsets[2], 4, parts -> applyPacked(parsePacked(parts)));
+            rows += replay(FILES_CSV, offsets[0], 5, parts -> applyFile(parseFile(parts)));
+        } catch (IOException e) {
+            log.error("Erreur lecture du catalogue", "erreur", e.getMessage());
+        }
+        rowsSinceSnapshot = rows;
+        loaded = true;
+        return rows;
+    }
+
+    private static void clearIndex() {
+        files.clear();
+        fragments.clear();
+        packed.clear();
+        rings.clear();
+    }
+
+    private static void applyRing(RingMember m) {
+        List<RingMember> current = rings.get(m.epoch);
+        List<RingMember> next = current == null ? new ArrayList<>() : new ArrayList<>(current);
+        next.removeIf(o -> o.slaveId == m.slaveId);
+        next.add(m);
+        rings.put(m.epoch, Collections.unmodifiableList(next));
+        rowsSinceSnapshot++;
+    }
+
+    private static void applyFile(FileMetadata fm) {
+        if (fm.size < 0) {
+            files.remove(fm.fileId);
+            fragments.remove(fm.fileId);
+            packed.remove(fm.fileId);
+        } else {
+            files.put(fm.fileId, fm);
+        }
+        rowsSinceSnapshot++;
+    }
+
+    // une ligne remplace celle du même (fragmentIndex, slaveId) ; taille -1 la retire
+    private static void applyFragment(FragmentMapping m) {
+        List<FragmentMapping> current = fragments.get(m.fileId);
+        List<FragmentMapping> next = current == null ? new ArrayList<>() : new ArrayList<>(current);
+        next.removeIf(o -> o.fragmentIndex == m.fragmentIndex && o.slaveId == m.slaveId);
+        if (m.fragmentSize >= 0) next.add(m);
+        if (next.isEmpty()) fragments.remove(m.fileId);
+        else fragments.put(m.fileId, next);
+        rowsSinceSnapshot++;
+    }
+
+    private static void applyPacked(PackedLocation pl) {
+        packed.put(pl.fileId, pl);
+        rowsSinceSnapshot++;
+    }
+
+    private interface RowHandler {
+        void apply(String[] parts);
+    }
+
+    private static long replay(String csv, long offset, int columns, RowHandler handler) throws IOException {
+        File f = new File(csv);
+        if (!f.exists()) return 0;
+        try (FileInputStream fis = new FileInputStream(f)) {
+            fis.getChannel().position(offset);
+            BufferedReader br = new BufferedReader(new InputStreamReader(fis, Charset.defaultCharset()), 1 << 16);
+            if (offset == 0) br.readLine(); // skip header
+            return applyLines(br, columns, handler);
+        }
+    }
+
+    private static long applyLines(BufferedReader br, int columns, RowHandler handler) throws IOException {
+        long rows = 0;
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().isEmpty()) continue;
+            String[] parts = splitCsvLine(line);
+            if (parts.length < columns) continue;
+            try {
+                handler.apply(parts);
+                rows++;
+            } catch (NumberFormatException e) {
+                // en-tête, ou ligne tronquée par un arrêt brutal
+            }
+        }
+        return rows;
+    }
+
+    // ======================== SUIVI PAR LES RÉPLICAS ========================
+
+    /** Fin des CSV à partir d'offsets donnés ; reset si les CSV ont été compactés depuis. */
+    public static class Tail {
+        public long generation;
+        public boolean reset;
+        // dans l'ordre files, fragments, packed, ring
+        public long[] offsets = new long[LOG_COUNT];
+        public byte[][] chunks = new byte[LOG_COUNT][];
+        public boolean complete = true;
+    }
+
+    /**
+     * Lignes complètes écrites après from[] (au plus maxBytes par CSV). Lu sous le verrou :
+     * aucune compaction ne peut remplacer les fichiers pendant la lecture.
+     */
+    public static synchronized Tail readTail(long generation, long[] from, int maxBytes) throws IOException {
+        ensureLoaded();
+        Tail tail = new Tail();
+        tail.generation = FileCatalogue.generation;
+        tail.reset = generation != FileCatalogue.generation;
+        String[] csvs = LOGS;
+        for (int i = 0; i < LOG_COUNT; i++) {
+            long start = tail.reset || i >= from.length ? 0 : from[i];
+            long end = new File(csvs[i]).length();
+            if (start > end) throw new IOException("Offset au-delà de " + csvs[i]);
+            int len = (int) Math.min(maxBytes, end - start);
+            byte[] buf = new byte[len];
+            try (RandomAccessFile raf = new RandomAccessFile(csvs[i], "r")) {
+                raf.seek(start);
+                raf.readFully(buf);
+            }
+            if (start + len < end) {
+                tail.complete = false;
+                int last = len - 1;
+                while (last >= 0 && buf[last] != '\n') last--;
+                buf = Arrays.copyOf(buf, last + 1);
+            }
+            tail.chunks[i] = buf;
+            tail.offsets[i] = start + buf.length;
+        }
+        return tail;
+    }
+
+    /** Côté réplica : index vide, alimenté uniquement par applyTail. */
+    public static synchronized void initEmpty() {
+        clearIndex();
+        loaded = true;
+    }
+
+    public static synchronized void applyTail(Tail tail) throws IOException {
+        if (tail.reset) initEmpty();
+        applyLines(reader(tail.chunks[3]), 5, parts -> applyRing(parseRing(parts)));
+        applyLines(reader(tail.chunks[1]), 6, parts -> applyFragment(parseFragment(parts)));
+        applyLines(reader(tail.chunks[2]), 4, parts -> applyPacked(parsePacked(parts)));
+        applyLines(reader(tail.chunks[0]), 5, parts -> applyFile(parseFile(parts)));
+    }
+
+    private static BufferedReader reader(byte[] chunk) {
+        return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(chunk), Charset.defaultCharset()));
+    }
+
+    // ======================== SNAPSHOT ET COMPACTION ========================
+
+    // offsets des CSV couverts par le snapshot, ou null s'il est absent ou ne correspond plus aux CSV
+    private static long[] readSnapshot() {
+        File snap = new File(SNAPSHOT_FILE);
+        if (!snap.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snap), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) return null;
+            String[] csvs = LOGS;
+            long[] offsets = new long[LOG_COUNT];
+            for (int i = 0; i < LOG_COUNT; i++) {
+                offsets[i] = in.readLong();
+                if (tailCrc(csvs[i], offsets[i]) != in.readLong()) return null;
+            }
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
                 FileMetadata fm = new FileMetadata();
-                fm.fileId = parts[0];
-                fm.name = parts[1];
-                fm.size = Long.parseLong(parts[2]);
-                fm.fragments = Integer.parseInt(parts[3]);
-                fm.date = parts[4];
-                res.add(fm);
+                fm.fileId = in.readUTF();
+                fm.name = in.readUTF();
+                fm.size = in.readLong();
+                fm.fragments = in.readInt();
+                fm.date = in.readUTF();
+                fm.ringEpoch = in.readInt();
+                fm.ringReplicas = in.readInt();
+                files.put(fm.fileId, fm);
+            }
+            n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                PackedLocation pl = new PackedLocation();
+                pl.fileId = in.readUTF();
+                pl.containerId = in.readUTF();
+                pl.offset = in.readLong();
+                pl.length = in.readLong();
+                packed.put(pl.fileId, pl);
             }
+            n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String fileId = in.readUTF();
+                int count = in.readInt();
+                List<FragmentMapping> list = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    FragmentMapping m = new FragmentMapping();
+                    m.fileId = fileId;
+                    m.fragmentIndex = in.readInt();
+                    m.slaveId = in.readInt();
+                    m.slaveHost = in.readUTF();
+                    m.slavePort = in.readInt();
+                    m.fragmentSize = in.readInt();
+                    list.add(m);
+                }
+                fragments.put(fileId, list);
+            }
+            n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                RingMember m = new RingMember();
+                m.epoch = in.readInt();
+                m.slaveId = in.readInt();
+                m.weight = in.readLong();
+                m.host = in.readUTF();
+                m.port = in.readInt();
+                applyRing(m);
+            }
+            return offsets;
         } catch (IOException e) {
-            System.err.println("Erreur listAllFiles: " + e.getMessage());
+            log.warn("Snapshot du catalogue ignoré", "erreur", e.getMessage());
+            return null;
         }
-        return res;
+    }
+
+    // CRC des derniers octets avant offset : détecte un CSV remplacé ou tronqué depuis le snapshot
+    private static long tailCrc(String csv, long offset) throws IOException {
+        File f = new File(csv);
+        if (f.length() < offset) return -1;
+        int len = (int) Math.min(CRC_WINDOW, offset);
+        byte[] buf = new byte[len];
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.seek(offset - len);
+            raf.readFully(buf);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf);
+        return crc.getValue();
+    }
+
+    /**
+     * Réécrit les CSV avec les seules lignes vivantes et écrit le snapshot correspondant.
+     * Les écritures continuent pendant la réécriture ; les lignes ajoutées entre-temps sont
+     * recopiées en fin de CSV compacté et seront rejouées au prochain chargement.
+     */
+    public static void compact() throws IOException {
+        ensureLoaded();
+        List<FileMetadata> liveFiles;
+        List<PackedLocation> livePacked;
+        Map<String, List<FragmentMapping>> liveFragments;
+        List<RingMember> liveRings = new ArrayList<>();
+        long[] before = new long[LOG_COUNT];
+        String[] csvs = LOGS;
+        long counted;
+        synchronized (FileCatalogue.class) {
+            synchronized (files) {
+                liveFiles = new ArrayList<>(files.values());
+            }
+            livePacked = new ArrayList<>(packed.values());
+            liveFragments = new LinkedHashMap<>(fragments);
+            for (List<RingMember> members : new TreeMap<>(rings).values()) liveRings.addAll(members);
+            for (int i = 0; i < LOG_COUNT; i++) before[i] = new File(csvs[i]).length();
+            // lignes couvertes par ce snapshot ; retirées du compte seulement si la bascule réussit
+            counted = rowsSinceSnapshot;
+        }
+
+        Path[] tmp = new Path[LOG_COUNT];
+        for (int i = 0; i < LOG_COUNT; i++) tmp[i] = Paths.get(csvs[i] + ".compact");
+        Path snapTmp = Paths.get(SNAPSHOT_FILE + ".tmp");
+        try {
+            writeCompacted(tmp, snapTmp, before, liveFiles, livePacked, liveFragments, liveRings);
+        } catch (IOException | RuntimeException e) {
+            // journaux pas encore remplacés intacts (un snapshot qui ne leur correspond plus est ignoré
+            // au chargement) ; le compte de lignes est gardé, la compaction sera retentée
+            for (Path p : tmp) Files.deleteIfExists(p);
+            Files.deleteIfExists(snapTmp);
+            throw e;
+        }
+        synchronized (FileCatalogue.class) {
+            rowsSinceSnapshot = Math.max(0, rowsSinceSnapshot - counted);
+        }
+    }
+
+    private static void writeCompacted(Path[] tmp, Path snapTmp, long[] before, List<FileMetadata> liveFiles,
+                                       List<PackedLocation> livePacked, Map<String, List<FragmentMapping>> liveFragments,
+                                       List<RingMember> liveRings) throws IOException {
+        String[] csvs = LOGS;
+        try (Writer w = new BufferedWriter(new FileWriter(tmp[0].toFile()))) {
+            w.write(FILES_HEADER);
+            for (FileMetadata fm : liveFiles) w.write(formatFile(fm));
+        }
+        try (Writer w = new BufferedWriter(new FileWriter(tmp[1].toFile()))) {
+            w.write(FRAGMENTS_HEADER);
+            for (List<FragmentMapping> list : liveFragments.values()) {
+                for (FragmentMapping m : list) w.write(formatFragment(m));
+            }
+        }
+        try (Writer w = new BufferedWriter(new FileWriter(tmp[2].toFile()))) {
+            w.write(PACKED_HEADER);
+            for (PackedLocation pl : livePacked) w.write(formatPacked(pl));
+        }
+        // les époques de l'anneau ne sont jamais supprimées : d'anciens fichiers en dépendent
+        try (Writer w = new BufferedWriter(new FileWriter(tmp[3].toFile()))) {
+            w.write(RING_HEADER);
+            for (RingMember m : liveRings) w.write(formatRing(m));
+        }
+
+        // sur disque avant la bascule : seule copie des métadonnées une fois les anciens journaux remplacés
+        for (int i = 0; i < LOG_COUNT; i++) force(tmp[i]);
+
+        long[] offsets = new long[LOG_COUNT];
+        for (int i = 0; i < LOG_COUNT; i++) offsets[i] = tmp[i].toFile().length();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapTmp.toFile()), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            for (int i = 0; i < LOG_COUNT; i++) {
+                out.writeLong(offsets[i]);
+                out.writeLong(tailCrc(tmp[i].toString(), offsets[i]));
+            }
+            out.writeInt(liveFiles.size());
+            for (FileMetadata fm : liveFiles) {
+                out.writeUTF(fm.fileId);
+                out.writeUTF(fm.name);
+                out.writeLong(fm.size);
+                out.writeInt(fm.fragments);
+                out.writeUTF(fm.date);
+                out.writeInt(fm.ringEpoch);
+                out.writeInt(fm.ringReplicas);
+            }
+            out.writeInt(livePacked.size());
+            for (PackedLocation pl : livePacked) {
+                out.writeUTF(pl.fileId);
+                out.writeUTF(pl.containerId);
+                out.writeLong(pl.offset);
+                out.writeLong(pl.length);
+            }
+            out.writeInt(liveFragments.size());
+            for (Map.Entry<String, List<FragmentMapping>> e : liveFragments.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (FragmentMapping m : e.getValue()) {
+                    out.writeInt(m.fragmentIndex);
+                    out.writeInt(m.slaveId);
+                    out.writeUTF(m.slaveHost);
+                    out.writeInt(m.slavePort);
+                    out.writeInt(m.fragmentSize);
+                }
+            }
+            out.writeInt(liveRings.size());
+            for (RingMember m : liveRings) {
+                out.writeInt(m.epoch);
+                out.writeInt(m.slaveId);
+                out.writeLong(m.weight);
+                out.writeUTF(m.host);
+                out.writeInt(m.port);
+            }
+        }
+        force(snapTmp);
+
+        // bascule : recopie de la fin écrite pendant la compaction, puis remplacement atomique.
+        // Un arrêt entre les deux renames laisse un snapshot dont le CRC ne correspond plus :
+        // le chargement suivant rejoue alors les CSV complets.
+        synchronized (FileCatalogue.class) {
+            boolean replaced = false;
+            try {
+                for (int i = 0; i < LOG_COUNT; i++) {
+                    if (appendTail(Paths.get(csvs[i]), before[i], tmp[i])) force(tmp[i]);
+                    Files.move(tmp[i], Paths.get(csvs[i]), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    replaced = true;
+                }
+                Files.move(snapTmp, Paths.get(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory(Paths.get(LOGS_DIR));
+            } finally {
+                // un CSV remplacé, même sans les autres : les offsets des réplicas ne valent plus
+                if (replaced) generation++;
+            }
+        }
+    }
+
+    // true si des lignes ont été recopiées
+    private static boolean appendTail(Path source, long from, Path dest) throws IOException {
+        long end = source.toFile().length();
+        if (end <= from) return false;
+        try (FileInputStream in = new FileInputStream(source.toFile());
+             FileOutputStream out = new FileOutputStream(dest.toFile(), true)) {
+            in.getChannel().transferTo(from, end - from, out.getChannel());
+        }
+        return true;
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.force(true);
+        }
+    }
+
+    // fsync du dossier pour que les renames survivent à une coupure (Linux ; ignoré où ce n'est pas supporté)
+    private static void syncDirectory(Path dir) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException ignored) {
+            // Windows : ouverture d'un dossier impossible
+        }
+    }
+
+    /** Compaction en arrière-plan dès que minRows lignes ont été ajoutées depuis le dernier snapshot. */
+    public static synchronized void startCompaction(long periodSeconds, long minRows) {
+        if (compactor != null) return;
+        compactor = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(periodSeconds * 1000);
+                    if (pendingRows() >= minRows) {
+                        long debut = System.nanoTime();
+                        compact();
+                        log.info("Catalogue compacté", "ms", (System.nanoTime() - debut) / 1_000_000);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    log.error("Erreur compaction catalogue", "erreur", e.getMessage());
+                }
+            }
+        }, "catalogue-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    public static synchronized long pendingRows() {
+        return rowsSinceSnapshot;
+    }
+
+    // registre des slaves : une ligne par id, la dernière l'emporte
+    public static synchronized void compactSlaves() throws IOException {
+        Path path = Paths.get(SLAVES_FILE);
+        if (!Files.exists(path)) return;
+        Map<String, String> byId = new LinkedHashMap<>();
+        int total = 0;
+        for (String line : Files.readAllLines(path, Charset.defaultCharset())) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            total++;
+            byId.put(line.split(",", 2)[0], line);
+        }
+        if (byId.size() == total) return;
+        Path tmp = Paths.get(SLAVES_FILE + ".tmp");
+        Files.write(tmp, byId.values(), Charset.defaultCharset());
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ======================== FORMAT CSV ========================
+
+    private static String formatFile(FileMetadata fm) {
+        return String.format("%s,%s,%d,%d,%s,%s\n",
+                escapeCsv(fm.fileId),
+                escapeCsv(fm.name),
+                fm.size,
+                fm.fragments,
+                escapeCsv(fm.date),
+                fm.ringEpoch >= 0 ? "ring:" + fm.ringEpoch + ":" + fm.ringReplicas : "");
+    }
+
+    private static String formatRing(RingMember m) {
+        return String.format("%d,%d,%d,%s,%d\n",
+                m.epoch,
+                m.slaveId,
+                m.weight,
+                escapeCsv(m.host),
+                m.port);
+    }
+
+    private static String formatFragment(FragmentMapping m) {
+        return String.format("%s,%d,%d,%s,%d,%d\n",
+                escapeCsv(m.fileId),
+                m.fragmentIndex,
+                m.slaveId,
+                escapeCsv(m.slaveHost),
+                m.slavePort,
+                m.fragmentSize);
+    }
+
+    private static String formatPacked(PackedLocation pl) {
+        return String.format("%s,%s,%d,%d\n",
+                escapeCsv(pl.fileId),
+                escapeCsv(pl.containerId),
+                pl.offset,
+                pl.length);
+    }
+
+    private static FileMetadata parseFile(String[] parts) {
+        FileMetadata fm = new FileMetadata();
+        fm.fileId = parts[0];
+        fm.name = parts[1];
+        fm.size = Long.parseLong(parts[2]);
+        fm.fragments = Integer.parseInt(parts[3]);
+        fm.date = parts[4];
+        // colonne absente des lignes écrites avant le placement par anneau
+        if (parts.length >= 6 && parts[5].startsWith("ring:")) {
+            String[] ring = parts[5].split(":");
+            fm.ringEpoch = Integer.parseInt(ring[1]);
+            fm.ringReplicas = Integer.parseInt(ring[2]);
+        }
+        return fm;
+    }
+
+    private static RingMember parseRing(String[] parts) {
+        RingMember m = new RingMember();
+        m.epoch = Integer.parseInt(parts[0]);
+        m.slaveId = Integer.parseInt(parts[1]);
+        m.weight = Long.parseLong(parts[2]);
+        m.host = parts[3];
+        m.port = Integer.parseInt(parts[4]);
+        return m;
+    }
+
+    private static FragmentMapping parseFragment(String[] parts) {
+        FragmentMapping m = new FragmentMapping();
+        m.fileId = parts[0];
+        m.fragmentIndex = Integer.parseInt(parts[1]);
+        m.slaveId = Integer.parseInt(parts[2]);
+        m.slaveHost = parts[3];
+        m.slavePort = Integer.parseInt(parts[4]);
+        m.fragmentSize = Integer.parseInt(parts[5]);
+        return m;
+    }
+
+    private static PackedLocation parsePacked(String[] parts) {
+        PackedLocation pl = new PackedLocation();
+        pl.fileId = parts[0];
+        pl.containerId = parts[1];
+        pl.offset = Long.parseLong(parts[2]);
+        pl.length = Long.parseLong(parts[3]);
+        return pl;
     }
 
     private static String escapeCsv(String s) {
@@ -155,7 +838,7 @@ public final class FileCatalogue {
         return s;
     }
 
-    private static String[] splitCsvLine(String line) {
+    public static String[] splitCsvLine(String line) {
         List<String> parts = new ArrayList<>();
         StringBuilder sb = new StringBuilder();
         boolean inQuotes = false;
@@ -194,6 +877,47 @@ public final class FileCatalogue {
         public long size;
         public int fragments;
         public String date;
+        // placement par anneau (époque, nombre de copies) ; -1 : emplacements explicites
+        public int ringEpoch = -1;
+        public int ringReplicas;
+
+        FileMetadata copy() {
+            FileMetadata c = new FileMetadata();
+            c.fileId = fileId;
+            c.name = name;
+            c.size = size;
+            c.fragments = fragments;
+            c.date = date;
+            c.ringEpoch = ringEpoch;
+            c.ringReplicas = ringReplicas;
+            return c;
+        }
+    }
+
+    // membre d'une époque de l'anneau de placement ; le poids est figé à la création de l'époque
+    public static class RingMember {
+        public int epoch;
+        public int slaveId;
+        public long weight;
+        public String host;
+        public int port;
+    }
+
+    // petit fichier stocké dans un conteneur partagé (fragment 0 du conteneur)
+    public static class PackedLocation {
+        public String fileId;
+        public String containerId;
+        public long offset;
+        public long length;
+
+        PackedLocation copy() {
+            PackedLocation c = new PackedLocation();
+            c.fileId = fileId;
+            c.containerId = containerId;
+            c.offset = offset;
+            c.length = length;
+            return c;
+        }
     }
 
     public static class FragmentMapping {
@@ -203,5 +927,21 @@ public final class FileCatalogue {
         public String slaveHost;
         public int slavePort;
         public int fragmentSize;
+        // petit fichier regroupé : plage [packedOffset, packedOffset + fragmentSize) du conteneur
+        public boolean packed;
+        public long packedOffset;
+
+        public FragmentMapping copy() {
+            FragmentMapping c = new FragmentMapping();
+            c.fileId = fileId;
+            c.fragmentIndex = fragmentIndex;
+            c.slaveId = slaveId;
+            c.slaveHost = slaveHost;
+            c.slavePort = slavePort;
+            c.fragmentSize = fragmentSize;
+            c.packed = packed;
+            c.packedOffset = packedOffset;
+            return c;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,83 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Anneau de hachage cohérent d'une époque : chaque slave y a un nombre de nœuds virtuels
+ * proportionnel à son poids (capacité figée à la création de l'époque). Un fragment
+ * (fileId, index) va aux n premiers slaves distincts rencontrés dans le sens horaire ;
+ * ajouter ou retirer un slave ne déplace que les fragments des arcs qu'il gagne ou perd.
+ */
+public final class HashRing {
+    // VNODES nœuds virtuels pour WEIGHT_UNIT_MB de capacité
+    private static final int VNODES = Integer.getInteger("ring.vnodes", 128);
+    private static final long WEIGHT_UNIT_MB = Math.max(1, Long.getLong("ring.weightUnitMB", 100L * 1024));
+
+    private final int epoch;
+    private final long[] points;
+    private final int[] owners;
+    private final List<FileCatalogue.RingMember> members;
+
+    public HashRing(int epoch, List<FileCatalogue.RingMember> members) {
+        this.epoch = epoch;
+        this.members = members;
+        // nombre de nœuds fonction du seul poids du slave : les autres membres ne bougent pas quand il arrive
+        List<long[]> nodes = new ArrayList<>();
+        for (FileCatalogue.RingMember m : members) {
+            long count = Math.round((double) VNODES * m.weight / WEIGHT_UNIT_MB);
+            count = Math.max(1, Math.min(16L * VNODES, count));
+            for (int v = 0; v < count; v++) nodes.add(new long[]{hash(m.slaveId + "#" + v), m.slaveId});
+        }
+        nodes.sort((a, b) -> Long.compare(a[0], b[0]));
+        points = new long[nodes.size()];
+        owners = new int[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            points[i] = nodes.get(i)[0];
+            owners[i] = (int) nodes.get(i)[1];
+        }
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public List<FileCatalogue.RingMember> getMembers() {
+        return members;
+    }
+
+    public FileCatalogue.RingMember member(int slaveId) {
+        for (FileCatalogue.RingMember m : members) if (m.slaveId == slaveId) return m;
+        return null;
+    }
+
+    /** Ids des n slaves (distincts) responsables du fragment, le premier étant le principal. */
+    public List<Integer> locate(String fileId, int fragmentIndex, int n) {
+        List<Integer> res = new ArrayList<>(n);
+        if (points.length == 0) return res;
+        int i = Arrays.binarySearch(points, hash(fileId + ":" + fragmentIndex));
+        if (i < 0) i = -i - 1;
+        for (int step = 0; step < points.length && res.size() < Math.min(n, members.size()); step++) {
+            int owner = owners[(i + step) % points.length];
+            if (!res.contains(owner)) res.add(owner);
+        }
+        return res;
+    }
+
+    // FNV-1a 64 bits suivi du mélange final de murmur3 : bonne dispersion pour des clés proches
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,231 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import common.LatencyHistogram;
+import common.Metrics;
+import common.Tracer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Lectures de fragments "hedgées" : si la copie principale ne répond pas avant le
+ * percentile hedge.percentile de la latence récente de son slave, une seconde requête
+ * part vers une autre copie ; la première réponse gagne et l'autre connexion est fermée.
+ */
+public class HedgedReader {
+    static final int CONNECT_TIMEOUT_MS = Integer.getInteger("slave.connectTimeoutMs", 3000);
+    static final int READ_TIMEOUT_MS = Integer.getInteger("slave.readTimeoutMs", 30000);
+    private static final double HEDGE_PERCENTILE = Double.parseDouble(System.getProperty("hedge.percentile", "95"));
+    private static final long HEDGE_MIN_DELAY_MS = Long.getLong("hedge.minDelayMs", 20);
+    private static final long WINDOW_MS = 60_000;
+    private static final int MIN_SAMPLES = 20;
+
+    private final Gson gson = new Gson();
+    private final Metrics metrics;
+    private final Tracer tracer;
+    private final Map<Integer, SlaveLatency> latencies = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "hedged-read");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // deux fenêtres tournantes : la précédente (complète) sert au seuil, la courante se remplit
+    private static class SlaveLatency {
+        volatile LatencyHistogram current = new LatencyHistogram();
+        volatile LatencyHistogram previous = new LatencyHistogram();
+        volatile long rotatedAt = System.currentTimeMillis();
+
+        void record(long nanos) {
+            long now = System.currentTimeMillis();
+            if (now - rotatedAt > WINDOW_MS) {
+                synchronized (this) {
+                    if (now - rotatedAt > WINDOW_MS) {
+                        previous = current;
+                        current = new LatencyHistogram();
+                        rotatedAt = now;
+                    }
+                }
+            }
+            current.recordNanos(nanos);
+        }
+
+        LatencyHistogram reference() {
+            return previous.count() >= MIN_SAMPLES ? previous : current;
+        }
+    }
+
+    private static class Attempt implements Callable<byte[]> {
+        final HedgedReader reader;
+        final FileCatalogue.FragmentMapping mapping;
+        final long offset, length;
+        // trace du thread appelant : la tentative tourne sur un thread du pool
+        final String trace = Tracer.current();
+        volatile Socket socket;
+
+        Attempt(HedgedReader reader, FileCatalogue.FragmentMapping mapping, long offset, long length) {
+            this.reader = reader;
+            this.mapping = mapping;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public byte[] call() throws Exception {
+            long start = System.nanoTime();
+            String slave = String.valueOf(mapping.slaveId), fragment = String.valueOf(mapping.fragmentIndex);
+            try (Socket s = openSlaveSocket(mapping.slaveHost, mapping.slavePort)) {
+                socket = s;
+                reader.tracer.span("slave.connect", trace, start, "slave", slave, "fragment", fragment);
+                long get = System.nanoTime();
+                byte[] data = reader.fetch(s, mapping, offset, length, trace);
+                reader.tracer.span("slave.get", trace, get, "slave", slave, "fragment", fragment, "bytes", String.valueOf(data.length));
+                reader.record(mapping.slaveId, System.nanoTime() - start);
+                return data;
+            }
+        }
+
+        void cancel() {
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    public HedgedReader(Metrics metrics, Tracer tracer) {
+        this.metrics = metrics;
+        this.tracer = tracer;
+    }
+
+    public static Socket openSlaveSocket(String host, int port) throws IOException {
+        Socket s = new Socket();
+        s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        s.setSoTimeout(READ_TIMEOUT_MS);
+        return s;
+    }
+
+    public void record(int slaveId, long nanos) {
+        latencies.computeIfAbsent(slaveId, k -> new SlaveLatency()).record(nanos);
+    }
+
+    /** Délai avant d'envoyer la requête de secours vers une autre copie. */
+    public long hedgeDelayMs(int slaveId) {
+        SlaveLatency l = latencies.get(slaveId);
+        if (l == null) return HEDGE_MIN_DELAY_MS;
+        LatencyHistogram h = l.reference();
+        if (h.count() < MIN_SAMPLES) return Math.max(HEDGE_MIN_DELAY_MS, h.maxMicros() / 1000);
+        return Math.max(HEDGE_MIN_DELAY_MS, h.percentileMicros(HEDGE_PERCENTILE) / 1000);
+    }
+
+    /** Copies triées : slaves non marqués morts d'abord, puis par latence médiane récente. */
+    public List<FileCatalogue.FragmentMapping> order(List<FileCatalogue.FragmentMapping> replicas, Map<Integer, Boolean> alive) {
+        List<FileCatalogue.FragmentMapping> sorted = new ArrayList<>(replicas);
+        sorted.sort(Comparator.<FileCatalogue.FragmentMapping>comparingInt(m -> Boolean.FALSE.equals(alive.get(m.slaveId)) ? 1 : 0)
+                .thenComparingLong(m -> {
+                    SlaveLatency l = latencies.get(m.slaveId);
+                    return l == null ? 0 : l.reference().percentileMicros(50);
+                }));
+        return sorted;
+    }
+
+    /**
+     * Lit un fragment (ou la plage offset/length si length >= 0) depuis l'une des copies.
+     * Les copies sont essayées dans l'ordre donné.
+     */
+    public byte[] read(List<FileCatalogue.FragmentMapping> replicas, long offset, long length) throws IOException {
+        CompletionService<byte[]> done = new ExecutorCompletionService<>(executor);
+        List<Attempt> attempts = new ArrayList<>();
+        List<Future<byte[]>> futures = new ArrayList<>();
+        int next = 0;
+        try {
+            Attempt first = new Attempt(this, replicas.get(next++), offset, length);
+            attempts.add(first);
+            futures.add(done.submit(first));
+            int pending = 1;
+            long delay = hedgeDelayMs(first.mapping.slaveId);
+            IOException lastError = null;
+
+            while (pending > 0) {
+                Future<byte[]> f = next < replicas.size()
+                        ? done.poll(delay, TimeUnit.MILLISECONDS)
+                        : done.poll(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (f == null) {
+                    if (next >= replicas.size()) throw new IOException("Timeout lecture fragment");
+                    // la copie en cours est lente : requête de secours
+                    Attempt hedge = new Attempt(this, replicas.get(next++), offset, length);
+                    attempts.add(hedge);
+                    futures.add(done.submit(hedge));
+                    pending++;
+                    metrics.counter("hedged_reads_total").increment();
+                    continue;
+                }
+                pending--;
+                try {
+                    byte[] data = f.get();
+                    if (attempts.size() > 1 && futures.indexOf(f) > 0) metrics.counter("hedge_wins_total").increment();
+                    return data;
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    metrics.counter("get_errors_total").increment();
+                    if (pending == 0 && next < replicas.size()) {
+                        // échec rapide : bascule immédiate sur la copie suivante
+                        Attempt failover = new Attempt(this, replicas.get(next++), offset, length);
+                        attempts.add(failover);
+                        futures.add(done.submit(failover));
+                        pending++;
+                    }
+                }
+            }
+            throw lastError != null ? lastError : new IOException("Aucune copie disponible");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Lecture interrompue", e);
+        } finally {
+            for (Attempt a : attempts) a.cancel();
+            for (Future<byte[]> f : futures) f.cancel(true);
+        }
+    }
+
+    private byte[] fetch(Socket socket, FileCatalogue.FragmentMapping m, long offset, long length, String trace) throws IOException {
+        OutputStream rawOut = socket.getOutputStream();
+        DataInputStream rawIn = new DataInputStream(socket.getInputStream());
+
+        JsonObject req = new JsonObject();
+        req.addProperty("type", "GET_FRAGMENT");
+        JsonObject data = new JsonObject();
+        data.addProperty("file_id", m.fileId);
+        data.addProperty("fragment_id", m.fragmentIndex);
+        if (length >= 0) {
+            data.addProperty("offset", offset);
+            data.addProperty("length", length);
+        }
+        if (trace != null) data.addProperty("trace", trace);
+        req.add("data", data);
+        rawOut.write((gson.toJson(req) + "\n").getBytes(StandardCharsets.UTF_8));
+        rawOut.flush();
+
+        String respLine = MainServer.readJsonLine(rawIn);
+        if (respLine == null) throw new IOException("Slave non reponse");
+        JsonObject resp = gson.fromJson(respLine, JsonObject.class);
+        if (!resp.getAsJsonObject("data").has("length")) throw new IOException("Slave: " + respLine);
+        byte[] content = new byte[(int) resp.getAsJsonObject("data").get("length").getAsLong()];
+        rawIn.readFully(content);
+        metrics.counter(Metrics.label("slave_bytes_in_total", "slave", String.valueOf(m.slaveId))).add(content.length);
+        return content;
+    }
+}
@@ -3,12 +3,18 @@ package server;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import common.ClusterTokens;
+import common.Log;
+import common.Metrics;
+import common.Tracer;
 import slaves.Slave;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
@@ -17,16 +23,71 @@ import static java.lang.Thread.sleep;
 public class MainServer {
     private static final int PORT = 5000;
     private static final int FRAGMENT_SIZE = 1024 * 1024;
+    private static final int CATALOGUE_TAIL_MAX_BYTES = 1024 * 1024;
+    private static final int BATCH_MAX_FRAGMENTS = Integer.getInteger("batch.maxFragments", 8);
+    private static final long BATCH_MAX_BYTES = Long.getLong("batch.maxBytes", 8L * 1024 * 1024);
+    // budget mémoire global des uploads, en emplacements de FRAGMENT_SIZE
+    private static final int UPLOAD_BUDGET_SLOTS = Math.max(1, Integer.getInteger("upload.memoryBudgetMB", 256) * 1024 * 1024 / FRAGMENT_SIZE);
+    // fragments par GET_SIGNATURE : la réponse doit tenir dans une ligne JSON de 10 000 octets
+    private static final int SIGNATURE_BATCH = 32;
+    private static final long MASTER_TOKEN_TTL_MS = Long.getLong("cluster.masterTokenTtlSec", 300L) * 1000;
+    private static final int UPLOAD_WINDOW = Integer.getInteger("upload.window", 2 * BATCH_MAX_FRAGMENTS);
+    private static final int REPLICATION = Math.max(1, Integer.getInteger("replication.factor", 1));
+    // placement=hash : emplacement calculé par anneau cohérent, sinon le slave le plus libre
+    private static final boolean HASH_PLACEMENT = "hash".equals(System.getProperty("placement", "capacity"));
+    private static final java.util.Map<Integer, HashRing> rings = new java.util.concurrent.ConcurrentHashMap<>();
+    private static final java.util.concurrent.Semaphore uploadBudget = new java.util.concurrent.Semaphore(UPLOAD_BUDGET_SLOTS);
     private static final Gson gson = new Gson();
-    private static java.util.List<SlaveInfo> slaves = new java.util.ArrayList<>();
+    private static java.util.List<SlaveInfo> slaves = new java.util.concurrent.CopyOnWriteArrayList<>();
+    private static final Metrics metrics = new Metrics("master");
+    private static final Log log = Log.get("master");
+    private static final Tracer tracer = new Tracer("master");
+    private static final HedgedReader hedgedReader = new HedgedReader(metrics, tracer);
+    private static final Rebalancer rebalancer = new Rebalancer(metrics);
+    private static final DirectUploadPlanner directUploads = new DirectUploadPlanner(metrics);
+    // réparations demandées par les scrubbers des slaves, une à la fois
+    private static final java.util.concurrent.ExecutorService repairs = java.util.concurrent.Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "scrub-repair");
+        t.setDaemon(true);
+        return t;
+    });
+    // voie rapide : métadonnées et transferts <= SMALL_REQUEST_BYTES ; le reste passe par l'ordonnanceur
+    private static final long SMALL_REQUEST_BYTES = Long.getLong("scheduler.smallBytes", 4L * 1024 * 1024);
+    private static final FairScheduler scheduler = new FairScheduler(Integer.getInteger("scheduler.bulkSlots", 8),
+            System.getProperty("scheduler.weights", ""), metrics);
+    private static final SmallFilePacker packer = new SmallFilePacker(MainServer::storeContainer,
+            Long.getLong("pack.threshold", 64 * 1024), FRAGMENT_SIZE, Long.getLong("pack.lingerMs", 20));
 
     public static void main(String[] args) throws IOException {
-        System.out.println("démarrage du serveur sur le port " + PORT);
+        start(args.length >= 1 ? Integer.parseInt(args[0]) : PORT);
+    }
+
+    public static void start(int port) throws IOException {
+        log.info("Démarrage du serveur", "port", port);
 
         FileCatalogue.ensureLogsDir();
-        System.out.println("Chargement des slaves ....");
+        log.info("Chargement des slaves");
+        FileCatalogue.compactSlaves();
         loadSlaveFromFile();
-        System.out.println(slaves.size() + " slave(s) enregistré(s)");
+        log.info("Slaves enregistrés", "slaves", slaves.size());
+
+        long loadStart = System.nanoTime();
+        long replayed = FileCatalogue.load();
+        log.info("Catalogue chargé", "fichiers", FileCatalogue.fileCount(), "lignes_rejouees", replayed,
+                "ms", (System.nanoTime() - loadStart) / 1_000_000);
+        if (HASH_PLACEMENT) updateRing();
+        if (Boolean.parseBoolean(System.getProperty("rebalance.enabled", "true"))) rebalancer.start();
+        FileCatalogue.startCompaction(Long.getLong("catalogue.compactIntervalSec", 60L),
+                Long.getLong("catalogue.compactMinRows", 10_000L));
+
+        metrics.gauge("catalogue_files", FileCatalogue::fileCount);
+        metrics.gauge("catalogue_pending_rows", FileCatalogue::pendingRows);
+        metrics.gauge("upload_budget_free_bytes", () -> (long) uploadBudget.availablePermits() * FRAGMENT_SIZE);
+        metrics.gauge("slaves_registered", () -> slaves.size());
+        metrics.gauge("slaves_alive", () -> slaves.stream().filter(s -> Boolean.TRUE.equals(s.getActif())).count());
+        metrics.gauge("log_dropped", Log::dropped);
+        metrics.startReporting(Paths.get(FileCatalogue.LOGS_DIR, "metrics.prom"), 10);
+        tracer.startDumping(Paths.get(FileCatalogue.LOGS_DIR, "trace.json"), Long.getLong("trace.dumpSec", 10L));
 
         Thread ping = new Thread(() -> {
             while (true) {
@@ -41,14 +102,17 @@ public class MainServer {
         ping.setDaemon(true);
         ping.start();
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
             while (true) {
                 Socket client = serverSocket.accept();
                 new Thread(() -> {
+                    metrics.level("connections").increment();
                     try {
                         handle(client);
                     } catch (IOException e) {
-                        e.printStackTrace();
+                        log.error("Erreur connexion client", e);
+                    } finally {
+                        metrics.level("connections").decrement();
                     }
                 }, "client-thread").start();
             }
@@ -60,12 +124,65 @@ public class MainServer {
         String line = readJsonLine(rawIn);
         if (line == null) { client.close(); return; }
 
-        if (line.contains("REGISTER")) {
+        // trace de l'opération client ("TRACE <id>" avant la commande), sinon une nouvelle
+        String trace = null;
+        if (line.startsWith("TRACE ")) {
+            trace = line.substring(6).trim();
+            line = readJsonLine(rawIn);
+            if (line == null) { client.close(); return; }
+        }
+        // messages des slaves (JSON) : pas de trace
+        if (line.startsWith("{")) {
+            dispatch(client, rawIn, line);
+            return;
+        }
+        Tracer.setCurrent(trace != null ? trace : Tracer.newTraceId());
+        long start = System.nanoTime();
+        try {
+            dispatch(client, rawIn, line);
+        } finally {
+            int space = line.indexOf(' ');
+            tracer.span("master." + (space < 0 ? line : line.substring(0, space)), start);
+            Tracer.setCurrent(null);
+        }
+    }
+
+    private static void dispatch(Socket client, InputStream rawIn, String line) throws IOException {
+        if (line.contains("\"SCRUB_REPORT\"")) {
+            handleScrubReport(client, line);
+        } else if (line.contains("REGISTER")) {
             registerSlave(client, line);
+        } else if (line.equals("UPLOAD_PLAN")) {
+            handleUploadPlan(client, rawIn);
+        } else if (line.startsWith("UPLOAD_COMMIT")) {
+            String[] parts = line.split("\\s+", 2);
+            handleUploadCommit(client, rawIn, parts.length >= 2 ? parts[1].trim() : "");
+        } else if (line.equals("UPLOAD_SESSION")) {
+            handleUploadSession(client, rawIn);
+        } else if (line.startsWith("UPLOAD_DELTA")) {
+            String[] parts = line.split("\\s+", 2);
+            handleUploadDelta(client, rawIn, parts.length >= 2 ? parts[1].trim() : "");
         } else if (line.startsWith("UPLOAD")) {
-            handleClientUpload(client, rawIn);
+            handleClientUpload(client, rawIn, line.equals("UPLOAD FLOW"));
         } else if (line.equals("LIST")) {
             handleList(client);
+        } else if (line.equals("STATS")) {
+            handleStats(client);
+        } else if (line.startsWith("CATALOGUE_TAIL")) {
+            handleCatalogueTail(client, line.split("\\s+"));
+        } else if (line.startsWith("SIGNATURES")) {
+            String[] parts = line.split("\\s+", 2);
+            handleSignatures(client, parts.length >= 2 ? parts[1].trim() : "");
+        } else if (line.startsWith("FRAGMENTS")) {
+            String[] parts = line.split("\\s+", 2);
+            handleFragmentMap(client, parts.length >= 2 ? parts[1].trim() : "");
+        } else if (line.startsWith("DELETE")) {
+            String[] parts = line.split("\\s+", 2);
+            handleClientDelete(client, parts.length >= 2 ? parts[1].trim() : "");
+        } else if (line.startsWith("DOWNLOAD_RANGE")) {
+            String[] parts = line.split("\\s+");
+            if (parts.length < 4) { client.close(); return; }
+            handleClientRangeRead(client, parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
         } else if (line.startsWith("DOWNLOAD")) {
             String[] parts = line.split("\\s+", 2);
             String fileId = parts.length >= 2 ? parts[1].trim() : "";
@@ -74,7 +191,7 @@ public class MainServer {
             client.close();
         }
     }
-    private static void handleList(Socket client) throws IOException {
+    static void handleList(Socket client) throws IOException {
         List<FileCatalogue.FileMetadata> files = FileCatalogue.listAllFiles();
 
         JsonArray array = new JsonArray();
@@ -94,58 +211,689 @@ public class MainServer {
             out.writeUTF(gson.toJson(array));
             out.flush();
         } catch (IOException e) {
-            System.err.println("Erreur envoi LIST response: " + e.getMessage());
+            log.error("Erreur envoi réponse LIST", "erreur", e.getMessage());
+        }
+    }
+
+    // fichier + emplacements de chaque fragment (toutes les copies), pour les clients et les réplicas
+    static void handleFragmentMap(Socket client, String fileId) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
+            FileCatalogue.FileMetadata meta = FileCatalogue.readFileMetadata(fileId);
+            if (meta == null) {
+                out.writeUTF("ERROR");
+                out.writeUTF("Fichier introuvable: " + fileId);
+                return;
+            }
+            JsonObject obj = new JsonObject();
+            obj.addProperty("fileId", meta.fileId);
+            obj.addProperty("name", meta.name);
+            obj.addProperty("size", meta.size);
+            obj.addProperty("fragments", meta.fragments);
+            obj.addProperty("date", meta.date);
+            java.util.TreeMap<Integer, JsonArray> byIndex = new java.util.TreeMap<>();
+            for (FileCatalogue.FragmentMapping m : resolveMappings(fileId, meta)) {
+                JsonObject loc = new JsonObject();
+                loc.addProperty("slaveId", m.slaveId);
+                loc.addProperty("host", m.slaveHost);
+                loc.addProperty("port", m.slavePort);
+                loc.addProperty("size", m.fragmentSize);
+                if (m.packed) loc.addProperty("packedOffset", m.packedOffset);
+                byIndex.computeIfAbsent(m.fragmentIndex, k -> new JsonArray()).add(loc);
+            }
+            JsonArray locations = new JsonArray();
+            for (JsonArray replicas : byIndex.values()) locations.add(replicas);
+            obj.add("locations", locations);
+            out.writeUTF("OK");
+            out.writeUTF(gson.toJson(obj));
+            out.flush();
+        }
+    }
+
+    // CATALOGUE_TAIL <generation> <offset files> <offset fragments> <offset packed> <offset ring>
+    private static void handleCatalogueTail(Socket client, String[] parts) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            if (parts.length < 2) {
+                out.writeUTF("ERROR");
+                return;
+            }
+            long[] from = new long[parts.length - 2];
+            for (int i = 0; i < from.length; i++) from[i] = Long.parseLong(parts[i + 2]);
+            FileCatalogue.Tail tail = FileCatalogue.readTail(Long.parseLong(parts[1]), from, CATALOGUE_TAIL_MAX_BYTES);
+            out.writeUTF("OK");
+            out.writeLong(tail.generation);
+            out.writeBoolean(tail.reset);
+            out.writeBoolean(tail.complete);
+            for (int i = 0; i < FileCatalogue.LOG_COUNT; i++) {
+                out.writeLong(tail.offsets[i]);
+                out.writeInt(tail.chunks[i].length);
+                out.write(tail.chunks[i]);
+            }
+            out.flush();
+            metrics.counter("catalogue_tail_total").increment();
+        }
+    }
+
+    // la ligne de suppression est écrite d'abord ; les fragments sont ensuite effacés au mieux.
+    // Emplacements résolus avant la suppression (anneau compris) : elle efface l'époque et le regroupement
+    // du fichier ; la plage d'un conteneur partagé n'est pas un fragment à effacer.
+    private static void handleClientDelete(Socket client, String fileId) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
+            FileCatalogue.FileMetadata meta = FileCatalogue.readFileMetadata(fileId);
+            List<FileCatalogue.FragmentMapping> mappings = new ArrayList<>();
+            if (meta != null) {
+                for (FileCatalogue.FragmentMapping m : resolveMappings(fileId, meta)) {
+                    if (!m.packed) mappings.add(m);
+                }
+            }
+            if (meta == null || !FileCatalogue.appendFileTombstone(fileId)) {
+                out.writeUTF("ERROR");
+                out.writeUTF("Fichier introuvable: " + fileId);
+                return;
+            }
+            int failed = 0;
+            for (FileCatalogue.FragmentMapping m : mappings) {
+                if (!deleteFragmentOnSlave(m)) failed++;
+            }
+            if (failed > 0) log.warn("Fragments non supprimés sur les slaves", "file", fileId, "fragments", failed);
+            metrics.counter("deletes_total").increment();
+            out.writeUTF("OK");
+            out.writeUTF(meta.name);
+            out.flush();
+        }
+    }
+
+    // avec cluster.secret, un slave n'accepte écritures, liens et suppressions que signés par le master
+    // (ou, pour un STORE_FRAGMENT, munis d'un jeton d'upload direct)
+    static void signSlaveRequest(String type, JsonObject data, int slaveId, String targets) {
+        if (!ClusterTokens.isConfigured()) return;
+        long expires = System.currentTimeMillis() + MASTER_TOKEN_TTL_MS;
+        data.addProperty("master_expires", expires);
+        data.addProperty("master_token", ClusterTokens.masterToken(type, String.valueOf(slaveId), expires, targets));
+    }
+
+    static boolean deleteFragmentOnSlave(FileCatalogue.FragmentMapping m) {
+        try (Socket socket = HedgedReader.openSlaveSocket(m.slaveHost, m.slavePort);
+             OutputStream out = socket.getOutputStream();
+             InputStream in = socket.getInputStream()) {
+            JsonObject req = new JsonObject();
+            req.addProperty("type", "DELETE_FRAGMENT");
+            JsonObject data = new JsonObject();
+            data.addProperty("file_id", m.fileId);
+            data.addProperty("fragment_id", m.fragmentIndex);
+            Tracer.inject(data);
+            signSlaveRequest("DELETE_FRAGMENT", data, m.slaveId, ClusterTokens.fragment(m.fileId, m.fragmentIndex, -1));
+            req.add("data", data);
+            out.write((gson.toJson(req) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String resp = readJsonLine(in);
+            return resp != null && resp.contains("DELETE_ACK");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void handleStats(Socket client) throws IOException {
+        JsonObject stats = metrics.toJson();
+        JsonArray array = new JsonArray();
+        for (SlaveInfo s : slaves) {
+            String id = String.valueOf(s.getId());
+            JsonObject obj = new JsonObject();
+            obj.addProperty("id", s.getId());
+            obj.addProperty("host", s.getHost());
+            obj.addProperty("port", s.getPort());
+            obj.addProperty("capacity", s.getCapacity());
+            obj.addProperty("actif", Boolean.TRUE.equals(s.getActif()));
+            obj.addProperty("bytes_out_per_sec", metrics.rate(Metrics.label("slave_bytes_out_total", "slave", id)));
+            obj.addProperty("bytes_in_per_sec", metrics.rate(Metrics.label("slave_bytes_in_total", "slave", id)));
+            array.add(obj);
+        }
+        stats.add("slaves", array);
+
+        try (DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
+            out.writeUTF("OK");
+            out.writeUTF(gson.toJson(stats));
+            out.flush();
+        } catch (IOException e) {
+            log.error("Erreur envoi réponse STATS", "erreur", e.getMessage());
+        }
+    }
+
+    /**
+     * Upload d'un fichier. En mode FLOW le client n'envoie un fragment que s'il a un crédit :
+     * le master accorde des crédits ("CREDIT" + int) à mesure qu'il réserve de la place dans le
+     * budget mémoire global, ce qui transforme une surcharge en ralentissement côté client.
+     */
+    private static void handleClientUpload(Socket client, InputStream rawIn, boolean flow) throws IOException {
+        try (DataInputStream in = new DataInputStream(rawIn);
+             DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
+            receiveUpload(client, in, out, flow);
+        }
+    }
+
+    // plusieurs fichiers sur une même connexion (upload en masse) : "FILE" avant chacun, "END" pour finir.
+    // Un échec laisse le flux dans un état inconnu : la session est alors fermée, le client se reconnecte.
+    private static void handleUploadSession(Socket client, InputStream rawIn) throws IOException {
+        metrics.counter("upload_sessions_total").increment();
+        client.setTcpNoDelay(true);
+        try (DataInputStream in = new DataInputStream(rawIn);
+             DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
+            while ("FILE".equals(in.readUTF())) {
+                if (!receiveUpload(client, in, out, true)) break;
+            }
+        } catch (EOFException e) {
+            // client parti sans END
+        }
+    }
+
+    // upload direct, étape 1 : emplacements et jetons d'écriture par fragment ; RELAY si le client
+    // doit passer par le master (petit fichier à regrouper, ou pas de secret de cluster configuré)
+    private static void handleUploadPlan(Socket client, InputStream rawIn) throws IOException {
+        try (DataInputStream in = new DataInputStream(rawIn);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            String fileName = in.readUTF();
+            long fileSize = in.readLong();
+            if (!ClusterTokens.isConfigured() || packer.accepts(fileSize)) {
+                out.writeUTF("RELAY");
+                out.flush();
+                return;
+            }
+            DirectUploadPlanner.Plan plan = planDirectUpload(fileName, fileSize);
+            if (plan == null) {
+                out.writeUTF("ERROR: Aucun slave disponible");
+                out.flush();
+                return;
+            }
+            directUploads.register(plan);
+
+            out.writeUTF("PLAN");
+            out.writeUTF(plan.fileId);
+            out.writeInt(plan.fragmentSize);
+            out.writeInt(plan.fragmentCount);
+            out.writeLong(plan.expiresAt);
+            for (int i = 0; i < plan.fragmentCount; i++) {
+                List<SlaveInfo> targets = plan.targets.get(i);
+                out.writeInt(targets.size());
+                for (SlaveInfo s : targets) {
+                    out.writeInt(s.getId());
+                    out.writeUTF(s.getHost());
+                    out.writeInt(s.getPort());
+                    out.writeUTF(directUploads.token(plan, i, s));
+                }
+            }
+            out.flush();
         }
     }
 
-    private static void handleClientUpload(Socket client, InputStream rawIn) throws IOException {
+    private static DirectUploadPlanner.Plan planDirectUpload(String fileName, long fileSize) {
+        DirectUploadPlanner.Plan plan = new DirectUploadPlanner.Plan();
+        plan.fileId = UUID.randomUUID().toString();
+        plan.fileName = fileName;
+        plan.fileSize = fileSize;
+        plan.fragmentSize = FRAGMENT_SIZE;
+        plan.fragmentCount = (int) Math.ceil((double) fileSize / FRAGMENT_SIZE);
+        plan.expiresAt = directUploads.newExpiry();
+        plan.explicit = new boolean[plan.fragmentCount];
+
+        HashRing ring = HASH_PLACEMENT ? currentRing() : null;
+        if (ring != null) plan.ringEpoch = ring.getEpoch();
+        // hors anneau : le plus libre d'abord, en tenant compte de ce que le plan lui a déjà donné
+        java.util.Map<Integer, Long> planned = new java.util.HashMap<>();
+        for (int i = 0; i < plan.fragmentCount; i++) {
+            List<SlaveInfo> targets = new ArrayList<>();
+            if (ring != null) {
+                plan.explicit[i] = ringTargets(ring.locate(plan.fileId, i, REPLICATION), targets);
+            } else {
+                List<SlaveInfo> candidates = pickSlaves(slaves.size());
+                candidates.sort(Comparator.comparingLong((SlaveInfo s) -> s.getCapacity() - planned.getOrDefault(s.getId(), 0L)).reversed());
+                targets.addAll(candidates.subList(0, Math.min(REPLICATION, candidates.size())));
+                plan.explicit[i] = true;
+            }
+            if (targets.isEmpty()) return null;
+            for (SlaveInfo s : targets) planned.merge(s.getId(), plan.sizeOf(i), Long::sum);
+            plan.targets.add(targets);
+        }
+        return plan;
+    }
+
+    // upload direct, étape 2 : le client rapporte les accusés signés des slaves ; le fichier n'entre
+    // au catalogue que si chaque fragment a au moins une copie confirmée
+    private static void handleUploadCommit(Socket client, InputStream rawIn, String fileId) throws IOException {
         try (DataInputStream in = new DataInputStream(rawIn);
              DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
+            int count = in.readInt();
+            int[] indexes = new int[count];
+            int[] slaveIds = new int[count];
+            String[] receipts = new String[count];
+            for (int r = 0; r < count; r++) {
+                indexes[r] = in.readInt();
+                slaveIds[r] = in.readInt();
+                receipts[r] = in.readUTF();
+            }
+
+            DirectUploadPlanner.Plan plan = directUploads.take(fileId);
+            if (plan == null) {
+                out.writeUTF("ERROR: plan inconnu ou expiré");
+                out.flush();
+                return;
+            }
+            List<List<SlaveInfo>> stored = new ArrayList<>();
+            for (int i = 0; i < plan.fragmentCount; i++) stored.add(new ArrayList<>());
+            for (int r = 0; r < count; r++) {
+                int i = indexes[r];
+                SlaveInfo target = null;
+                if (i >= 0 && i < plan.fragmentCount) {
+                    for (SlaveInfo s : plan.targets.get(i)) if (s.getId() == slaveIds[r]) target = s;
+                }
+                if (target == null || !directUploads.validReceipt(plan, i, target, receipts[r])) {
+                    metrics.counter("direct_receipts_rejected_total").increment();
+                    continue;
+                }
+                if (!stored.get(i).contains(target)) stored.get(i).add(target);
+            }
+            for (int i = 0; i < plan.fragmentCount; i++) {
+                if (stored.get(i).isEmpty()) {
+                    directUploads.discard(plan);
+                    out.writeUTF("ERROR: fragment " + i + " sans accusé valide");
+                    out.flush();
+                    return;
+                }
+            }
+
+            // lignes explicites hors anneau, ou quand une copie prévue par l'anneau manque
+            for (int i = 0; i < plan.fragmentCount; i++) {
+                boolean complete = stored.get(i).size() == plan.targets.get(i).size();
+                for (SlaveInfo s : stored.get(i)) {
+                    if (plan.ringEpoch < 0 || plan.explicit[i] || !complete) {
+                        FileCatalogue.appendFragmentMapping(plan.fileId, i, s, (int) plan.sizeOf(i));
+                    }
+                    s.setCapacity(s.getCapacity() - plan.sizeOf(i));
+                }
+                if (!complete) metrics.counter("direct_degraded_fragments_total").increment();
+            }
+            if (plan.ringEpoch >= 0) {
+                FileCatalogue.appendFileMetadata(plan.fileId, plan.fileName, plan.fileSize, plan.fragmentCount, plan.ringEpoch, REPLICATION);
+            } else {
+                FileCatalogue.appendFileMetadata(plan.fileId, plan.fileName, plan.fileSize, plan.fragmentCount);
+            }
+
+            out.writeUTF("OK");
+            out.writeUTF(plan.fileId);
+            out.flush();
+            metrics.counter("uploads_total").increment();
+            metrics.counter("direct_uploads_total").increment();
+            metrics.counter("direct_upload_bytes_total").add(plan.fileSize);
+        }
+    }
+
+    // signatures des fragments d'une version (upload delta) : taille, empreinte glissante, SHA-256 ;
+    // taille -1 si aucune copie n'a répondu. Un petit fichier regroupé n'en a pas.
+    private static void handleSignatures(Socket client, String fileId) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            FileCatalogue.FileMetadata meta = FileCatalogue.readFileMetadata(fileId);
+            if (meta == null) {
+                out.writeUTF("ERROR"); out.writeUTF("File non trouve: " + fileId); out.flush(); return;
+            }
+            List<List<FileCatalogue.FragmentMapping>> fragments = resolveFragments(fileId, meta);
+            boolean packedFile = !fragments.isEmpty() && fragments.get(0).get(0).packed;
+            JsonObject[] signatures = new JsonObject[fragments.size()];
+            if (!packedFile) fetchSignatures(fragments, signatures);
+
+            out.writeUTF("OK");
+            out.writeUTF(meta.name);
+            out.writeLong(meta.size);
+            int count = packedFile ? 0 : fragments.size();
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                JsonObject sig = signatures[i];
+                boolean known = sig != null && sig.get("length").getAsLong() >= 0 && sig.has("checksum");
+                out.writeLong(known ? sig.get("length").getAsLong() : -1);
+                out.writeLong(known ? Long.parseUnsignedLong(sig.get("weak").getAsString(), 16) : 0);
+                out.writeUTF(known ? sig.get("checksum").getAsString() : "");
+            }
+            out.flush();
+            metrics.counter("signature_requests_total").increment();
+        }
+    }
+
+    // GET_SIGNATURE par lots de SIGNATURE_BATCH fragments sur la copie préférée ; les fragments sans
+    // réponse sont redemandés à la copie suivante
+    private static void fetchSignatures(List<List<FileCatalogue.FragmentMapping>> fragments, JsonObject[] signatures) {
+        for (int replica = 0; ; replica++) {
+            // positions dans 'fragments', groupées par slave
+            java.util.Map<String, List<Integer>> bySlave = new java.util.LinkedHashMap<>();
+            for (int i = 0; i < fragments.size(); i++) {
+                if (signatures[i] != null || fragments.get(i).size() <= replica) continue;
+                FileCatalogue.FragmentMapping m = fragments.get(i).get(replica);
+                bySlave.computeIfAbsent(m.slaveHost + ":" + m.slavePort, k -> new ArrayList<>()).add(i);
+            }
+            if (bySlave.isEmpty()) return;
+            for (List<Integer> group : bySlave.values()) {
+                for (int from = 0; from < group.size(); from += SIGNATURE_BATCH) {
+                    List<Integer> positions = group.subList(from, Math.min(group.size(), from + SIGNATURE_BATCH));
+                    List<FileCatalogue.FragmentMapping> batch = new ArrayList<>();
+                    for (int i : positions) batch.add(fragments.get(i).get(replica));
+                    try {
+                        for (JsonObject sig : requestSignatures(batch)) {
+                            if (sig.get("length").getAsLong() < 0) continue;
+                            for (int i : positions) {
+                                if (fragments.get(i).get(replica).fragmentIndex == sig.get("fragment_id").getAsInt()) signatures[i] = sig;
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        metrics.counter("signature_errors_total").increment();
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<JsonObject> requestSignatures(List<FileCatalogue.FragmentMapping> batch) throws IOException {
+        FileCatalogue.FragmentMapping first = batch.get(0);
+        try (Socket socket = HedgedReader.openSlaveSocket(first.slaveHost, first.slavePort);
+             OutputStream out = socket.getOutputStream();
+             InputStream in = socket.getInputStream()) {
+            JsonObject req = new JsonObject();
+            req.addProperty("type", "GET_SIGNATURE");
+            JsonObject data = new JsonObject();
+            JsonArray entries = new JsonArray();
+            for (FileCatalogue.FragmentMapping m : batch) {
+                JsonObject e = new JsonObject();
+                e.addProperty("file_id", m.fileId);
+                e.addProperty("fragment_id", m.fragmentIndex);
+                entries.add(e);
+            }
+            data.add("entries", entries);
+            Tracer.inject(data);
+            req.add("data", data);
+            out.write((gson.toJson(req) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String resp = readJsonLine(in);
+            if (resp == null) throw new IOException("Slave ne répond pas");
+            JsonObject msg = gson.fromJson(resp, JsonObject.class);
+            if (!"SIGNATURE_RESPONSE".equals(msg.get("type").getAsString())) throw new IOException("Slave a refusé: " + resp);
+            List<JsonObject> res = new ArrayList<>();
+            for (com.google.gson.JsonElement e : msg.getAsJsonObject("data").getAsJsonArray("entries")) res.add(e.getAsJsonObject());
+            return res;
+        }
+    }
 
+    /**
+     * Nouvelle version d'un fichier envoyée en delta : après READY, le client décrit le nouveau
+     * contenu par une suite de "COPY" (index d'un fragment de la version de base, repris tel quel)
+     * et de "DATA" (octets littéraux, au plus un fragment), puis "END". Chaque instruction devient
+     * un fragment de la nouvelle version : les fragments repris sont liés sur les slaves qui les
+     * détiennent (LINK_FRAGMENT, sans transfert), les littéraux stockés comme à l'upload. Les
+     * fragments n'ont donc plus tous la même taille ; la nouvelle version a son propre fileId.
+     */
+    private static void handleUploadDelta(Socket client, InputStream rawIn, String baseFileId) throws IOException {
+        long start = System.nanoTime();
+        metrics.level("inflight_uploads").increment();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(rawIn));
+             DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
             String fileName = in.readUTF();
             long fileSize = in.readLong();
+            FileCatalogue.FileMetadata base = FileCatalogue.readFileMetadata(baseFileId);
+            if (base == null) {
+                out.writeUTF("ERROR: version de base inconnue: " + baseFileId); out.flush(); return;
+            }
+            List<List<FileCatalogue.FragmentMapping>> baseFragments = resolveFragments(baseFileId, base);
+            tracer.span("catalogue", start, "file", baseFileId);
+            out.writeUTF("READY"); out.flush();
+
+            String fileId = UUID.randomUUID().toString();
+            int index = 0;
+            long received = 0;
+            long literal = 0;
+            String op;
+            while (!"END".equals(op = in.readUTF())) {
+                if ("COPY".equals(op)) {
+                    int source = in.readInt();
+                    if (source < 0 || source >= baseFragments.size()) {
+                        out.writeUTF("ERROR: fragment de base inconnu: " + source); out.flush(); return;
+                    }
+                    received += copyFragment(baseFragments.get(source), fileId, index++);
+                } else if ("DATA".equals(op)) {
+                    int length = in.readInt();
+                    if (length <= 0 || length > FRAGMENT_SIZE) {
+                        out.writeUTF("ERROR: taille de bloc invalide: " + length); out.flush(); return;
+                    }
+                    acquireSlots(1, true);
+                    try {
+                        byte[] data = new byte[length];
+                        in.readFully(data);
+                        List<SlaveInfo> targets = pickSlaves(REPLICATION);
+                        if (targets.isEmpty()) { out.writeUTF("ERROR: Aucun slave disponible"); out.flush(); return; }
+                        List<PendingFragment> single = new ArrayList<>();
+                        single.add(new PendingFragment(index++, data));
+                        storeBatch(targets, fileId, single, true);
+                    } finally {
+                        releaseSlots(1);
+                    }
+                    received += length;
+                    literal += length;
+                } else {
+                    out.writeUTF("ERROR: instruction inconnue: " + op); out.flush(); return;
+                }
+                if (received > fileSize) break;
+            }
+            if (received != fileSize) {
+                out.writeUTF("ERROR: taille reçue " + received + " au lieu de " + fileSize); out.flush(); return;
+            }
+            FileCatalogue.appendFileMetadata(fileId, fileName, fileSize, index);
+
+            out.writeUTF("OK");
+            out.writeUTF(fileId);
+            out.flush();
+            metrics.counter("uploads_total").increment();
+            metrics.counter("delta_uploads_total").increment();
+            metrics.counter("delta_literal_bytes_total").add(literal);
+            metrics.counter("delta_reused_bytes_total").add(fileSize - literal);
+            metrics.counter("client_bytes_in_total").add(literal);
+            metrics.histogram("upload_delta").recordNanos(System.nanoTime() - start);
+        } catch (Exception e) {
+            metrics.counter("upload_errors_total").increment();
+            log.error("Erreur upload delta", "base", baseFileId, e);
+        } finally {
+            metrics.level("inflight_uploads").decrement();
+        }
+    }
+
+    // fragment repris de la version de base : lié sur chaque slave qui en a une copie, relu et
+    // stocké ailleurs si aucune copie n'a pu être liée ; renvoie sa taille
+    private static long copyFragment(List<FileCatalogue.FragmentMapping> replicas, String fileId, int index) throws IOException {
+        FileCatalogue.FragmentMapping first = replicas.get(0);
+        int linked = 0;
+        for (FileCatalogue.FragmentMapping m : replicas) {
+            SlaveInfo slave = getSlaveById(m.slaveId);
+            if (m.packed || slave == null || !linkFragmentOnSlave(m, fileId, index)) continue;
+            FileCatalogue.appendFragmentMapping(fileId, index, slave, m.fragmentSize);
+            linked++;
+        }
+        if (linked > 0) {
+            metrics.counter("delta_linked_fragments_total").add(linked);
+            return first.fragmentSize;
+        }
+        metrics.counter("delta_link_fallbacks_total").increment();
+        byte[] data = hedgedReader.read(replicas, first.packed ? first.packedOffset : 0, first.packed ? first.fragmentSize : -1);
+        List<SlaveInfo> targets = pickSlaves(REPLICATION);
+        if (targets.isEmpty()) throw new IOException("Aucun slave disponible");
+        List<PendingFragment> single = new ArrayList<>();
+        single.add(new PendingFragment(index, data));
+        storeBatch(targets, fileId, single, true);
+        return data.length;
+    }
+
+    static boolean linkFragmentOnSlave(FileCatalogue.FragmentMapping source, String fileId, int index) {
+        long start = System.nanoTime();
+        try (Socket socket = HedgedReader.openSlaveSocket(source.slaveHost, source.slavePort);
+             OutputStream out = socket.getOutputStream();
+             InputStream in = socket.getInputStream()) {
+            JsonObject req = new JsonObject();
+            req.addProperty("type", "LINK_FRAGMENT");
+            JsonObject data = new JsonObject();
+            data.addProperty("file_id", fileId);
+            data.addProperty("fragment_id", index);
+            data.addProperty("source_file_id", source.fileId);
+            data.addProperty("source_fragment_id", source.fragmentIndex);
+            Tracer.inject(data);
+            signSlaveRequest("LINK_FRAGMENT", data, source.slaveId, ClusterTokens.fragment(fileId, index, -1) + ","
+                    + ClusterTokens.fragment(source.fileId, source.fragmentIndex, -1));
+            req.add("data", data);
+            out.write((gson.toJson(req) + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String resp = readJsonLine(in);
+            if (resp == null) return false;
+            JsonObject ack = gson.fromJson(resp, JsonObject.class).getAsJsonObject("data");
+            return ack != null && ack.has("status") && "OK".equals(ack.get("status").getAsString());
+        } catch (IOException | RuntimeException e) {
+            return false;
+        } finally {
+            tracer.span("slave.link", start, "slave", String.valueOf(source.slaveId), "fragment", String.valueOf(index));
+        }
+    }
+
+    // un fichier (nom, taille, contenu) ; false si l'upload n'a pas abouti
+    private static boolean receiveUpload(Socket client, DataInputStream in, DataOutputStream out, boolean flow) {
+        long start = System.nanoTime();
+        int outstanding = 0;
+        List<PendingFragment> batch = new ArrayList<>();
+        metrics.level("inflight_uploads").increment();
+        try {
+            String fileName = in.readUTF();
+            long fileSize = in.readLong();
+
+            if (packer.accepts(fileSize)) {
+                out.writeUTF("READY");
+                if (flow) { out.writeUTF("CREDIT"); out.writeInt(1); }
+                out.flush();
+                byte[] content = new byte[(int) fileSize];
+                in.readFully(content);
+                String fileId = packer.add(fileName, content);
+                out.writeUTF("OK");
+                out.writeUTF(fileId);
+                out.flush();
+                metrics.counter("uploads_total").increment();
+                metrics.counter("packed_uploads_total").increment();
+                metrics.counter("client_bytes_in_total").add(fileSize);
+                metrics.histogram("upload").recordNanos(System.nanoTime() - start);
+                return true;
+            }
 
             String fileId = UUID.randomUUID().toString();
             int fragmentCount = (int) Math.ceil((double) fileSize / FRAGMENT_SIZE);
+            String lane = bulkLane(client, fileSize);
 
             out.writeUTF("READY"); out.flush();
 
+            // fragments consécutifs placés par lots sur un même slave : un seul aller-retour par lot
+            HashRing ring = HASH_PLACEMENT ? currentRing() : null;
+            List<SlaveInfo> batchSlaves = null;
+            long batchBytes = 0;
             for (int i = 0; i < fragmentCount; i++) {
-                int currSize = (int) Math.min(FRAGMENT_SIZE, fileSize - (i * FRAGMENT_SIZE));
+                if (outstanding == 0) {
+                    // ne bloque sur le budget qu'en ne détenant rien : pas d'attente circulaire entre uploads
+                    if (!batch.isEmpty()) {
+                        flushBatch(lane, ring, batchSlaves, fileId, batch);
+                        releaseSlots(batch.size());
+                        batch.clear();
+                        batchBytes = 0;
+                        batchSlaves = null;
+                    }
+                    outstanding = acquireSlots(Math.min(UPLOAD_WINDOW, fragmentCount - i), true);
+                    if (flow) { out.writeUTF("CREDIT"); out.writeInt(outstanding); out.flush(); }
+                }
+
+                int currSize = (int) Math.min(FRAGMENT_SIZE, fileSize - ((long) i * FRAGMENT_SIZE));
                 byte[] fragment = new byte[currSize];
                 in.readFully(fragment);
+                outstanding--;
 
-                int slaveId = getBestCapacityFromSlave();
-                if (slaveId == -1) { out.writeUTF("ERROR: Aucun slave disponible"); return; }
-                SlaveInfo slave = getSlaveById(slaveId);
+                if (batchSlaves == null && ring == null) {
+                    batchSlaves = pickSlaves(REPLICATION);
+                    if (batchSlaves.isEmpty()) { out.writeUTF("ERROR: Aucun slave disponible"); return false; }
+                }
+                batch.add(new PendingFragment(i, fragment));
+                batchBytes += currSize;
 
-                sendFragmentToSlave(slave, fileId, i, fragment);
+                if (batch.size() >= BATCH_MAX_FRAGMENTS || batchBytes >= BATCH_MAX_BYTES || i == fragmentCount - 1) {
+                    flushBatch(lane, ring, batchSlaves, fileId, batch);
+                    int released = batch.size();
+                    releaseSlots(released);
+                    batch.clear();
+                    batchBytes = 0;
+                    batchSlaves = null;
 
-                // enregistre mapping et met à jour capacité
-                FileCatalogue.appendFragmentMapping(fileId, i, slave, currSize);
-                slave.setCapacity(slave.getCapacity() - currSize);
+                    // réapprovisionne la fenêtre sans bloquer
+                    int remaining = fragmentCount - i - 1 - outstanding;
+                    int topUp = Math.min(Math.min(released, remaining), UPLOAD_WINDOW - outstanding);
+                    int granted = topUp > 0 ? acquireSlots(topUp, false) : 0;
+                    if (granted > 0) {
+                        outstanding += granted;
+                        if (flow) { out.writeUTF("CREDIT"); out.writeInt(granted); out.flush(); }
+                    }
+                }
             }
 
             // metadata
-            FileCatalogue.appendFileMetadata(fileId, fileName, fileSize, fragmentCount);
+            if (ring != null) {
+                FileCatalogue.appendFileMetadata(fileId, fileName, fileSize, fragmentCount, ring.getEpoch(), REPLICATION);
+            } else {
+                FileCatalogue.appendFileMetadata(fileId, fileName, fileSize, fragmentCount);
+            }
 
             out.writeUTF("OK");
             out.writeUTF(fileId);
             out.flush();
+            metrics.counter("uploads_total").increment();
+            metrics.counter("client_bytes_in_total").add(fileSize);
+            metrics.histogram("upload").recordNanos(System.nanoTime() - start);
+            return true;
         } catch (Exception e) {
-            e.printStackTrace();
+            metrics.counter("upload_errors_total").increment();
+            log.error("Erreur upload", e);
+            return false;
+        } finally {
+            releaseSlots(outstanding + batch.size());
+            metrics.level("inflight_uploads").decrement();
+        }
+    }
+
+    // réserve jusqu'à 'want' emplacements de fragment dans le budget mémoire ; au moins 1 si blocking
+    private static int acquireSlots(int want, boolean blocking) throws InterruptedException {
+        int got = 0;
+        if (blocking && !uploadBudget.tryAcquire()) {
+            long waitStart = System.nanoTime();
+            metrics.level("upload_budget_waiters").increment();
+            try {
+                uploadBudget.acquire();
+            } finally {
+                metrics.level("upload_budget_waiters").decrement();
+            }
+            metrics.histogram("upload_budget_wait").recordNanos(System.nanoTime() - waitStart);
+            got = 1;
+        } else if (blocking) {
+            got = 1;
         }
+        while (got < want && uploadBudget.tryAcquire()) got++;
+        return got;
+    }
+
+    private static void releaseSlots(int n) {
+        if (n > 0) uploadBudget.release(n);
     }
 
     private static void handleClientDownload(Socket client, String fileId) throws IOException {
+        long start = System.nanoTime();
+        metrics.level("inflight_downloads").increment();
         try (DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
             FileCatalogue.FileMetadata meta = FileCatalogue.readFileMetadata(fileId);
             if (meta == null) {
                 out.writeUTF("ERROR"); out.writeUTF("File non trouve: " + fileId); out.flush(); return;
             }
 
-            List<FileCatalogue.FragmentMapping> mappings = FileCatalogue.readFragmentMappings(fileId);
-            if (mappings.size() != meta.fragments) {
+            List<List<FileCatalogue.FragmentMapping>> fragments = resolveFragments(fileId, meta);
+            tracer.span("catalogue", start, "file", fileId);
+            if (fragments.size() != meta.fragments) {
                 out.writeUTF("ERROR"); out.writeUTF("Fragments manquants"); out.flush(); return;
             }
 
@@ -155,50 +903,360 @@ public class MainServer {
             out.writeInt(meta.fragments);
             out.flush();
 
-            mappings.sort(Comparator.comparingInt(m -> m.fragmentIndex));
             byte[] buffer = new byte[8192];
+            String lane = bulkLane(client, meta.size);
 
-            for (FileCatalogue.FragmentMapping m : mappings) {
-                try (Socket slaveSocket = new Socket(m.slaveHost, m.slavePort);
-                     OutputStream rawOut = slaveSocket.getOutputStream();
-                     InputStream rawIn = slaveSocket.getInputStream()) {
-
-                    JsonObject req = new JsonObject();
-                    req.addProperty("type", "GET_FRAGMENT");
-                    JsonObject data = new JsonObject();
-                    data.addProperty("file_id", fileId);
-                    data.addProperty("fragment_id", m.fragmentIndex);
-                    req.add("data", data);
-                    rawOut.write((gson.toJson(req) + "\n").getBytes(StandardCharsets.UTF_8));
-                    rawOut.flush();
-
-                    String respLine = readJsonLine(rawIn);
-                    if (respLine == null) throw new IOException("Slave non reponse");
-                    JsonObject resp = gson.fromJson(respLine, JsonObject.class);
-                    long length = resp.getAsJsonObject("data").get("length").getAsLong();
-
-                    out.writeInt((int) length);
-                    long remaining = length;
-                    while (remaining > 0) {
-                        int toRead = (int) Math.min(buffer.length, remaining);
-                        int r = rawIn.read(buffer, 0, toRead);
-                        if (r == -1) throw new IOException("EOF slave");
-                        out.write(buffer, 0, r);
-                        remaining -= r;
-                    }
-                    out.flush();
+            // fragments répliqués : lecture hedgée ; sinon les fragments consécutifs d'un même slave
+            // sont demandés en un seul GET_BATCH
+            for (int i = 0; i < fragments.size(); ) {
+                List<FileCatalogue.FragmentMapping> replicas = fragments.get(i);
+                FileCatalogue.FragmentMapping m = replicas.get(0);
+                List<FileCatalogue.FragmentMapping> run = new ArrayList<>();
+                run.add(m);
+                int j = i + 1;
+                while (replicas.size() == 1 && !m.packed && j < fragments.size() && run.size() < BATCH_MAX_FRAGMENTS
+                        && fragments.get(j).size() == 1 && sameSlave(m, fragments.get(j).get(0))) {
+                    run.add(fragments.get(j++).get(0));
+                }
+                long runBytes = 0;
+                for (FileCatalogue.FragmentMapping r : run) runBytes += r.fragmentSize;
+                FairScheduler.Ticket ticket = null;
+                try {
+                    if (lane != null) ticket = scheduler.acquire(lane, runBytes);
+                    if (replicas.size() > 1) relayHedged(replicas, m.packed ? m.packedOffset : 0, m.packed ? m.fragmentSize : -1, out);
+                    else if (m.packed) relayFragment(m, m.packedOffset, m.fragmentSize, out, buffer);
+                    else if (run.size() == 1) relayFragment(m, 0, -1, out, buffer);
+                    else relayBatch(run, out, buffer);
+                } catch (Exception e) {
+                    log.warn("Erreur fragment", "fragment", m.fragmentIndex, "erreur", e.getMessage());
+                    out.writeInt(-1); out.flush();
+                    return;
+                } finally {
+                    scheduler.release(ticket);
+                }
+                i = j;
+            }
+            metrics.counter("downloads_total").increment();
+            metrics.histogram("download").recordNanos(System.nanoTime() - start);
+        } catch (Exception e) {
+            metrics.counter("download_errors_total").increment();
+            log.error("Erreur download", e);
+        } finally {
+            metrics.level("inflight_downloads").decrement();
+        }
+    }
+
+    // lecture d'une plage d'octets: seuls les fragments qui la recouvrent sont lus, et seulement la partie utile
+    private static void handleClientRangeRead(Socket client, String fileId, long offset, long length) throws IOException {
+        long start = System.nanoTime();
+        metrics.level("inflight_downloads").increment();
+        try (DataOutputStream out = new DataOutputStream(client.getOutputStream())) {
+            FileCatalogue.FileMetadata meta = FileCatalogue.readFileMetadata(fileId);
+            if (meta == null) {
+                out.writeUTF("ERROR"); out.writeUTF("File non trouve: " + fileId); out.flush(); return;
+            }
+            if (offset < 0 || length < 0 || offset > meta.size) {
+                out.writeUTF("ERROR"); out.writeUTF("Plage invalide"); out.flush(); return;
+            }
+            long end = Math.min(meta.size, offset + length);
+
+            List<List<FileCatalogue.FragmentMapping>> fragments = resolveFragments(fileId, meta);
+            tracer.span("catalogue", start, "file", fileId);
+            List<List<FileCatalogue.FragmentMapping>> parts = new ArrayList<>();
+            List<long[]> ranges = new ArrayList<>();
+            long fragStart = 0;
+            for (List<FileCatalogue.FragmentMapping> replicas : fragments) {
+                FileCatalogue.FragmentMapping m = replicas.get(0);
+                long fragEnd = fragStart + m.fragmentSize;
+                if (fragEnd > offset && fragStart < end) {
+                    long from = Math.max(offset, fragStart) - fragStart + (m.packed ? m.packedOffset : 0);
+                    long to = Math.min(end, fragEnd) - fragStart + (m.packed ? m.packedOffset : 0);
+                    parts.add(replicas);
+                    ranges.add(new long[]{from, to - from});
+                }
+                fragStart = fragEnd;
+            }
+
+            out.writeUTF("OK");
+            out.writeUTF(meta.name);
+            out.writeLong(end - offset);
+            out.writeInt(parts.size());
+            out.flush();
+
+            byte[] buffer = new byte[8192];
+            String lane = bulkLane(client, end - offset);
+            for (int i = 0; i < parts.size(); i++) {
+                List<FileCatalogue.FragmentMapping> replicas = parts.get(i);
+                FairScheduler.Ticket ticket = null;
+                try {
+                    if (lane != null) ticket = scheduler.acquire(lane, ranges.get(i)[1]);
+                    if (replicas.size() > 1) relayHedged(replicas, ranges.get(i)[0], ranges.get(i)[1], out);
+                    else relayFragment(replicas.get(0), ranges.get(i)[0], ranges.get(i)[1], out, buffer);
                 } catch (Exception e) {
-                    System.err.println("Erreur fragment " + m.fragmentIndex + ": " + e.getMessage());
+                    log.warn("Erreur fragment", "fragment", replicas.get(0).fragmentIndex, "erreur", e.getMessage());
                     out.writeInt(-1); out.flush();
                     return;
+                } finally {
+                    scheduler.release(ticket);
                 }
             }
+            metrics.counter("range_reads_total").increment();
+            metrics.histogram("range_read").recordNanos(System.nanoTime() - start);
         } catch (Exception e) {
-            e.printStackTrace();
+            metrics.counter("download_errors_total").increment();
+            log.error("Erreur download", e);
+        } finally {
+            metrics.level("inflight_downloads").decrement();
+        }
+    }
+
+    // copies de chaque fragment, par index croissant, la copie préférée en premier
+    private static List<List<FileCatalogue.FragmentMapping>> resolveFragments(String fileId, FileCatalogue.FileMetadata meta) {
+        java.util.TreeMap<Integer, List<FileCatalogue.FragmentMapping>> byIndex = new java.util.TreeMap<>();
+        for (FileCatalogue.FragmentMapping m : resolveMappings(fileId, meta)) {
+            byIndex.computeIfAbsent(m.fragmentIndex, k -> new ArrayList<>()).add(m);
+        }
+        java.util.Map<Integer, Boolean> alive = new java.util.HashMap<>();
+        for (SlaveInfo s : slaves) alive.put(s.getId(), s.getActif());
+        List<List<FileCatalogue.FragmentMapping>> res = new ArrayList<>();
+        for (List<FileCatalogue.FragmentMapping> replicas : byIndex.values()) {
+            res.add(replicas.size() > 1 ? hedgedReader.order(replicas, alive) : replicas);
+        }
+        return res;
+    }
+
+    // fragments d'un fichier triés par index ; un petit fichier regroupé renvoie la plage de son conteneur
+    private static List<FileCatalogue.FragmentMapping> resolveMappings(String fileId, FileCatalogue.FileMetadata meta) {
+        List<FileCatalogue.FragmentMapping> mappings = FileCatalogue.readFragmentMappings(fileId);
+        if (mappings.isEmpty() && meta.fragments == 1) {
+            FileCatalogue.PackedLocation packed = FileCatalogue.readPackedLocation(fileId);
+            if (packed != null) {
+                for (FileCatalogue.FragmentMapping c : FileCatalogue.readFragmentMappings(packed.containerId)) {
+                    c.packed = true;
+                    c.packedOffset = packed.offset;
+                    c.fragmentSize = (int) packed.length;
+                    mappings.add(c);
+                }
+            }
+        }
+        if (meta.ringEpoch >= 0) {
+            // emplacements calculés, sauf pour les index ayant des lignes explicites (exceptions)
+            HashRing ring = ring(meta.ringEpoch);
+            java.util.Set<Integer> explicit = new java.util.HashSet<>();
+            for (FileCatalogue.FragmentMapping m : mappings) explicit.add(m.fragmentIndex);
+            for (int i = 0; ring != null && i < meta.fragments; i++) {
+                if (explicit.contains(i)) continue;
+                for (int id : ring.locate(fileId, i, meta.ringReplicas)) {
+                    mappings.add(placedMapping(ring, fileId, i, id, (int) Math.min(FRAGMENT_SIZE, meta.size - (long) i * FRAGMENT_SIZE)));
+                }
+            }
+        }
+        mappings.sort(Comparator.comparingInt(m -> m.fragmentIndex));
+        return mappings;
+    }
+
+    private static FileCatalogue.FragmentMapping placedMapping(HashRing ring, String fileId, int index, int slaveId, int size) {
+        FileCatalogue.FragmentMapping m = new FileCatalogue.FragmentMapping();
+        m.fileId = fileId;
+        m.fragmentIndex = index;
+        m.slaveId = slaveId;
+        m.fragmentSize = size;
+        // adresse actuelle du slave si on le connaît, sinon celle de l'époque (cas des réplicas)
+        SlaveInfo s = getSlaveById(slaveId);
+        FileCatalogue.RingMember member = ring.member(slaveId);
+        m.slaveHost = s != null ? s.getHost() : member.host;
+        m.slavePort = s != null ? s.getPort() : member.port;
+        return m;
+    }
+
+    static HashRing ring(int epoch) {
+        HashRing ring = rings.get(epoch);
+        if (ring != null) return ring;
+        List<FileCatalogue.RingMember> members = FileCatalogue.readRing(epoch);
+        if (members.isEmpty()) return null;
+        ring = new HashRing(epoch, members);
+        rings.put(epoch, ring);
+        return ring;
+    }
+
+    private static HashRing currentRing() {
+        int epoch = FileCatalogue.latestRingEpoch();
+        return epoch < 0 ? null : ring(epoch);
+    }
+
+    // nouvelle époque quand l'ensemble des slaves change ; le poids (capacité en Mo) est figé ici
+    private static synchronized void updateRing() {
+        HashRing current = currentRing();
+        java.util.Set<Integer> ids = new java.util.TreeSet<>();
+        for (SlaveInfo s : slaves) ids.add(s.getId());
+        java.util.Set<Integer> ringIds = new java.util.TreeSet<>();
+        if (current != null) for (FileCatalogue.RingMember m : current.getMembers()) ringIds.add(m.slaveId);
+        if (ids.isEmpty() || ids.equals(ringIds)) return;
+
+        int epoch = current == null ? 0 : current.getEpoch() + 1;
+        List<FileCatalogue.RingMember> members = new ArrayList<>();
+        for (SlaveInfo s : slaves) {
+            FileCatalogue.RingMember m = new FileCatalogue.RingMember();
+            m.epoch = epoch;
+            m.slaveId = s.getId();
+            FileCatalogue.RingMember previous = current != null ? current.member(s.getId()) : null;
+            m.weight = previous != null ? previous.weight : Math.max(1, s.getCapacity() / (1024 * 1024));
+            m.host = s.getHost();
+            m.port = s.getPort();
+            members.add(m);
+        }
+        FileCatalogue.appendRingEpoch(members);
+        log.info("Anneau de placement", "epoque", epoch, "slaves", members.size());
+    }
+
+    private static void storeContainer(String containerId, byte[] data) throws IOException {
+        List<SlaveInfo> targets = pickSlaves(REPLICATION);
+        if (targets.isEmpty()) throw new IOException("Aucun slave disponible");
+        List<PendingFragment> single = new ArrayList<>();
+        single.add(new PendingFragment(0, data));
+        storeBatch(targets, containerId, single, true);
+        metrics.counter("pack_containers_total").increment();
+    }
+
+    private static void relayHedged(List<FileCatalogue.FragmentMapping> replicas, long offset, long length,
+                                    DataOutputStream out) throws IOException {
+        long getStart = System.nanoTime();
+        metrics.level("inflight_get").increment();
+        try {
+            byte[] data = hedgedReader.read(replicas, offset, length);
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            metrics.histogram("get").recordNanos(System.nanoTime() - getStart);
+            metrics.counter("client_bytes_out_total").add(data.length);
+        } finally {
+            metrics.level("inflight_get").decrement();
         }
     }
 
-    private static String readJsonLine(InputStream in) throws IOException {
+    // fragment complet en mémoire, depuis une seule copie (rééquilibrage)
+    static byte[] fetchFragment(FileCatalogue.FragmentMapping m) throws IOException {
+        return hedgedReader.read(java.util.Collections.singletonList(m), 0, -1);
+    }
+
+    // relaie un fragment (ou la plage [offset, offset+length) du fragment si length >= 0) vers le client
+    private static long relayFragment(FileCatalogue.FragmentMapping m, long offset, long length,
+                                      DataOutputStream out, byte[] buffer) throws IOException {
+        long getStart = System.nanoTime();
+        metrics.level("inflight_get").increment();
+        try (Socket slaveSocket = HedgedReader.openSlaveSocket(m.slaveHost, m.slavePort);
+             OutputStream rawOut = slaveSocket.getOutputStream();
+             InputStream rawIn = slaveSocket.getInputStream()) {
+
+            JsonObject req = new JsonObject();
+            req.addProperty("type", "GET_FRAGMENT");
+            JsonObject data = new JsonObject();
+            data.addProperty("file_id", m.fileId);
+            data.addProperty("fragment_id", m.fragmentIndex);
+            if (length >= 0) {
+                data.addProperty("offset", offset);
+                data.addProperty("length", length);
+            }
+            Tracer.inject(data);
+            req.add("data", data);
+            rawOut.write((gson.toJson(req) + "\n").getBytes(StandardCharsets.UTF_8));
+            rawOut.flush();
+
+            String respLine = readJsonLine(rawIn);
+            if (respLine == null) throw new IOException("Slave non reponse");
+            JsonObject resp = gson.fromJson(respLine, JsonObject.class);
+            if (!resp.getAsJsonObject("data").has("length")) throw new IOException("Slave: " + respLine);
+            long received = resp.getAsJsonObject("data").get("length").getAsLong();
+
+            out.writeInt((int) received);
+            long remaining = received;
+            while (remaining > 0) {
+                int toRead = (int) Math.min(buffer.length, remaining);
+                int r = rawIn.read(buffer, 0, toRead);
+                if (r == -1) throw new IOException("EOF slave");
+                out.write(buffer, 0, r);
+                remaining -= r;
+            }
+            out.flush();
+            tracer.span("relay", getStart, "slave", String.valueOf(m.slaveId), "fragment", String.valueOf(m.fragmentIndex),
+                    "bytes", String.valueOf(received));
+            metrics.histogram("get").recordNanos(System.nanoTime() - getStart);
+            hedgedReader.record(m.slaveId, System.nanoTime() - getStart);
+            metrics.counter(Metrics.label("slave_bytes_in_total", "slave", String.valueOf(m.slaveId))).add(received);
+            metrics.counter("client_bytes_out_total").add(received);
+            return received;
+        } catch (IOException e) {
+            metrics.counter("get_errors_total").increment();
+            throw e;
+        } finally {
+            metrics.level("inflight_get").decrement();
+        }
+    }
+
+    private static boolean sameSlave(FileCatalogue.FragmentMapping a, FileCatalogue.FragmentMapping b) {
+        return a.slavePort == b.slavePort && a.slaveHost.equals(b.slaveHost) && !b.packed;
+    }
+
+    // relaie plusieurs fragments d'un même slave (GET_BATCH), dans l'ordre de la liste
+    private static void relayBatch(List<FileCatalogue.FragmentMapping> group, DataOutputStream out, byte[] buffer) throws IOException {
+        FileCatalogue.FragmentMapping first = group.get(0);
+        long getStart = System.nanoTime();
+        metrics.level("inflight_get").increment();
+        try (Socket slaveSocket = HedgedReader.openSlaveSocket(first.slaveHost, first.slavePort);
+             OutputStream rawOut = slaveSocket.getOutputStream();
+             InputStream rawIn = slaveSocket.getInputStream()) {
+
+            JsonArray entries = new JsonArray();
+            for (FileCatalogue.FragmentMapping m : group) {
+                JsonObject e = new JsonObject();
+                e.addProperty("file_id", m.fileId);
+                e.addProperty("fragment_id", m.fragmentIndex);
+                entries.add(e);
+            }
+            JsonObject req = new JsonObject();
+            req.addProperty("type", "GET_BATCH");
+            JsonObject data = new JsonObject();
+            data.add("entries", entries);
+            Tracer.inject(data);
+            req.add("data", data);
+            rawOut.write((gson.toJson(req) + "\n").getBytes(StandardCharsets.UTF_8));
+            rawOut.flush();
+
+            String respLine = readJsonLine(rawIn);
+            if (respLine == null) throw new IOException("Slave non reponse");
+            JsonObject resp = gson.fromJson(respLine, JsonObject.class);
+            if (!resp.getAsJsonObject("data").has("entries")) throw new IOException("Slave: " + respLine);
+            JsonArray parts = resp.getAsJsonObject("data").getAsJsonArray("entries");
+
+            long total = 0;
+            for (int k = 0; k < parts.size(); k++) {
+                long length = parts.get(k).getAsJsonObject().get("length").getAsLong();
+                if (length < 0) throw new IOException("Fragment manquant sur le slave: " + group.get(k).fragmentIndex);
+                out.writeInt((int) length);
+                long remaining = length;
+                while (remaining > 0) {
+                    int r = rawIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (r == -1) throw new IOException("EOF slave");
+                    out.write(buffer, 0, r);
+                    remaining -= r;
+                }
+                total += length;
+            }
+            out.flush();
+            tracer.span("relay_batch", getStart, "slave", String.valueOf(first.slaveId), "fragments",
+                    first.fragmentIndex + "-" + group.get(group.size() - 1).fragmentIndex, "bytes", String.valueOf(total));
+            metrics.histogram("get_batch").recordNanos(System.nanoTime() - getStart);
+            metrics.counter(Metrics.label("slave_bytes_in_total", "slave", String.valueOf(first.slaveId))).add(total);
+            metrics.counter("client_bytes_out_total").add(total);
+        } catch (IOException e) {
+            metrics.counter("get_errors_total").increment();
+            throw e;
+        } finally {
+            metrics.level("inflight_get").decrement();
+        }
+    }
+
+    public static String readJsonLine(InputStream in) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         int b;
         while ((b = in.read()) != -1) {
@@ -212,7 +1270,7 @@ public class MainServer {
 
     private static void sendPing() {
         for (SlaveInfo s : slaves) {
-            try (Socket socket = new Socket(s.getHost(), s.getPort());
+            try (Socket socket = HedgedReader.openSlaveSocket(s.getHost(), s.getPort());
                  OutputStream out = socket.getOutputStream();
                  InputStream in = socket.getInputStream()) {
                 JsonObject msg = new JsonObject();
@@ -230,8 +1288,10 @@ public class MainServer {
         }
     }
 
-    private static void sendFragmentToSlave(SlaveInfo slave, String fileId, int fragmentIndex, byte[] fragmentData) throws IOException {
-        try (Socket slaveSocket = new Socket(slave.getHost(), slave.getPort());
+    static void sendFragmentToSlave(SlaveInfo slave, String fileId, int fragmentIndex, byte[] fragmentData) throws IOException {
+        long start = System.nanoTime();
+        metrics.level("inflight_store").increment();
+        try (Socket slaveSocket = HedgedReader.openSlaveSocket(slave.getHost(), slave.getPort());
              OutputStream rawOut = slaveSocket.getOutputStream();
              InputStream rawIn = slaveSocket.getInputStream()) {
 
@@ -241,6 +1301,8 @@ public class MainServer {
             data.addProperty("file_id", fileId);
             data.addProperty("fragment_id", fragmentIndex);
             data.addProperty("length", fragmentData.length);
+            Tracer.inject(data);
+            signSlaveRequest("STORE_FRAGMENT", data, slave.getId(), ClusterTokens.fragment(fileId, fragmentIndex, fragmentData.length));
             msg.add("data", data);
 
             rawOut.write((gson.toJson(msg) + "\n").getBytes(StandardCharsets.UTF_8));
@@ -253,6 +1315,151 @@ public class MainServer {
             JsonObject ackMsg = gson.fromJson(ackLine, JsonObject.class);
             String status = ackMsg.getAsJsonObject("data").get("status").getAsString();
             if (!"OK".equals(status)) throw new IOException("Slave a refusé: " + status);
+            tracer.span("slave.store", start, "slave", String.valueOf(slave.getId()), "fragment", String.valueOf(fragmentIndex),
+                    "bytes", String.valueOf(fragmentData.length));
+            metrics.histogram("store").recordNanos(System.nanoTime() - start);
+            metrics.counter(Metrics.label("slave_bytes_out_total", "slave", String.valueOf(slave.getId()))).add(fragmentData.length);
+        } catch (IOException e) {
+            metrics.counter("store_errors_total").increment();
+            throw e;
+        } finally {
+            metrics.level("inflight_store").decrement();
+        }
+    }
+
+    private static void flushBatch(String lane, HashRing ring, List<SlaveInfo> targets, String fileId,
+                                   List<PendingFragment> batch) throws IOException, InterruptedException {
+        long bytes = 0;
+        for (PendingFragment f : batch) bytes += f.data.length;
+        FairScheduler.Ticket ticket = lane != null ? scheduler.acquire(lane, bytes) : null;
+        try {
+            if (ring != null) storePlaced(ring, fileId, batch);
+            else storeBatch(targets, fileId, batch, true);
+        } finally {
+            scheduler.release(ticket);
+        }
+    }
+
+    // clé d'ordonnancement (adresse du client) pour un gros transfert, null pour la voie rapide
+    private static String bulkLane(Socket client, long bytes) {
+        if (!scheduler.isEnabled() || bytes <= SMALL_REQUEST_BYTES) {
+            metrics.counter("fast_lane_total").increment();
+            return null;
+        }
+        metrics.counter("bulk_lane_total").increment();
+        return client.getInetAddress().getHostAddress();
+    }
+
+    // un fragment seul passe par STORE_FRAGMENT, plusieurs par STORE_BATCH ; une copie par slave cible,
+    // mappings enregistrés après les ACK
+    private static void storeBatch(List<SlaveInfo> targets, String fileId, List<PendingFragment> batch, boolean recordRows) throws IOException {
+        for (SlaveInfo slave : targets) {
+            if (batch.size() == 1) {
+                sendFragmentToSlave(slave, fileId, batch.get(0).index, batch.get(0).data);
+            } else {
+                sendBatchToSlave(slave, fileId, batch);
+            }
+        }
+        for (SlaveInfo slave : targets) {
+            for (PendingFragment f : batch) {
+                if (recordRows) FileCatalogue.appendFragmentMapping(fileId, f.index, slave, f.data.length);
+                slave.setCapacity(slave.getCapacity() - f.data.length);
+            }
+        }
+    }
+
+    // chaque fragment va aux slaves que l'anneau lui attribue ; si l'un d'eux est mort ou inconnu,
+    // le fragment est placé ailleurs et ses emplacements sont inscrits comme exception dans fragments.csv
+    private static void storePlaced(HashRing ring, String fileId, List<PendingFragment> batch) throws IOException {
+        java.util.Map<List<Integer>, List<PendingFragment>> groups = new java.util.LinkedHashMap<>();
+        for (PendingFragment f : batch) {
+            groups.computeIfAbsent(ring.locate(fileId, f.index, REPLICATION), k -> new ArrayList<>()).add(f);
+        }
+        for (java.util.Map.Entry<List<Integer>, List<PendingFragment>> e : groups.entrySet()) {
+            List<SlaveInfo> targets = new ArrayList<>();
+            boolean exception = ringTargets(e.getKey(), targets);
+            if (exception) metrics.counter("placement_exceptions_total").add(e.getValue().size());
+            if (targets.isEmpty()) throw new IOException("Aucun slave disponible");
+            storeBatch(targets, fileId, e.getValue(), exception);
+        }
+    }
+
+    // slaves vivants parmi ceux désignés par l'anneau, complétés par les plus libres ; true si l'anneau
+    // n'a pas pu être suivi (le placement devient une exception à inscrire dans fragments.csv)
+    private static boolean ringTargets(List<Integer> ids, List<SlaveInfo> targets) {
+        boolean exception = ids.size() < REPLICATION;
+        for (int id : ids) {
+            SlaveInfo s = getSlaveById(id);
+            if (s == null || Boolean.FALSE.equals(s.getActif())) exception = true;
+            else targets.add(s);
+        }
+        if (exception) {
+            for (SlaveInfo s : pickSlaves(slaves.size())) {
+                if (targets.size() >= REPLICATION) break;
+                if (!targets.contains(s)) targets.add(s);
+            }
+        }
+        return exception;
+    }
+
+    private static void sendBatchToSlave(SlaveInfo slave, String fileId, List<PendingFragment> batch) throws IOException {
+        long start = System.nanoTime();
+        metrics.level("inflight_store").increment();
+        try (Socket slaveSocket = HedgedReader.openSlaveSocket(slave.getHost(), slave.getPort());
+             OutputStream rawOut = new BufferedOutputStream(slaveSocket.getOutputStream(), 64 * 1024);
+             InputStream rawIn = slaveSocket.getInputStream()) {
+
+            JsonArray entries = new JsonArray();
+            StringBuilder targets = new StringBuilder();
+            long total = 0;
+            for (PendingFragment f : batch) {
+                JsonObject e = new JsonObject();
+                e.addProperty("file_id", fileId);
+                e.addProperty("fragment_id", f.index);
+                e.addProperty("length", f.data.length);
+                entries.add(e);
+                if (targets.length() > 0) targets.append(',');
+                targets.append(ClusterTokens.fragment(fileId, f.index, f.data.length));
+                total += f.data.length;
+            }
+            JsonObject msg = new JsonObject();
+            msg.addProperty("type", "STORE_BATCH");
+            JsonObject data = new JsonObject();
+            data.add("entries", entries);
+            Tracer.inject(data);
+            signSlaveRequest("STORE_BATCH", data, slave.getId(), targets.toString());
+            msg.add("data", data);
+
+            rawOut.write((gson.toJson(msg) + "\n").getBytes(StandardCharsets.UTF_8));
+            for (PendingFragment f : batch) rawOut.write(f.data);
+            rawOut.flush();
+
+            String ackLine = readJsonLine(rawIn);
+            if (ackLine == null) throw new IOException("Slave ne répond pas");
+            JsonObject ackMsg = gson.fromJson(ackLine, JsonObject.class);
+            JsonObject ack = ackMsg.getAsJsonObject("data");
+            if (!ack.has("status") || !"OK".equals(ack.get("status").getAsString())) {
+                throw new IOException("Slave a refusé le lot: " + ackLine);
+            }
+            tracer.span("slave.store_batch", start, "slave", String.valueOf(slave.getId()), "fragments",
+                    batch.get(0).index + "-" + batch.get(batch.size() - 1).index, "bytes", String.valueOf(total));
+            metrics.histogram("store_batch").recordNanos(System.nanoTime() - start);
+            metrics.counter(Metrics.label("slave_bytes_out_total", "slave", String.valueOf(slave.getId()))).add(total);
+        } catch (IOException e) {
+            metrics.counter("store_errors_total").increment();
+            throw e;
+        } finally {
+            metrics.level("inflight_store").decrement();
+        }
+    }
+
+    private static class PendingFragment {
+        final int index;
+        final byte[] data;
+
+        PendingFragment(int index, byte[] data) {
+            this.index = index;
+            this.data = data;
         }
     }
 
@@ -269,8 +1476,59 @@ public class MainServer {
             for (SlaveInfo s : slaves) if (s.getId() == id) return;
             slaves.add(slaveInfo);
             writeSlaveToFile(slaveInfo);
+            if (HASH_PLACEMENT) updateRing();
+            rebalancer.wake();
         } catch (Exception e) {
-            System.err.println(" Erreur parsing REGISTER: " + e.getMessage());
+            log.error("Erreur parsing REGISTER", "erreur", e.getMessage());
+        }
+    }
+
+    // fragments abîmés ou manquants sur un slave : recopiés depuis une copie saine, en arrière-plan
+    private static void handleScrubReport(Socket client, String line) throws IOException {
+        try {
+            JsonObject data = gson.fromJson(line, JsonObject.class).getAsJsonObject("data");
+            SlaveInfo slave = getSlaveById(Integer.parseInt(data.get("slave_id").getAsString()));
+            if (slave == null) return;
+            for (com.google.gson.JsonElement e : data.getAsJsonArray("fragments")) {
+                JsonObject f = e.getAsJsonObject();
+                String fileId = f.get("file_id").getAsString();
+                int index = f.get("fragment_id").getAsInt();
+                String problem = f.get("problem").getAsString();
+                metrics.counter(Metrics.label("scrub_reports_total", "problem", problem)).increment();
+                log.warn("Fragment signalé par le scrubber", "slave", slave.getId(), "probleme", problem, "file", fileId, "fragment", index);
+                repairs.submit(() -> repairFragment(slave, fileId, index));
+            }
+        } catch (Exception e) {
+            log.error("Erreur parsing SCRUB_REPORT", "erreur", e.getMessage());
+        } finally {
+            client.close();
+        }
+    }
+
+    private static void repairFragment(SlaveInfo slave, String fileId, int index) {
+        FileCatalogue.FileMetadata meta = FileCatalogue.readFileMetadata(fileId);
+        List<FileCatalogue.FragmentMapping> all = meta != null ? resolveMappings(fileId, meta) : FileCatalogue.readFragmentMappings(fileId);
+        List<FileCatalogue.FragmentMapping> healthy = new ArrayList<>();
+        boolean expected = false;
+        for (FileCatalogue.FragmentMapping m : all) {
+            if (m.fragmentIndex != index || m.packed) continue;
+            if (m.slaveId == slave.getId()) expected = true;
+            else healthy.add(m);
+        }
+        // fichier supprimé ou copie déplacée depuis : le catalogue n'attend plus rien de ce slave
+        if (!expected) {
+            metrics.counter("scrub_repairs_skipped_total").increment();
+            return;
+        }
+        try {
+            if (healthy.isEmpty()) throw new IOException("aucune autre copie");
+            byte[] data = hedgedReader.read(healthy, 0, -1);
+            sendFragmentToSlave(slave, fileId, index, data);
+            metrics.counter("scrub_repairs_total").increment();
+            log.info("Fragment recopié", "file", fileId, "fragment", index, "slave", slave.getId());
+        } catch (IOException e) {
+            metrics.counter("scrub_repairs_failed_total").increment();
+            log.error("Fragment perdu", "file", fileId, "fragment", index, "slave", slave.getId(), "erreur", e.getMessage());
         }
     }
 
@@ -295,6 +1553,7 @@ public class MainServer {
                 int port = Integer.parseInt(parts[2]);
                 String str_ip = parts[3];
                 SlaveInfo slaveInfo = new SlaveInfo(id, capacity, port, str_ip);
+                slaves.removeIf(s -> s.getId() == id);
                 slaves.add(slaveInfo);
             }
         } catch (IOException e) {
@@ -302,6 +1561,15 @@ public class MainServer {
         }
     }
 
+    // les n slaves (distincts) ayant le plus de capacité, en évitant ceux marqués morts
+    public static List<SlaveInfo> pickSlaves(int n) {
+        List<SlaveInfo> candidates = new ArrayList<>();
+        for (SlaveInfo s : slaves) if (!Boolean.FALSE.equals(s.getActif())) candidates.add(s);
+        if (candidates.isEmpty()) candidates.addAll(slaves);
+        candidates.sort(Comparator.comparingLong(SlaveInfo::getCapacity).reversed());
+        return new ArrayList<>(candidates.subList(0, Math.min(n, candidates.size())));
+    }
+
     public static int getBestCapacityFromSlave() {
         if (slaves.isEmpty()) return -1;
         SlaveInfo best = slaves.get(0);
@@ -309,6 +1577,10 @@ public class MainServer {
         return best.getId();
     }
 
+    static List<SlaveInfo> getSlaves() {
+        return slaves;
+    }
+
     public static SlaveInfo getSlaveById(int id) {
         for (SlaveInfo s : slaves) if (s.getId() == id) return s;
         return null;
@@ -0,0 +1,153 @@
+package server;
+
+import common.Log;
+import common.Metrics;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Réplica en lecture seule du catalogue : suit les CSV du master (CATALOGUE_TAIL) et répond
+ * à LIST et FRAGMENTS depuis son propre index en mémoire. Si la dernière synchronisation
+ * complète date de plus de replica.maxStalenessMs, il répond STALE et le client se rabat
+ * sur le master. Après une compaction du master (changement de génération), l'index est
+ * reconstruit par morceaux : le réplica répond STALE jusqu'à la fin du rattrapage.
+ *
+ * Usage: java server.MetadataReplica [masterHost] [masterPort] [port]
+ */
+public class MetadataReplica {
+    private static final long POLL_MS = Long.getLong("replica.pollMs", 200L);
+    private static final long MAX_STALENESS_MS = Long.getLong("replica.maxStalenessMs", 2000L);
+
+    private final String masterHost;
+    private final int masterPort;
+    private final Metrics metrics = new Metrics("replica");
+    private final Log log = Log.get("replica");
+
+    private long generation = -1;
+    private final long[] offsets = new long[FileCatalogue.LOG_COUNT];
+    private volatile long lastSync;
+
+    public MetadataReplica(String masterHost, int masterPort) {
+        this.masterHost = masterHost;
+        this.masterPort = masterPort;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String host = args.length >= 1 ? args[0] : "localhost";
+        int masterPort = args.length >= 2 ? Integer.parseInt(args[1]) : 5000;
+        int port = args.length >= 3 ? Integer.parseInt(args[2]) : 5100;
+        new MetadataReplica(host, masterPort).start(port);
+    }
+
+    public void start(int port) throws IOException {
+        FileCatalogue.initEmpty();
+        metrics.gauge("catalogue_files", FileCatalogue::fileCount);
+        metrics.gauge("staleness_ms", this::stalenessMs);
+
+        Thread sync = new Thread(this::syncLoop, "replica-sync");
+        sync.setDaemon(true);
+        sync.start();
+
+        log.info("Réplica du catalogue démarré", "port", port, "master", masterHost + ":" + masterPort);
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            while (true) {
+                Socket client = serverSocket.accept();
+                new Thread(() -> {
+                    try {
+                        handle(client);
+                    } catch (IOException e) {
+                        log.error("Erreur réplica", "erreur", e.getMessage());
+                    } finally {
+                        try { client.close(); } catch (IOException ignored) {}
+                    }
+                }, "replica-client").start();
+            }
+        }
+    }
+
+    private void handle(Socket client) throws IOException {
+        String line = MainServer.readJsonLine(client.getInputStream());
+        if (line == null) return;
+
+        if (line.equals("STATS")) {
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            out.writeUTF(metrics.toJson().toString());
+            out.flush();
+            return;
+        }
+        if (stalenessMs() > MAX_STALENESS_MS) {
+            metrics.counter("stale_rejects_total").increment();
+            DataOutputStream out = new DataOutputStream(client.getOutputStream());
+            out.writeUTF("STALE");
+            out.writeUTF("Réplica en retard de " + stalenessMs() + " ms");
+            out.flush();
+            return;
+        }
+        if (line.equals("LIST")) {
+            metrics.counter("list_total").increment();
+            MainServer.handleList(client);
+        } else if (line.startsWith("FRAGMENTS")) {
+            metrics.counter("fragment_map_total").increment();
+            String[] parts = line.split("\\s+", 2);
+            MainServer.handleFragmentMap(client, parts.length >= 2 ? parts[1].trim() : "");
+        }
+    }
+
+    private long stalenessMs() {
+        return lastSync == 0 ? Long.MAX_VALUE : System.currentTimeMillis() - lastSync;
+    }
+
+    private void syncLoop() {
+        while (true) {
+            try {
+                // on enchaîne tant que le master a encore des lignes en attente
+                long start = System.currentTimeMillis();
+                while (!pull()) { }
+                lastSync = start;
+            } catch (IOException e) {
+                metrics.counter("sync_errors_total").increment();
+            }
+            try {
+                Thread.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // true si la fin du journal a été atteinte
+    private boolean pull() throws IOException {
+        try (Socket socket = new Socket(masterHost, masterPort)) {
+            OutputStream rawOut = socket.getOutputStream();
+            StringBuilder cmd = new StringBuilder("CATALOGUE_TAIL ").append(generation);
+            for (long offset : offsets) cmd.append(' ').append(offset);
+            rawOut.write(cmd.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+            rawOut.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (!"OK".equals(in.readUTF())) throw new IOException("CATALOGUE_TAIL refusé");
+            FileCatalogue.Tail tail = new FileCatalogue.Tail();
+            tail.generation = in.readLong();
+            tail.reset = in.readBoolean();
+            tail.complete = in.readBoolean();
+            // index vidé puis rempli par morceaux : plus de réponse avant le rattrapage complet
+            if (tail.reset) lastSync = 0;
+            for (int i = 0; i < FileCatalogue.LOG_COUNT; i++) {
+                tail.offsets[i] = in.readLong();
+                tail.chunks[i] = new byte[in.readInt()];
+                in.readFully(tail.chunks[i]);
+            }
+            FileCatalogue.applyTail(tail);
+            generation = tail.generation;
+            System.arraycopy(tail.offsets, 0, offsets, 0, offsets.length);
+            long bytes = 0;
+            for (byte[] chunk : tail.chunks) bytes += chunk.length;
+            metrics.counter("sync_bytes_total").add(bytes);
+            if (tail.reset) metrics.counter("sync_resets_total").increment();
+            return tail.complete;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package server;
+
+import common.Log;
+import common.Metrics;
+import common.RateLimiter;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rééquilibrage en arrière-plan des fragments entre slaves.
+ *
+ * Chaque tour calcule le taux de remplissage de chaque slave vivant (octets au catalogue /
+ * octets au catalogue + espace libre annoncé) et déplace des fragments du plus rempli vers le
+ * moins rempli tant que l'écart dépasse rebalance.threshold. Une copie = lecture sur la source,
+ * écriture sur la destination, mise à jour du catalogue, puis suppression de la source après
+ * rebalance.deleteDelayMs (les téléchargements en cours finissent sur l'ancienne copie), sauf si
+ * le catalogue l'a de nouveau inscrite sur la source entre-temps (réparation, autre tour).
+ * Un fragment dont la suppression est en attente n'est pas replanifié.
+ * Le débit est plafonné par rebalance.bandwidthMBps.
+ *
+ * Seules les lignes explicites de fragments.csv sont déplacées : les fichiers placés par
+ * l'anneau sont déjà répartis selon le poids des slaves.
+ */
+public class Rebalancer {
+    private static final long MB = 1024L * 1024;
+    private static final Log log = Log.get("master");
+
+    private final Metrics metrics;
+    private final RateLimiter bandwidth = new RateLimiter(Long.getLong("rebalance.bandwidthMBps", 10L) * MB);
+    private final double threshold = Double.parseDouble(System.getProperty("rebalance.threshold", "0.05"));
+    private final long maxBytesPerRound = Long.getLong("rebalance.maxMBPerRound", 1024L) * MB;
+    private final long intervalMs = Long.getLong("rebalance.intervalSec", 60L) * 1000;
+    private final long deleteDelayMs = Long.getLong("rebalance.deleteDelayMs", 30_000L);
+
+    private final Object signal = new Object();
+    private boolean wakeRequested;
+    private final ScheduledExecutorService deleter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "rebalance-delete");
+        t.setDaemon(true);
+        return t;
+    });
+    private Thread worker;
+    // fileId#index des fragments dont l'ancienne copie attend sa suppression
+    private final Set<String> pendingDeletes = ConcurrentHashMap.newKeySet();
+
+    static class Move {
+        final FileCatalogue.FragmentMapping fragment;
+        final SlaveInfo from;
+        final SlaveInfo to;
+
+        Move(FileCatalogue.FragmentMapping fragment, SlaveInfo from, SlaveInfo to) {
+            this.fragment = fragment;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    public Rebalancer(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized void start() {
+        if (worker != null) return;
+        worker = new Thread(this::loop, "rebalancer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /** Déclenche un tour sans attendre l'intervalle (nouveau slave). */
+    public void wake() {
+        synchronized (signal) {
+            wakeRequested = true;
+            signal.notifyAll();
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            try {
+                synchronized (signal) {
+                    if (!wakeRequested) signal.wait(intervalMs);
+                    wakeRequested = false;
+                }
+                runRound();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                metrics.counter("rebalance_errors_total").increment();
+                log.error("Erreur rééquilibrage", "erreur", e.getMessage());
+            }
+        }
+    }
+
+    void runRound() throws InterruptedException {
+        List<Move> moves = plan(MainServer.getSlaves(), FileCatalogue.allFragmentMappings());
+        if (moves.isEmpty()) return;
+        log.info("Rééquilibrage", "fragments", moves.size());
+        for (Move move : moves) {
+            long start = System.nanoTime();
+            try {
+                if (execute(move)) {
+                    metrics.counter("rebalance_moves_total").increment();
+                    metrics.counter("rebalance_bytes_total").add(move.fragment.fragmentSize);
+                    metrics.histogram("rebalance_move").recordNanos(System.nanoTime() - start);
+                }
+            } catch (IOException e) {
+                metrics.counter("rebalance_errors_total").increment();
+                log.warn("Déplacement impossible", "file", move.fragment.fileId, "fragment", move.fragment.fragmentIndex,
+                        "erreur", e.getMessage());
+            }
+        }
+    }
+
+    // plan glouton : du plus rempli vers le moins rempli, jamais deux copies d'un fragment sur un même slave
+    List<Move> plan(List<SlaveInfo> slaves, List<FileCatalogue.FragmentMapping> rows) {
+        Map<Integer, SlaveInfo> alive = new HashMap<>();
+        for (SlaveInfo s : slaves) if (!Boolean.FALSE.equals(s.getActif())) alive.put(s.getId(), s);
+        List<Move> moves = new ArrayList<>();
+        if (alive.size() < 2) return moves;
+
+        Map<Integer, Long> used = new HashMap<>();
+        Map<Integer, Deque<FileCatalogue.FragmentMapping>> bySlave = new HashMap<>();
+        Map<String, Set<Integer>> holders = new HashMap<>();
+        for (int id : alive.keySet()) {
+            used.put(id, 0L);
+            bySlave.put(id, new ArrayDeque<>());
+        }
+        for (FileCatalogue.FragmentMapping m : rows) {
+            holders.computeIfAbsent(m.fileId + "#" + m.fragmentIndex, k -> new HashSet<>()).add(m.slaveId);
+            if (!alive.containsKey(m.slaveId)) continue;
+            used.merge(m.slaveId, (long) m.fragmentSize, Long::sum);
+            if (pendingDeletes.contains(m.fileId + "#" + m.fragmentIndex)) continue;
+            bySlave.get(m.slaveId).add(m);
+        }
+        Map<Integer, Long> total = new HashMap<>();
+        for (SlaveInfo s : alive.values()) total.put(s.getId(), used.get(s.getId()) + Math.max(0, s.getCapacity()));
+
+        long planned = 0;
+        Set<Integer> exhausted = new HashSet<>();
+        while (planned < maxBytesPerRound) {
+            Integer src = null, dst = null;
+            for (int id : alive.keySet()) {
+                if (total.get(id) <= 0) continue;
+                if (!exhausted.contains(id) && (src == null || ratio(id, used, total) > ratio(src, used, total))) src = id;
+                if (dst == null || ratio(id, used, total) < ratio(dst, used, total)) dst = id;
+            }
+            if (src == null || dst == null || src.equals(dst)) break;
+            if (ratio(src, used, total) - ratio(dst, used, total) <= 2 * threshold) break;
+
+            FileCatalogue.FragmentMapping pick = null;
+            for (Iterator<FileCatalogue.FragmentMapping> it = bySlave.get(src).iterator(); it.hasNext(); ) {
+                FileCatalogue.FragmentMapping m = it.next();
+                Set<Integer> h = holders.get(m.fileId + "#" + m.fragmentIndex);
+                if (h.contains(dst)) continue;
+                // pas de déplacement qui inverserait l'écart (aller-retour au tour suivant)
+                double srcAfter = (double) (used.get(src) - m.fragmentSize) / total.get(src);
+                double dstAfter = (double) (used.get(dst) + m.fragmentSize) / total.get(dst);
+                if (dstAfter > srcAfter) continue;
+                it.remove();
+                h.remove(src);
+                h.add(dst);
+                pick = m;
+                break;
+            }
+            if (pick == null) {
+                exhausted.add(src);
+                continue;
+            }
+            used.merge(src, (long) -pick.fragmentSize, Long::sum);
+            used.merge(dst, (long) pick.fragmentSize, Long::sum);
+            planned += pick.fragmentSize;
+            moves.add(new Move(pick, alive.get(src), alive.get(dst)));
+        }
+        metrics.counter("rebalance_planned_bytes_total").add(planned);
+        return moves;
+    }
+
+    private static boolean listedOn(FileCatalogue.FragmentMapping m) {
+        for (FileCatalogue.FragmentMapping r : FileCatalogue.readFragmentMappings(m.fileId)) {
+            if (r.fragmentIndex == m.fragmentIndex && r.slaveId == m.slaveId) return true;
+        }
+        return false;
+    }
+
+    private static double ratio(int id, Map<Integer, Long> used, Map<Integer, Long> total) {
+        return (double) used.get(id) / total.get(id);
+    }
+
+    private boolean execute(Move move) throws IOException, InterruptedException {
+        FileCatalogue.FragmentMapping m = move.fragment;
+        bandwidth.acquire(m.fragmentSize);
+        byte[] data = MainServer.fetchFragment(m);
+        if (data.length != m.fragmentSize) {
+            throw new IOException("Taille lue " + data.length + " au lieu de " + m.fragmentSize);
+        }
+        MainServer.sendFragmentToSlave(move.to, m.fileId, m.fragmentIndex, data);
+
+        if (!FileCatalogue.moveFragment(m, move.to)) {
+            // fichier supprimé pendant la copie : on retire la copie qu'on vient d'écrire
+            FileCatalogue.FragmentMapping orphan = m.copy();
+            orphan.slaveId = move.to.getId();
+            orphan.slaveHost = move.to.getHost();
+            orphan.slavePort = move.to.getPort();
+            MainServer.deleteFragmentOnSlave(orphan);
+            return false;
+        }
+        move.to.setCapacity(move.to.getCapacity() - data.length);
+        move.from.setCapacity(move.from.getCapacity() + data.length);
+
+        String key = m.fileId + "#" + m.fragmentIndex;
+        pendingDeletes.add(key);
+        deleter.schedule(() -> {
+            try {
+                if (listedOn(m)) {
+                    // recopié sur la source entre-temps : c'est de nouveau une copie inscrite
+                    metrics.counter("rebalance_delete_skipped_total").increment();
+                } else if (!MainServer.deleteFragmentOnSlave(m)) {
+                    metrics.counter("rebalance_delete_errors_total").increment();
+                }
+            } finally {
+                pendingDeletes.remove(key);
+            }
+        }, deleteDelayMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Regroupe les petits uploads dans des conteneurs partagés.
+ *
+ * Un fichier de taille <= pack.threshold est ajouté au conteneur ouvert ; le conteneur
+ * est envoyé comme un seul fragment dès qu'il atteint pack.containerSize ou après
+ * pack.lingerMs. Chaque fichier est enregistré dans packed.csv (conteneur, offset, longueur)
+ * et l'upload n'est confirmé au client qu'une fois le conteneur stocké.
+ */
+public class SmallFilePacker {
+    public interface ContainerWriter {
+        /** Stocke le conteneur comme fragment 0 et enregistre son mapping. */
+        void write(String containerId, byte[] data) throws IOException;
+    }
+
+    private static class Entry {
+        final String fileId = UUID.randomUUID().toString();
+        final String name;
+        final long offset;
+        final int length;
+        final CompletableFuture<String> done = new CompletableFuture<>();
+
+        Entry(String name, long offset, int length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Container {
+        final String id = UUID.randomUUID().toString();
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final List<Entry> entries = new ArrayList<>();
+    }
+
+    private final ContainerWriter writer;
+    private final long threshold;
+    private final int containerSize;
+    private final long lingerMs;
+    private final ScheduledExecutorService timer;
+    private Container current;
+
+    public SmallFilePacker(ContainerWriter writer, long threshold, int containerSize, long lingerMs) {
+        this.writer = writer;
+        this.threshold = threshold;
+        this.containerSize = containerSize;
+        this.lingerMs = lingerMs;
+        this.timer = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "packer-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public boolean accepts(long size) {
+        return threshold > 0 && size <= threshold;
+    }
+
+    /** Ajoute un petit fichier ; bloque jusqu'au stockage du conteneur et renvoie le fileId. */
+    public String add(String name, byte[] content) throws IOException {
+        Entry entry;
+        Container full = null;
+        synchronized (this) {
+            if (current != null && current.data.size() + content.length > containerSize) {
+                full = current;
+                current = null;
+            }
+            if (current == null) {
+                Container c = new Container();
+                current = c;
+                timer.schedule(() -> lingerExpired(c), lingerMs, TimeUnit.MILLISECONDS);
+            }
+            entry = new Entry(name, current.data.size(), content.length);
+            current.data.write(content, 0, content.length);
+            current.entries.add(entry);
+        }
+        if (full != null) flush(full);
+
+        try {
+            return entry.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload interrompu", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void lingerExpired(Container c) {
+        synchronized (this) {
+            if (current != c) return;
+            current = null;
+        }
+        flush(c);
+    }
+
+    private void flush(Container c) {
+        try {
+            writer.write(c.id, c.data.toByteArray());
+            for (Entry e : c.entries) {
+                FileCatalogue.appendPackedLocation(e.fileId, c.id, e.offset, e.length);
+                FileCatalogue.appendFileMetadata(e.fileId, e.name, e.length, 1);
+            }
+            for (Entry e : c.entries) e.done.complete(e.fileId);
+        } catch (Exception ex) {
+            for (Entry e : c.entries) e.done.completeExceptionally(ex);
+        }
+    }
+}
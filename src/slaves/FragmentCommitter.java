@@ -0,0 +1,216 @@
+package slaves;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Rend un fragment écrit dans tmp/ visible (rename) avec la durabilité demandée :
+ *  - NONE  : rename seul, aucune synchronisation ;
+ *  - FSYNC : force() du fichier, rename, sync du dossier, pour chaque fragment ;
+ *  - GROUP : les stores concurrents sont regroupés ; les force() et renames du groupe partent en
+ *            parallèle (slave.groupFsyncThreads), puis un sync par dossier touché, lui aussi en
+ *            parallèle, et tous les ACK du groupe sont libérés ensemble. Les fsync simultanés d'un
+ *            même système de fichiers partagent le commit du journal (ext4, xfs) : le groupe coûte
+ *            à peu près un fsync au lieu d'un par fragment.
+ * Seuls le rename et la publication (index, autres copies) se font sous le verrou fourni par
+ * l'appelant ; le force() et le sync du dossier, eux, ne bloquent pas les autres fragments du même
+ * verrou.
+ */
+public class FragmentCommitter {
+    public enum Mode { NONE, FSYNC, GROUP }
+
+    private static class Pending {
+        final FileChannel canal;
+        final Path temp;
+        final Path dest;
+        final Object verrou;
+        final Runnable publier;
+        final CompletableFuture<Void> fait = new CompletableFuture<>();
+
+        Pending(FileChannel canal, Path temp, Path dest, Object verrou, Runnable publier) {
+            this.canal = canal;
+            this.temp = temp;
+            this.dest = dest;
+            this.verrou = verrou;
+            this.publier = publier;
+        }
+    }
+
+    private volatile Mode mode;
+    private final BlockingQueue<Pending> file = new LinkedBlockingQueue<>();
+    private final long attenteGroupeMicros;
+    private volatile Thread synchroniseur;
+    private ExecutorService forceurs;
+    private final common.Metrics metrics;
+
+    public FragmentCommitter(Mode mode, long attenteGroupeMicros, common.Metrics metrics) {
+        this.attenteGroupeMicros = attenteGroupeMicros;
+        this.metrics = metrics;
+        setMode(mode);
+    }
+
+    public static Mode parseMode(String s) {
+        return Mode.valueOf(s.trim().toUpperCase());
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public synchronized void setMode(Mode mode) {
+        this.mode = mode;
+        if (mode == Mode.GROUP && synchroniseur == null) {
+            int n = Math.max(1, Integer.getInteger("slave.groupFsyncThreads", 8));
+            forceurs = Executors.newFixedThreadPool(n, new ThreadFactory() {
+                private int suivant;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "group-fsync-" + (++suivant));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            synchroniseur = new Thread(this::boucleGroupe, "group-fsync");
+            synchroniseur.setDaemon(true);
+            synchroniseur.start();
+        }
+    }
+
+    /** Le canal doit contenir le fragment complet ; il est fermé par cette méthode. */
+    public void commit(FileChannel canal, Path temp, Path dest) throws IOException {
+        commit(canal, temp, dest, new Object(), () -> {});
+    }
+
+    /**
+     * Comme commit(canal, temp, dest), mais le rename et 'publier' s'exécutent ensemble sous 'verrou'
+     * (en mode GROUP, dans un thread du groupe). L'appelant ne doit pas tenir 'verrou' pendant l'appel.
+     */
+    public void commit(FileChannel canal, Path temp, Path dest, Object verrou, Runnable publier) throws IOException {
+        Mode m = mode;
+        if (m == Mode.GROUP) {
+            Pending p = new Pending(canal, temp, dest, verrou, publier);
+            file.add(p);
+            try {
+                p.fait.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Commit interrompu", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+            return;
+        }
+        try {
+            if (m == Mode.FSYNC) canal.force(true);
+        } finally {
+            canal.close();
+        }
+        publier(temp, dest, verrou, publier);
+        if (m == Mode.FSYNC) synchroniserDossier(dest.getParent());
+    }
+
+    private void boucleGroupe() {
+        List<Pending> groupe = new ArrayList<>();
+        while (true) {
+            try {
+                groupe.add(file.take());
+                if (attenteGroupeMicros > 0) Thread.sleep(attenteGroupeMicros / 1000, (int) (attenteGroupeMicros % 1000) * 1000);
+                file.drainTo(groupe);
+                traiterGroupe(groupe);
+            } catch (InterruptedException e) {
+                echouer(groupe, new IOException("Commit interrompu", e));
+                return;
+            } catch (Throwable t) {
+                // le thread doit survivre : un commit() sans réponse attendrait indéfiniment
+                echouer(groupe, t instanceof IOException ? (IOException) t : new IOException(t));
+            } finally {
+                groupe.clear();
+            }
+        }
+    }
+
+    private void traiterGroupe(List<Pending> groupe) throws InterruptedException {
+        long debut = System.nanoTime();
+        // force() + rename (et publication) de chaque fragment en parallèle
+        List<Future<?>> ecritures = new ArrayList<>(groupe.size());
+        for (Pending p : groupe) {
+            ecritures.add(forceurs.submit(() -> {
+                try {
+                    p.canal.force(true);
+                } finally {
+                    p.canal.close();
+                }
+                publier(p.temp, p.dest, p.verrou, p.publier);
+                return null;
+            }));
+        }
+        Map<Path, List<Pending>> parDossier = new HashMap<>();
+        for (int i = 0; i < groupe.size(); i++) {
+            Pending p = groupe.get(i);
+            IOException e = attendre(ecritures.get(i));
+            if (e != null) p.fait.completeExceptionally(e);
+            else parDossier.computeIfAbsent(p.dest.getParent(), d -> new ArrayList<>()).add(p);
+        }
+
+        // un sync par dossier touché, en parallèle ; une erreur n'échoue que les fragments de ce dossier
+        Map<Path, Future<?>> syncs = new HashMap<>();
+        for (Path d : parDossier.keySet()) {
+            syncs.put(d, forceurs.submit(() -> {
+                synchroniserDossier(d);
+                return null;
+            }));
+        }
+        for (Map.Entry<Path, List<Pending>> e : parDossier.entrySet()) {
+            IOException erreur = attendre(syncs.get(e.getKey()));
+            for (Pending p : e.getValue()) {
+                if (erreur != null) p.fait.completeExceptionally(erreur);
+                else p.fait.complete(null);
+            }
+        }
+        if (metrics != null) {
+            metrics.histogram("group_fsync").recordNanos(System.nanoTime() - debut);
+            metrics.counter("group_fsync_total").increment();
+            metrics.counter("group_fsync_fragments_total").add(groupe.size());
+        }
+    }
+
+    private static void publier(Path temp, Path dest, Object verrou, Runnable publier) throws IOException {
+        synchronized (verrou) {
+            Files.move(temp, dest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            publier.run();
+        }
+    }
+
+    private static IOException attendre(Future<?> f) throws InterruptedException {
+        try {
+            f.get();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable c = e.getCause();
+            return c instanceof IOException ? (IOException) c : new IOException(c);
+        }
+    }
+
+    // les fragments du groupe encore sans réponse reçoivent l'erreur
+    private static void echouer(List<Pending> groupe, IOException e) {
+        for (Pending p : groupe) {
+            if (!p.fait.isDone()) {
+                try { p.canal.close(); } catch (IOException ignored) {}
+                p.fait.completeExceptionally(e);
+            }
+        }
+    }
+
+    // fsync du dossier pour que le rename survive à une coupure (Linux ; ignoré où ce n'est pas supporté)
+    static void synchroniserDossier(Path dossier) throws IOException {
+        try (FileChannel ch = FileChannel.open(dossier, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException ignored) {
+            // Windows : ouverture d'un dossier impossible
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package slaves;
+
+import common.Metrics;
+import common.RateLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Vérification d'intégrité en arrière-plan : relit chaque fragment de l'index et compare son
+ * SHA-256 au checksum enregistré au stockage. Un fragment abîmé est mis de côté (.corrupt) et
+ * retiré de l'index ; fragments abîmés et manquants sont signalés au master, qui les recopie
+ * depuis une autre réplique.
+ *
+ * Budget strict : slave.scrubMBps octets/s et slave.scrubIops fragments/s. Dès que le nombre
+ * d'opérations GET/STORE en cours atteint slave.scrubPauseAt, la lecture s'arrête jusqu'au retour
+ * au calme. Les fragments stockés avant l'enregistrement des checksums reçoivent le leur au
+ * premier passage. La décision (checksum ajouté, mise de côté, retrait de l'index) est prise sous
+ * le verrou du fragment, après avoir vérifié qu'il n'a été ni réécrit ni déplacé pendant la lecture.
+ */
+public class FragmentScrubber {
+    private static final int CHUNK = 64 * 1024;
+    private static final long PAUSE_MS = 200;
+
+    /** Problème relevé sur un fragment : "corrupt" ou "missing". */
+    public static class Probleme {
+        public final String fileId;
+        public final int fragmentId;
+        public final String type;
+
+        Probleme(String fileId, int fragmentId, String type) {
+            this.fileId = fileId;
+            this.fragmentId = fragmentId;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Map<String, Object>> index;
+    private final TieredStorage stockage;
+    private final Metrics metrics;
+    private final IntSupplier chargePremierPlan;
+    private final Consumer<List<Probleme>> signaler;
+    private final Runnable sauvegarderIndex;
+
+    private final RateLimiter octets = new RateLimiter(Long.getLong("slave.scrubMBps", 5L) * 1024 * 1024);
+    private final RateLimiter iops = new RateLimiter(Long.getLong("slave.scrubIops", 20L));
+    private final int seuilPause = Integer.getInteger("slave.scrubPauseAt", 2);
+    private final long intervallePasseMs = Long.getLong("slave.scrubIntervalSec", 3600L) * 1000;
+
+    private volatile Thread thread;
+
+    public FragmentScrubber(Map<String, Map<String, Object>> index, TieredStorage stockage, Metrics metrics,
+                            IntSupplier chargePremierPlan, Consumer<List<Probleme>> signaler, Runnable sauvegarderIndex) {
+        this.index = index;
+        this.stockage = stockage;
+        this.metrics = metrics;
+        this.chargePremierPlan = chargePremierPlan;
+        this.signaler = signaler;
+        this.sauvegarderIndex = sauvegarderIndex;
+    }
+
+    public synchronized void demarrer() {
+        if (thread != null) return;
+        thread = new Thread(this::boucle, "scrubber");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public synchronized void arreter() {
+        if (thread != null) thread.interrupt();
+        thread = null;
+    }
+
+    private void boucle() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long debut = System.currentTimeMillis();
+                passe();
+                metrics.counter("scrub_passes_total").increment();
+                metrics.level("scrub_last_pass_ms").reset();
+                metrics.level("scrub_last_pass_ms").add(System.currentTimeMillis() - debut);
+                Thread.sleep(intervallePasseMs);
+            }
+        } catch (InterruptedException e) {
+            // arrêt du slave
+        }
+    }
+
+    // une passe sur une copie triée des clés : les fragments ajoutés pendant la passe attendront la suivante
+    void passe() throws InterruptedException {
+        List<String> noms = new ArrayList<>(index.keySet());
+        Collections.sort(noms);
+        List<Probleme> problemes = new ArrayList<>();
+        boolean indexModifie = false;
+        for (String nom : noms) {
+            Map<String, Object> meta = index.get(nom);
+            if (meta == null) continue;
+            iops.acquire(1);
+            attendreCalme();
+            String checksum = (String) meta.get("checksum");
+            Path lu = stockage.trouver(nom);
+            String type;
+            try {
+                type = verifier(lu, meta, checksum);
+            } catch (NoSuchFileException e) {
+                // déplacé entre niveaux entre trouver() et l'ouverture : relu à son nouvel emplacement
+                lu = stockage.trouver(nom);
+                try {
+                    type = verifier(lu, meta, checksum);
+                } catch (IOException e2) {
+                    type = "missing";
+                }
+            } catch (IOException e) {
+                type = "missing";
+            }
+            metrics.counter("scrub_fragments_total").increment();
+            if (type == null) continue;
+
+            // décision sous le verrou du fragment : un STORE ou un déplacement entre niveaux ne peut plus
+            // se glisser entre la vérification et la mise de côté
+            synchronized (stockage.verrou(nom)) {
+                // réécrit pendant la lecture (nouvelle entrée d'index) ou supprimé : rien à signaler
+                if (index.get(nom) != meta) continue;
+                if (type.startsWith("sha256:")) {
+                    // nouvelle entrée plutôt qu'ajout de clé : sauvegarderIndex peut sérialiser l'ancienne
+                    Map<String, Object> nouvelle = new HashMap<>(meta);
+                    nouvelle.put("checksum", type.substring(7));
+                    index.put(nom, nouvelle);
+                    indexModifie = true;
+                    continue;
+                }
+                Path chemin = stockage.trouver(nom);
+                // réapparu (ou déplacé) depuis la lecture : vérifié au prochain passage
+                if (type.equals("missing") && chemin != null) continue;
+                if (type.equals("corrupt")) {
+                    if (!lu.equals(chemin)) continue;
+                    mettreDeCote(chemin, nom);
+                }
+                index.remove(nom);
+            }
+            indexModifie = true;
+            String fileId = String.valueOf(meta.get("fileId"));
+            int fragmentId = ((Number) meta.get("fragmentId")).intValue();
+            metrics.counter(Metrics.label("scrub_problems_total", "type", type)).increment();
+            problemes.add(new Probleme(fileId, fragmentId, type));
+        }
+        if (indexModifie) sauvegarderIndex.run();
+        if (!problemes.isEmpty()) signaler.accept(problemes);
+    }
+
+    // null si le fragment est sain, "sha256:<hex>" s'il n'avait pas encore de checksum, sinon le problème
+    private String verifier(Path chemin, Map<String, Object> meta, String checksum) throws IOException, InterruptedException {
+        if (chemin == null) return "missing";
+        if (!Files.isRegularFile(chemin)) throw new NoSuchFileException(chemin.toString());
+        long tailleAttendue = ((Number) meta.get("taille")).longValue();
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        long lus = 0;
+        byte[] buffer = new byte[CHUNK];
+        try (InputStream in = Files.newInputStream(chemin)) {
+            int n;
+            while (true) {
+                octets.acquire(CHUNK);
+                attendreCalme();
+                if ((n = in.read(buffer)) == -1) break;
+                digest.update(buffer, 0, n);
+                lus += n;
+            }
+        }
+        metrics.counter("scrub_bytes_total").add(lus);
+        if (lus != tailleAttendue) return "corrupt";
+        String calcule = Slave.bytesToHex(digest.digest());
+        if (checksum == null) return "sha256:" + calcule;
+        return calcule.equalsIgnoreCase(checksum) ? null : "corrupt";
+    }
+
+    // le premier plan passe avant : pas de lecture tant que les GET/STORE en cours atteignent le seuil
+    private void attendreCalme() throws InterruptedException {
+        boolean enPause = false;
+        while (chargePremierPlan.getAsInt() >= seuilPause) {
+            if (!enPause) metrics.counter("scrub_backoff_total").increment();
+            enPause = true;
+            Thread.sleep(PAUSE_MS);
+        }
+    }
+
+    private void mettreDeCote(Path chemin, String nom) {
+        try {
+            Files.move(chemin, chemin.resolveSibling(nom + ".corrupt"), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            try { Files.deleteIfExists(chemin); } catch (IOException ignored) {}
+        }
+    }
+}
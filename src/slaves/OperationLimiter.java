@@ -0,0 +1,55 @@
+package slaves;
+
+import common.Metrics;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limite de concurrence d'une famille d'opérations (store, get, contrôle).
+ * Chaque connexion a son propre thread : l'attente se fait ici, par famille, et une rafale
+ * de stores lents ne retient plus les GET ni les PING derrière elle.
+ */
+public class OperationLimiter {
+    private final String nom;
+    private final int permis;
+    private final Semaphore semaphore;
+    private final AtomicInteger enAttente = new AtomicInteger();
+    private final Metrics metrics;
+
+    public OperationLimiter(String nom, int permis, Metrics metrics) {
+        this.nom = nom;
+        this.permis = permis;
+        this.semaphore = new Semaphore(permis, true);
+        this.metrics = metrics;
+        metrics.gauge(Metrics.label("op_waiting", "op", nom), enAttente::get);
+        metrics.gauge(Metrics.label("op_inflight", "op", nom), () -> permis - semaphore.availablePermits());
+    }
+
+    /** false si aucune place ne s'est libérée avant le délai : l'appelant répond "busy". */
+    public boolean entrer(long delaiMs) throws InterruptedException {
+        long debut = System.nanoTime();
+        enAttente.incrementAndGet();
+        try {
+            boolean ok = semaphore.tryAcquire(delaiMs, TimeUnit.MILLISECONDS);
+            if (!ok) metrics.counter(Metrics.label("op_rejected_total", "op", nom)).increment();
+            return ok;
+        } finally {
+            enAttente.decrementAndGet();
+            metrics.histogram("queue_wait_" + nom).recordNanos(System.nanoTime() - debut);
+        }
+    }
+
+    public void sortir() {
+        semaphore.release();
+    }
+
+    public int getEnAttente() {
+        return enAttente.get();
+    }
+
+    public int getActifs() {
+        return permis - semaphore.availablePermits();
+    }
+}
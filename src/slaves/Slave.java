@@ -1,8 +1,15 @@
 package slaves;
 
 import com.google.gson.*;
+import common.ClusterTokens;
+import common.Log;
+import common.Metrics;
+import common.RollingHash;
+import common.Tracer;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.file.*;
 import java.security.*;
 import java.util.*;
@@ -24,13 +31,51 @@ public class Slave {
     
 
     private Map<String, Map<String, Object>> index;
+    private ShardedLayout layout;
+    // niveaux chaud/froid (slave.tiers) ; layout reste le premier niveau chaud
+    private TieredStorage niveaux;
+
+    private final Metrics metrics;
+    private final Tracer tracer;
+    private final Log log;
 
     private static final long MAX_FRAGMENT_SIZE = 500L * 1024L * 1024L; // 500 MB max
     private static final long MIN_FREE_SPACE = 100L * 1024L * 1024L;     // 100 MB minimum à garder
 
+    private int tailleBuffer = Integer.getInteger("slave.bufferSize", 8192);
+
+    // réception des fragments par le canal de la socket (tampon direct) ; false : ancien chemin par flux
+    private volatile boolean copieDirecte = Boolean.parseBoolean(System.getProperty("slave.zeroCopy", "true"));
+    // sans checksum au stockage, le scrubber l'enregistre à sa première passe
+    private volatile boolean hacherAuStockage = Boolean.parseBoolean(System.getProperty("slave.hashOnStore", "true"));
+    private static final int TAILLE_TAMPON_DIRECT = 256 * 1024;
+    // délai de réception réarmé tous les BLOC_TRANSFERT octets reçus
+    private static final long BLOC_TRANSFERT = 1024 * 1024;
+    private static final long DELAI_RECEPTION_MS = 60_000L;
+    private final Queue<ByteBuffer> tamponsDirects = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService surveillance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "store-timeout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // none : rename seul ; fsync : force() par fragment ; group : force() partagés par un thread dédié
+    private final FragmentCommitter committer;
+
+    // un thread par connexion ; la concurrence est bornée par famille d'opérations.
+    // PING et STATS n'ont pas de limite : le master doit toujours pouvoir vérifier le slave.
+    private final OperationLimiter limiteStore;
+    private final OperationLimiter limiteGet;
+    private final OperationLimiter limiteControle;
+    private final long attenteMaxMs = Long.getLong("slave.queueTimeoutMs", 30_000L);
+
+    // relecture des fragments en tâche de fond, désactivable par -Dslave.scrub=false
+    private FragmentScrubber scrubber;
+
     
     public Slave(String slaveId, String masterHost, int masterPort, int listenPort, String storageDir) {
         this.slaveId = slaveId;
+        this.log = Log.get("slave-" + slaveId);
         this.masterHost = masterHost;
         this.masterPort = masterPort;
         this.listenPort = listenPort;
@@ -39,19 +84,36 @@ public class Slave {
         this.gson = new Gson();
         this.running = true;
         this.index = new ConcurrentHashMap<>(); 
+        this.metrics = new Metrics("slave");
+        this.tracer = new Tracer("slave-" + slaveId);
+        this.committer = new FragmentCommitter(
+                FragmentCommitter.parseMode(System.getProperty("slave.durability", "none")),
+                Long.getLong("slave.groupCommitMicros", 0L), metrics);
         
 
-        this.threadPool = Executors.newFixedThreadPool(8);
+        this.threadPool = creerExecuteur();
+        this.limiteStore = new OperationLimiter("store", Integer.getInteger("slave.maxStores", 8), metrics);
+        this.limiteGet = new OperationLimiter("get", Integer.getInteger("slave.maxGets", 64), metrics);
+        this.limiteControle = new OperationLimiter("control", Integer.getInteger("slave.maxControl", 4), metrics);
         
     
         this.heartbeatTimer = Executors.newScheduledThreadPool(1);
+
+        metrics.gauge("fragments", () -> index.size());
+        metrics.gauge("free_space_bytes", this::obtenirEspaceLibre);
+        metrics.gauge("queue_depth", () -> limiteStore.getEnAttente() + limiteGet.getEnAttente() + limiteControle.getEnAttente());
+        metrics.gauge("active_workers", () -> limiteStore.getActifs() + limiteGet.getActifs() + limiteControle.getActifs());
+        metrics.gauge("log_dropped", Log::dropped);
         
  
         try {
             Files.createDirectories(Paths.get(storageDir));
-            afficher("Dossier de stockage créé/vérifié: " + storageDir);
+            layout = new ShardedLayout(storageDir);
+            niveaux = new TieredStorage(layout, storageDir, System.getProperty("slave.tiers"), slaveId, index, metrics,
+                    () -> limiteStore.getActifs() + limiteStore.getEnAttente() + limiteGet.getActifs() + limiteGet.getEnAttente());
+            log.info("Dossier de stockage prêt", "dir", storageDir);
         } catch (Exception e) {
-            afficherErreur("Impossible de créer le dossier: " + e.getMessage());
+            log.error("Impossible de créer le dossier", "dir", storageDir, "erreur", e.getMessage());
         }
         
      
@@ -59,15 +121,56 @@ public class Slave {
         
       
         chargerIndex();
+
+        if (layout != null && !layout.isMigrationTerminee()) {
+            Thread migration = new Thread(this::migrerStockage, "migration-" + slaveId);
+            migration.setDaemon(true);
+            migration.start();
+        }
+
+        if (niveaux != null && Boolean.parseBoolean(System.getProperty("slave.scrub", "true"))) {
+            scrubber = new FragmentScrubber(index, niveaux, metrics,
+                    () -> limiteStore.getActifs() + limiteStore.getEnAttente() + limiteGet.getActifs() + limiteGet.getEnAttente(),
+                    this::signalerProblemes, this::sauvegarderIndex);
+        }
     }
 
 
-    
+    // threads virtuels si la JVM les fournit (21+), sinon un pool qui grandit à la demande
+    private static ExecutorService creerExecuteur() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private OperationLimiter limitePour(String type) {
+        switch (type) {
+            case "STORE_FRAGMENT":
+            case "STORE_BATCH":
+            case "LINK_FRAGMENT":
+                return limiteStore;
+            case "GET_FRAGMENT":
+            case "GET_BATCH":
+            case "GET_SIGNATURE":
+                return limiteGet;
+            case "DELETE_FRAGMENT":
+                return limiteControle;
+            default:
+                return null;
+        }
+    }
+
     public void demarrer() {
-        afficher("Démarrage du slave " + slaveId + "...");
+        log.info("Démarrage du slave");
         
 
         enregistrerAuprèsDuMaster();
+        metrics.startReporting(Paths.get(storageDir, "metrics.prom"), 10);
+        tracer.startDumping(Paths.get(storageDir, "trace.json"), Long.getLong("trace.dumpSec", 10L));
+        if (scrubber != null) scrubber.demarrer();
+        if (niveaux != null) niveaux.demarrer();
         
      
         heartbeatTimer.scheduleAtFixedRate(new Runnable() {
@@ -78,13 +181,15 @@ public class Slave {
         
      
         try {
-            ServerSocket serverSocket = new ServerSocket(listenPort);
-            afficher("Slave écoute sur le port " + listenPort);
+            // ServerSocketChannel : chaque socket a son canal, utilisé pour recevoir les fragments
+            ServerSocketChannel serverSocket = ServerSocketChannel.open();
+            serverSocket.bind(new InetSocketAddress(listenPort));
+            log.info("Slave en écoute", "port", listenPort);
             
            
             while (running) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
+                    Socket clientSocket = serverSocket.accept().socket();
                     
                 
                     threadPool.submit(new Runnable() {
@@ -94,14 +199,14 @@ public class Slave {
                     });
                 } catch (Exception e) {
                     if (running) {
-                        afficherErreur("Erreur accept: " + e.getMessage());
+                        log.error("Erreur accept", "erreur", e.getMessage());
                     }
                 }
             }
             
             serverSocket.close();
         } catch (Exception e) {
-            afficherErreur("Erreur ServerSocket: " + e.getMessage());
+            log.error("Erreur ServerSocket", "erreur", e.getMessage());
         } finally {
             arreter();
         }
@@ -110,17 +215,42 @@ public class Slave {
  
     
     public void arreter() {
-        afficher("Arrêt du slave...");
+        log.info("Arrêt du slave");
         running = false;
         
      
         heartbeatTimer.shutdownNow();
+        surveillance.shutdownNow();
+        if (scrubber != null) scrubber.arreter();
+        if (niveaux != null) niveaux.arreter();
         threadPool.shutdown();
+        metrics.stopReporting();
+        tracer.stopDumping();
         
        
         sauvegarderIndex();
         
-        afficher("Slave arrêté.");
+        log.info("Slave arrêté");
+    }
+
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    public void setTailleBuffer(int tailleBuffer) {
+        this.tailleBuffer = tailleBuffer;
+    }
+
+    public void setCopieDirecte(boolean copieDirecte) {
+        this.copieDirecte = copieDirecte;
+    }
+
+    public void setHacherAuStockage(boolean hacherAuStockage) {
+        this.hacherAuStockage = hacherAuStockage;
+    }
+
+    public void setDurabilite(FragmentCommitter.Mode mode) {
+        committer.setMode(mode);
     }
 
     // ========== ENREGISTREMENT AU MASTER ==========
@@ -145,13 +275,40 @@ public class Slave {
             out.println(json);
             out.flush();
             
-            afficher("REGISTER envoyé au master (host=" + host + ", port=" + listenPort + ")");
+            log.info("REGISTER envoyé au master", "host", host, "port", listenPort);
             
 
             out.close();
             socket.close();
         } catch (Exception e) {
-            afficherErreur("Impossible de s'enregistrer au master: " + e.getMessage());
+            log.error("Impossible de s'enregistrer au master", "erreur", e.getMessage());
+        }
+    }
+
+    // fragments abîmés ou disparus relevés par le scrubber : le master les recopie depuis une autre réplique
+    private void signalerProblemes(List<FragmentScrubber.Probleme> problemes) {
+        JsonArray liste = new JsonArray();
+        for (FragmentScrubber.Probleme p : problemes) {
+            JsonObject f = new JsonObject();
+            f.addProperty("file_id", p.fileId);
+            f.addProperty("fragment_id", p.fragmentId);
+            f.addProperty("problem", p.type);
+            liste.add(f);
+            log.warn("Fragment abîmé ou manquant", "probleme", p.type, "file", p.fileId, "fragment", p.fragmentId);
+        }
+        JsonObject data = new JsonObject();
+        data.addProperty("slave_id", slaveId);
+        data.add("fragments", liste);
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "SCRUB_REPORT");
+        message.add("data", data);
+
+        try (Socket socket = new Socket(masterHost, masterPort)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(gson.toJson(message));
+            out.flush();
+        } catch (Exception e) {
+            log.error("Signalement au master impossible", "erreur", e.getMessage());
         }
     }
 
@@ -170,7 +327,7 @@ public class Slave {
             out.println(json);
             out.flush();
             
-            afficher("STATUS envoyé (fragments: " + index.size() + ", espace: " + obtenirEspaceLibre() + ")");
+            log.debug("STATUS envoyé", "fragments", index.size(), "espace", obtenirEspaceLibre());
             
             out.close();
             socket.close();
@@ -183,7 +340,7 @@ public class Slave {
     
     private void traiterConnexion(Socket socket) {
         String remote = socket.getRemoteSocketAddress().toString();
-        afficher("Connexion entrante de " + remote);
+        log.debug("Connexion entrante", "remote", remote);
         
         try {
             
@@ -196,7 +353,7 @@ public class Slave {
             String ligne = lireLigneJSON(in);
             
             if (ligne == null || ligne.isEmpty()) {
-                afficherErreur("Aucune donnée reçue de " + remote);
+                log.warn("Aucune donnée reçue", "remote", remote);
                 socket.close();
                 return;
             }
@@ -206,31 +363,71 @@ public class Slave {
             String type = message.get("type").getAsString();
             JsonObject data = message.has("data") ? message.getAsJsonObject("data") : null;
             
-            afficher("Commande reçue: " + type);
+            log.debug("Commande reçue", "type", type);
             
-            
-            if (type.equals("STORE_FRAGMENT")) {
-                stockerFragment(in, out, data);
-            } else if (type.equals("GET_FRAGMENT")) {
-                envoyerFragment(out, data);
-            } else if (type.equals("PING")) {
-                repondrePong(out);
-            } else if (type.equals("DELETE_FRAGMENT")) {
-                supprimerFragment(out, data);
-            } else {
-                envoyerErreur(out, "unsupported", "Type non supporté: " + type);
+            // trace propagée par le master ou le client ; PING et STATS ne sont pas tracés
+            OperationLimiter limite = limitePour(type);
+            Tracer.setCurrent(Tracer.extract(data));
+            long debut = System.nanoTime();
+            if (limite != null && !limite.entrer(attenteMaxMs)) {
+                Tracer.setCurrent(null);
+                envoyerErreur(out, "busy", "Slave saturé pour " + type);
+                out.flush();
+                socket.close();
+                return;
+            }
+            if (limite != null) tracer.span("queue", debut, "op", type);
+            long debutCommande = System.nanoTime();
+            try {
+                traiterCommande(type, in, socket.getChannel(), out, data);
+            } finally {
+                if (limite != null) {
+                    limite.sortir();
+                    tracer.span("slave." + type, debutCommande, argumentsTrace(data));
+                }
+                Tracer.setCurrent(null);
             }
             
             out.flush();
             socket.close();
         } catch (Exception e) {
-            afficherErreur("Erreur traitement connexion " + remote + ": " + e.getMessage());
+            log.error("Erreur traitement connexion", "remote", remote, "erreur", e.getMessage());
             try { socket.close(); } catch (Exception ignored) {}
         }
     }
 
+    private static String[] argumentsTrace(JsonObject data) {
+        if (data == null || !data.has("file_id")) return new String[0];
+        return new String[]{"file", data.get("file_id").getAsString(),
+                "fragment", data.has("fragment_id") ? data.get("fragment_id").getAsString() : ""};
+    }
+
+    private void traiterCommande(String type, InputStream in, SocketChannel canal, OutputStream out, JsonObject data) throws Exception {
+        if (type.equals("STORE_FRAGMENT")) {
+            stockerFragment(in, canal, out, data);
+        } else if (type.equals("STORE_BATCH")) {
+            stockerLot(in, canal, out, data);
+        } else if (type.equals("GET_BATCH")) {
+            envoyerLot(out, data);
+        } else if (type.equals("GET_FRAGMENT")) {
+            envoyerFragment(out, data);
+        } else if (type.equals("PING")) {
+            repondrePong(out);
+        } else if (type.equals("STATS")) {
+            envoyerStats(out);
+        } else if (type.equals("DELETE_FRAGMENT")) {
+            supprimerFragment(out, data);
+        } else if (type.equals("GET_SIGNATURE")) {
+            envoyerSignatures(out, data);
+        } else if (type.equals("LINK_FRAGMENT")) {
+            lierFragment(out, data);
+        } else {
+            envoyerErreur(out, "unsupported", "Type non supporté: " + type);
+        }
+    }
+
         
-    private String lireLigneJSON(InputStream in) throws Exception {
+    public static String lireLigneJSON(InputStream in) throws Exception {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         int b;
         
@@ -250,127 +447,393 @@ public class Slave {
     }
 
     
-    private void stockerFragment(InputStream in, OutputStream out, JsonObject data) throws Exception {
+    private void stockerFragment(InputStream in, SocketChannel canal, OutputStream out, JsonObject data) throws Exception {
+        long debut = System.nanoTime();
+        metrics.level("inflight_store").increment();
+        try {
+            stockerFragmentInterne(in, canal, out, data);
+        } finally {
+            metrics.level("inflight_store").decrement();
+            metrics.histogram("store").recordNanos(System.nanoTime() - debut);
+        }
+    }
+
+    private void stockerFragmentInterne(InputStream in, SocketChannel canal, OutputStream out, JsonObject data) throws Exception {
     
         if (!data.has("file_id") || !data.has("fragment_id") || !data.has("length")) {
             envoyerACK(out, -1, "ERROR: champs manquants");
             return;
         }
         
-        String fileId = nettoyerNom(data.get("file_id").getAsString());
+        String fileIdBrut = data.get("file_id").getAsString();
+        String fileId = nettoyerNom(fileIdBrut);
         int fragmentId = data.get("fragment_id").getAsInt();
         long taille = data.get("length").getAsLong();
         String checksumAttendu = data.has("checksum") ? data.get("checksum").getAsString() : null;
+        // écriture directe d'un client : jeton signé par le master pour ce fragment et ce slave
+        String jeton = data.has("token") ? data.get("token").getAsString() : null;
         
-        afficher("STORE_FRAGMENT: fileId=" + fileId + ", fragmentId=" + fragmentId + ", taille=" + taille);
+        log.debug("STORE_FRAGMENT", "file", fileId, "fragment", fragmentId, "taille", taille);
         
 
         if (taille < 0 || taille > MAX_FRAGMENT_SIZE) {
             envoyerACK(out, fragmentId, "ERROR: taille invalide");
             return;
         }
-        
+        if (jeton != null) {
+            long expiration = data.has("expires") ? data.get("expires").getAsLong() : 0;
+            if (!ClusterTokens.isConfigured() || expiration < System.currentTimeMillis()
+                    || !ClusterTokens.matches(ClusterTokens.writeToken(fileIdBrut, fragmentId, taille, slaveId, expiration), jeton)) {
+                metrics.counter("token_rejected_total").increment();
+                ignorerOctets(in, taille);
+                envoyerACK(out, fragmentId, "ERROR: jeton invalide");
+                return;
+            }
+        } else if (!signeParMaster("STORE_FRAGMENT", data, ClusterTokens.fragment(fileIdBrut, fragmentId, taille))) {
+            ignorerOctets(in, taille);
+            envoyerACK(out, fragmentId, "ERROR: jeton manquant ou invalide");
+            return;
+        }
+
+        String statut = ecrireFragment(in, canal, fileId, fragmentId, taille, checksumAttendu);
+        if ("OK".equals(statut)) sauvegarderIndex();
+        if (jeton != null && "OK".equals(statut)) {
+            metrics.counter("direct_stores_total").increment();
+            envoyerACK(out, fragmentId, statut, ClusterTokens.receipt(fileIdBrut, fragmentId, taille, slaveId));
+        } else {
+            envoyerACK(out, fragmentId, statut);
+        }
+    }
 
+    // avec cluster.secret : commande signée par le master pour ce slave et ces fragments
+    private boolean signeParMaster(String type, JsonObject data, String cibles) {
+        if (!ClusterTokens.isConfigured()) return true;
+        long expiration = data.has("master_expires") ? data.get("master_expires").getAsLong() : 0;
+        String jeton = data.has("master_token") ? data.get("master_token").getAsString() : null;
+        if (expiration >= System.currentTimeMillis()
+                && ClusterTokens.matches(ClusterTokens.masterToken(type, slaveId, expiration, cibles), jeton)) {
+            return true;
+        }
+        metrics.counter("token_rejected_total").increment();
+        log.warn("Commande refusée : signature du master absente ou invalide", "type", type);
+        return false;
+    }
+
+    // ========== STORE_BATCH ==========
+
+    // un en-tête liste les fragments, les contenus suivent bout à bout ; une seule réponse agrégée
+    private void stockerLot(InputStream in, SocketChannel canal, OutputStream out, JsonObject data) throws Exception {
+        long debut = System.nanoTime();
+        metrics.level("inflight_store").increment();
+        try {
+            JsonArray entrees = data != null && data.has("entries") ? data.getAsJsonArray("entries") : null;
+            if (entrees == null) {
+                envoyerErreur(out, "missing_fields", "entries manquant");
+                return;
+            }
+            StringBuilder cibles = new StringBuilder();
+            long total = 0;
+            for (JsonElement e : entrees) {
+                JsonObject entree = e.getAsJsonObject();
+                long taille = entree.get("length").getAsLong();
+                if (taille < 0 || taille > MAX_FRAGMENT_SIZE) {
+                    envoyerErreur(out, "bad_length", "taille invalide");
+                    return;
+                }
+                if (cibles.length() > 0) cibles.append(',');
+                cibles.append(ClusterTokens.fragment(entree.get("file_id").getAsString(), entree.get("fragment_id").getAsInt(), taille));
+                total += taille;
+            }
+            if (!signeParMaster("STORE_BATCH", data, cibles.toString())) {
+                ignorerOctets(in, total);
+                envoyerErreur(out, "unauthorized", "jeton master manquant ou invalide");
+                return;
+            }
+
+            JsonArray resultats = new JsonArray();
+            boolean toutOk = true;
+            for (JsonElement e : entrees) {
+                JsonObject entree = e.getAsJsonObject();
+                String fileId = nettoyerNom(entree.get("file_id").getAsString());
+                int fragmentId = entree.get("fragment_id").getAsInt();
+                long taille = entree.get("length").getAsLong();
+                String checksum = entree.has("checksum") ? entree.get("checksum").getAsString() : null;
+
+                String statut = ecrireFragment(in, canal, fileId, fragmentId, taille, checksum);
+                toutOk &= "OK".equals(statut);
+                JsonObject r = new JsonObject();
+                r.addProperty("file_id", fileId);
+                r.addProperty("fragment_id", fragmentId);
+                r.addProperty("status", statut);
+                resultats.add(r);
+            }
+            sauvegarderIndex();
+
+            JsonObject reponse = new JsonObject();
+            reponse.addProperty("type", "BATCH_ACK");
+            JsonObject d = new JsonObject();
+            d.addProperty("status", toutOk ? "OK" : "PARTIAL");
+            d.add("results", resultats);
+            reponse.add("data", d);
+            out.write((gson.toJson(reponse) + "\n").getBytes("UTF-8"));
+            out.flush();
+            log.debug("STORE_BATCH", "fragments", entrees.size(), "status", toutOk ? "OK" : "PARTIAL");
+        } finally {
+            metrics.level("inflight_store").decrement();
+            metrics.histogram("store_batch").recordNanos(System.nanoTime() - debut);
+        }
+    }
+
+    /**
+     * Écrit un fragment depuis le flux (fichier temporaire puis rename) et l'ajoute à l'index.
+     * Les octets annoncés sont toujours consommés, pour que le flux reste aligné dans un lot.
+     * Le fichier est dimensionné à la taille annoncée puis rempli depuis le canal de la socket
+     * (ou depuis le flux si slave.zeroCopy=false ou sans canal).
+     * @return "OK" ou "ERROR: ..."
+     */
+    private String ecrireFragment(InputStream in, SocketChannel canalSocket, String fileId, int fragmentId, long taille,
+                                  String checksumAttendu) throws Exception {
         if (obtenirEspaceLibre() < MIN_FREE_SPACE + taille) {
-            envoyerACK(out, fragmentId, "ERROR: espace disque insuffisant");
-            return;
+            ignorerOctets(in, taille);
+            return "ERROR: espace disque insuffisant";
         }
         
 
         String nomFichier = fileId + "_fragment_" + fragmentId + ".dat";
-        String cheminTemp = storageDir + "/" + nomFichier + ".tmp";
-        String cheminFinal = storageDir + "/" + nomFichier;
+        ShardedLayout cible = niveaux.layoutPourEcriture(taille);
+        String cheminTemp = cible.cheminTemp(nomFichier).toString();
+        String cheminFinal = cible.preparerFragment(nomFichier).toString();
         
 
+        // checksum calculé au stockage pour le scrubber (slave.hashOnStore), et toujours si le client en fournit un
         MessageDigest digest = null;
-        if (checksumAttendu != null) {
+        if (hacherAuStockage || checksumAttendu != null) {
             try {
                 digest = MessageDigest.getInstance("SHA-256");
             } catch (Exception e) {
-                afficherErreur("SHA-256 non disponible: " + e.getMessage());
+                log.error("SHA-256 non disponible", "erreur", e.getMessage());
             }
         }
         
 
+        long debutReception = System.nanoTime();
+        RandomAccessFile fos = null;
         try {
-            FileOutputStream fos = new FileOutputStream(cheminTemp);
-            byte[] buffer = new byte[8192]; 
-            long restant = taille;
-            
-            while (restant > 0) {
-       
-                int aLire = (int) Math.min(buffer.length, restant);
-                int lu = in.read(buffer, 0, aLire);
-                
-                if (lu == -1) {
-                    fos.close();
-                    new File(cheminTemp).delete();
-                    throw new Exception("Connexion coupée pendant le transfert");
-                }
-
-                fos.write(buffer, 0, lu);
-                
-   
-                if (digest != null) {
-                    digest.update(buffer, 0, lu);
-                }
-                
-                restant -= lu;
+            fos = new RandomAccessFile(cheminTemp, "rw");
+            fos.setLength(taille);
+            if (canalSocket != null && copieDirecte) {
+                recevoirParCanal(canalSocket, fos.getChannel(), taille, digest);
+            } else {
+                recevoirParFlux(in, fos, taille, digest);
             }
-            
-            fos.flush();
-            fos.close();
-            
         } catch (Exception e) {
+            fermerSilencieusement(fos);
             new File(cheminTemp).delete();
-            envoyerACK(out, fragmentId, "ERROR: " + e.getMessage());
-            return;
+            return "ERROR: " + e.getMessage();
         }
         
 
-        if (digest != null && checksumAttendu != null) {
-            String checksumCalculé = bytesToHex(digest.digest());
-            
+        String checksumCalculé = digest != null ? bytesToHex(digest.digest()) : checksumAttendu;
+        tracer.span("recv", debutReception, "fragment", String.valueOf(fragmentId), "bytes", String.valueOf(taille));
+        if (checksumCalculé != null && checksumAttendu != null) {
             if (!checksumCalculé.equalsIgnoreCase(checksumAttendu)) {
+                fermerSilencieusement(fos);
                 new File(cheminTemp).delete();
-                envoyerACK(out, fragmentId, "ERROR: checksum incorrect");
-                afficherErreur("Checksum mismatch: attendu=" + checksumAttendu + ", reçu=" + checksumCalculé);
-                return;
+                log.warn("Checksum incorrect", "fragment", nomFichier, "attendu", checksumAttendu, "recu", checksumCalculé);
+                return "ERROR: checksum incorrect";
             }
         }
         
     
-        File temp = new File(cheminTemp);
-        File dest = new File(cheminFinal);
-        
-        if (dest.exists()) dest.delete();
-        boolean renomme = temp.renameTo(dest);
-        
-        if (!renomme) {
-            temp.delete();
-            envoyerACK(out, fragmentId, "ERROR: impossible de renommer le fichier");
-            return;
-        }
-        
-
         Map<String, Object> meta = new HashMap<>();
         meta.put("fileId", fileId);
         meta.put("fragmentId", fragmentId);
         meta.put("taille", taille);
-        meta.put("checksum", checksumAttendu);
-        index.put(nomFichier, meta);
-        
+        meta.put("checksum", checksumCalculé);
+        TieredStorage.initialiserAcces(meta, System.currentTimeMillis(), 0);
 
-        sauvegarderIndex();
-        
+        // fsync selon slave.durability hors verrou, puis rename + publication sous le verrou du fragment :
+        // un déplacement entre niveaux en cours ne peut pas effacer la nouvelle version (il vérifie l'entrée
+        // d'index sous ce même verrou). L'ACK ne part qu'après le retour.
+        long debutCommit = System.nanoTime();
+        Path finalFragment = Paths.get(cheminFinal);
+        try {
+            committer.commit(fos.getChannel(), Paths.get(cheminTemp), finalFragment, niveaux.verrou(nomFichier), () -> {
+                niveaux.supprimerAutresCopies(nomFichier, finalFragment);
+                index.put(nomFichier, meta);
+            });
+        } catch (IOException e) {
+            fermerSilencieusement(fos);
+            new File(cheminTemp).delete();
+            return "ERROR: impossible de valider le fragment: " + e.getMessage();
+        }
+        tracer.span("commit", debutCommit, "fragment", String.valueOf(fragmentId), "mode", committer.getMode().name().toLowerCase());
 
-        envoyerACK(out, fragmentId, "OK");
-        afficher("Fragment stocké: " + nomFichier + " (" + taille + " bytes)");
+        metrics.counter("bytes_stored_total").add(taille);
+        metrics.counter("fragments_stored_total").increment();
+        log.debug("Fragment stocké", "fragment", nomFichier, "bytes", taille);
+        return "OK";
+    }
+
+    // ancien chemin : tampon sur le tas de slave.bufferSize octets
+    private void recevoirParFlux(InputStream in, RandomAccessFile fichier, long taille, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[tailleBuffer];
+        long restant = taille;
+        while (restant > 0) {
+            int lu = in.read(buffer, 0, (int) Math.min(buffer.length, restant));
+            if (lu == -1) throw new IOException("Connexion coupée pendant le transfert");
+            fichier.write(buffer, 0, lu);
+            if (digest != null) digest.update(buffer, 0, lu);
+            restant -= lu;
+        }
+    }
+
+    /**
+     * Lecture du canal dans un tampon direct réutilisé de 256 Ko, digest et écriture du même tampon :
+     * pas de copie sur le tas, un appel système par 256 Ko. FileChannel.transferFrom depuis une
+     * socket passe par un tampon temporaire de 8 Ko dans le JDK et s'est montré plus lent
+     * (bench.HotPathBenchmarks storepath). SO_TIMEOUT ne s'applique pas aux lectures sur le
+     * canal : il est fermé après DELAI_RECEPTION_MS sans progrès.
+     */
+    private void recevoirParCanal(SocketChannel source, FileChannel fichier, long taille, MessageDigest digest) throws IOException {
+        long position = 0;
+        long rearmement = BLOC_TRANSFERT;
+        ScheduledFuture<?> garde = surveiller(source);
+        ByteBuffer tampon = prendreTampon();
+        try {
+            while (position < taille) {
+                tampon.clear().limit((int) Math.min(tampon.capacity(), taille - position));
+                int n = source.read(tampon);
+                if (n <= 0) throw new IOException("Connexion coupée pendant le transfert");
+                tampon.flip();
+                if (digest != null) digest.update(tampon.duplicate());
+                while (tampon.hasRemaining()) fichier.write(tampon, position + tampon.position());
+                position += n;
+                if (position >= rearmement) {
+                    garde.cancel(false);
+                    garde = surveiller(source);
+                    rearmement = position + BLOC_TRANSFERT;
+                }
+            }
+        } catch (ClosedChannelException e) {
+            throw new IOException("Délai de réception dépassé", e);
+        } finally {
+            garde.cancel(false);
+            tamponsDirects.offer(tampon);
+        }
+    }
+
+    private ScheduledFuture<?> surveiller(SocketChannel canal) {
+        return surveillance.schedule(() -> fermerSilencieusement(canal), DELAI_RECEPTION_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private ByteBuffer prendreTampon() {
+        ByteBuffer b = tamponsDirects.poll();
+        return b != null ? b : ByteBuffer.allocateDirect(TAILLE_TAMPON_DIRECT);
+    }
+
+    private void ignorerOctets(InputStream in, long n) throws IOException {
+        byte[] buffer = new byte[tailleBuffer];
+        while (n > 0) {
+            int lu = in.read(buffer, 0, (int) Math.min(buffer.length, n));
+            if (lu == -1) return;
+            n -= lu;
+        }
+    }
+
+    private static void fermerSilencieusement(Closeable c) {
+        if (c == null) return;
+        try {
+            c.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // ========== GET_BATCH ==========
+
+    // en-tête avec la longueur de chaque fragment (-1 si absent), puis les contenus bout à bout
+    private void envoyerLot(OutputStream out, JsonObject data) throws Exception {
+        long debut = System.nanoTime();
+        metrics.level("inflight_get").increment();
+        List<RandomAccessFile> fichiers = new ArrayList<>();
+        try {
+            JsonArray entrees = data != null && data.has("entries") ? data.getAsJsonArray("entries") : null;
+            if (entrees == null) {
+                envoyerErreur(out, "missing_fields", "entries manquant");
+                return;
+            }
+
+            JsonArray descriptions = new JsonArray();
+            for (JsonElement e : entrees) {
+                JsonObject entree = e.getAsJsonObject();
+                String fileId = nettoyerNom(entree.get("file_id").getAsString());
+                int fragmentId = entree.get("fragment_id").getAsInt();
+                String nomFichier = fileId + "_fragment_" + fragmentId + ".dat";
+                Path chemin = niveaux.trouver(nomFichier);
+                niveaux.noterLecture(nomFichier, chemin);
+
+                // ouverture avant l'en-tête : les longueurs annoncées restent valides même si le fichier est supprimé
+                RandomAccessFile raf = null;
+                try {
+                    if (chemin != null) raf = new RandomAccessFile(chemin.toFile(), "r");
+                } catch (FileNotFoundException ignored) {
+                }
+                fichiers.add(raf);
+
+                JsonObject d = new JsonObject();
+                d.addProperty("file_id", fileId);
+                d.addProperty("fragment_id", fragmentId);
+                d.addProperty("length", raf == null ? -1 : raf.length());
+                Map<String, Object> meta = index.get(nomFichier);
+                if (meta != null && meta.get("checksum") != null) d.addProperty("checksum", (String) meta.get("checksum"));
+                descriptions.add(d);
+            }
+
+            JsonObject reponse = new JsonObject();
+            reponse.addProperty("type", "GET_BATCH_RESPONSE");
+            JsonObject d = new JsonObject();
+            d.add("entries", descriptions);
+            reponse.add("data", d);
+            out.write((gson.toJson(reponse) + "\n").getBytes("UTF-8"));
+
+            byte[] buffer = new byte[tailleBuffer];
+            long total = 0;
+            for (int i = 0; i < fichiers.size(); i++) {
+                RandomAccessFile raf = fichiers.get(i);
+                if (raf == null) continue;
+                long restant = descriptions.get(i).getAsJsonObject().get("length").getAsLong();
+                total += restant;
+                while (restant > 0) {
+                    int lu = raf.read(buffer, 0, (int) Math.min(buffer.length, restant));
+                    if (lu == -1) throw new IOException("Fragment tronqué");
+                    out.write(buffer, 0, lu);
+                    restant -= lu;
+                }
+            }
+            out.flush();
+            metrics.counter("bytes_served_total").add(total);
+            log.debug("GET_BATCH", "fragments", fichiers.size(), "bytes", total);
+        } finally {
+            for (RandomAccessFile raf : fichiers) if (raf != null) raf.close();
+            metrics.level("inflight_get").decrement();
+            metrics.histogram("get_batch").recordNanos(System.nanoTime() - debut);
+        }
     }
 
 
     
     private void envoyerFragment(OutputStream out, JsonObject data) throws Exception {
+        long debut = System.nanoTime();
+        metrics.level("inflight_get").increment();
+        try {
+            envoyerFragmentInterne(out, data);
+        } finally {
+            metrics.level("inflight_get").decrement();
+            metrics.histogram("get").recordNanos(System.nanoTime() - debut);
+        }
+    }
+
+    private void envoyerFragmentInterne(OutputStream out, JsonObject data) throws Exception {
         if (!data.has("file_id") || !data.has("fragment_id")) {
             envoyerErreur(out, "missing_fields", "file_id ou fragment_id manquant");
             return;
@@ -379,20 +842,32 @@ public class Slave {
         String fileId = nettoyerNom(data.get("file_id").getAsString());
         int fragmentId = data.get("fragment_id").getAsInt();
         String nomFichier = fileId + "_fragment_" + fragmentId + ".dat";
-        String chemin = storageDir + "/" + nomFichier;
+        Path chemin = niveaux.trouver(nomFichier);
         
-        File fichier = new File(chemin);
+        File fichier = chemin == null ? null : chemin.toFile();
         
-        if (!fichier.exists()) {
+        if (fichier == null || !fichier.exists()) {
             envoyerErreur(out, "not_found", "Fragment non trouvé");
             return;
         }
         
         long taille = fichier.length();
-        
+
+        // lecture partielle (offset/length) : le checksum du fragment entier n'est pas renvoyé
+        long debut = 0;
+        boolean partiel = data.has("offset") || data.has("length");
+        if (partiel) {
+            debut = data.has("offset") ? data.get("offset").getAsLong() : 0;
+            if (debut < 0 || debut > taille) {
+                envoyerErreur(out, "bad_range", "Offset hors du fragment");
+                return;
+            }
+            long demande = data.has("length") ? data.get("length").getAsLong() : taille - debut;
+            taille = Math.min(Math.max(demande, 0), taille - debut);
+        }
        
         String checksum = null;
-        if (index.containsKey(nomFichier)) {
+        if (!partiel && index.containsKey(nomFichier)) {
             Map<String, Object> meta = index.get(nomFichier);
             checksum = (String) meta.get("checksum");
         }
@@ -411,18 +886,186 @@ public class Slave {
         out.flush();
         
       
-        FileInputStream fis = new FileInputStream(fichier);
-        byte[] buffer = new byte[8192];
-        int lu;
+        RandomAccessFile fis = new RandomAccessFile(fichier, "r");
+        fis.seek(debut);
+        byte[] buffer = new byte[tailleBuffer];
+        long restant = taille;
         
-        while ((lu = fis.read(buffer)) != -1) {
+        while (restant > 0) {
+            int lu = fis.read(buffer, 0, (int) Math.min(buffer.length, restant));
+            if (lu == -1) break;
             out.write(buffer, 0, lu);
+            restant -= lu;
         }
         
         out.flush();
         fis.close();
+        metrics.counter("bytes_served_total").add(taille);
+        niveaux.noterLecture(nomFichier, chemin);
         
-        afficher("Fragment envoyé: " + nomFichier + " (" + taille + " bytes)");
+        log.debug("Fragment envoyé", "fragment", nomFichier, "bytes", taille);
+    }
+
+    // ========== UPLOAD DELTA ==========
+
+    /**
+     * Signatures des fragments demandés pour un upload delta : taille, empreinte glissante
+     * (common.RollingHash, sur le fragment entier) et SHA-256. L'empreinte est calculée à la
+     * première demande puis gardée dans l'index ; length -1 pour un fragment absent.
+     */
+    private void envoyerSignatures(OutputStream out, JsonObject data) throws Exception {
+        JsonArray entrees = data != null && data.has("entries") ? data.getAsJsonArray("entries") : null;
+        if (entrees == null) {
+            envoyerErreur(out, "missing_fields", "entries manquant");
+            return;
+        }
+        JsonArray signatures = new JsonArray();
+        boolean indexModifie = false;
+        byte[] buffer = new byte[tailleBuffer];
+        for (JsonElement e : entrees) {
+            JsonObject entree = e.getAsJsonObject();
+            String fileId = nettoyerNom(entree.get("file_id").getAsString());
+            int fragmentId = entree.get("fragment_id").getAsInt();
+            String nomFichier = fileId + "_fragment_" + fragmentId + ".dat";
+            JsonObject d = new JsonObject();
+            d.addProperty("file_id", fileId);
+            d.addProperty("fragment_id", fragmentId);
+            Map<String, Object> meta = index.get(nomFichier);
+            Path chemin = niveaux.trouver(nomFichier);
+            if (meta == null || chemin == null) {
+                d.addProperty("length", -1);
+                signatures.add(d);
+                continue;
+            }
+            String empreinte = (String) meta.get("empreinte");
+            String checksum = (String) meta.get("checksum");
+            long taille;
+            if (empreinte == null || checksum == null) {
+                MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                long h = 0;
+                taille = 0;
+                try (InputStream fis = Files.newInputStream(chemin)) {
+                    int lu;
+                    while ((lu = fis.read(buffer)) != -1) {
+                        h = RollingHash.update(h, buffer, 0, lu);
+                        digest.update(buffer, 0, lu);
+                        taille += lu;
+                    }
+                } catch (IOException ex) {
+                    d.addProperty("length", -1);
+                    signatures.add(d);
+                    continue;
+                }
+                empreinte = Long.toHexString(h);
+                if (checksum == null) checksum = bytesToHex(digest.digest());
+                // nouvelle entrée plutôt qu'ajout de clés : sauvegarderIndex peut sérialiser l'ancienne en ce moment.
+                // Empreinte stockée en texte : un long passé par index.json reviendrait en double.
+                Map<String, Object> nouvelle = new HashMap<>(meta);
+                nouvelle.put("empreinte", empreinte);
+                nouvelle.put("checksum", checksum);
+                synchronized (niveaux.verrou(nomFichier)) {
+                    // réécrit pendant la lecture : l'empreinte calculée ne vaut pas pour la nouvelle version
+                    if (index.get(nomFichier) != meta) {
+                        d.addProperty("length", -1);
+                        signatures.add(d);
+                        continue;
+                    }
+                    index.put(nomFichier, nouvelle);
+                }
+                metrics.counter("signature_bytes_read_total").add(taille);
+                indexModifie = true;
+            } else {
+                taille = ((Number) meta.get("taille")).longValue();
+            }
+            d.addProperty("length", taille);
+            d.addProperty("weak", empreinte);
+            d.addProperty("checksum", checksum);
+            signatures.add(d);
+        }
+        if (indexModifie) sauvegarderIndex();
+
+        JsonObject reponse = new JsonObject();
+        reponse.addProperty("type", "SIGNATURE_RESPONSE");
+        JsonObject d = new JsonObject();
+        d.add("entries", signatures);
+        reponse.add("data", d);
+        out.write((gson.toJson(reponse) + "\n").getBytes("UTF-8"));
+        out.flush();
+        metrics.counter("signatures_served_total").add(entrees.size());
+    }
+
+    /**
+     * Nouveau fragment identique à un fragment déjà stocké ici (fragment repris par un upload
+     * delta) : lien physique sur le même niveau, copie locale si le système de fichiers n'en
+     * permet pas. Les fragments ne sont jamais modifiés sur place (écriture temporaire puis
+     * rename) : les deux noms peuvent partager le même contenu et être supprimés séparément.
+     */
+    private void lierFragment(OutputStream out, JsonObject data) throws Exception {
+        if (data == null || !data.has("file_id") || !data.has("fragment_id")
+                || !data.has("source_file_id") || !data.has("source_fragment_id")) {
+            envoyerACK(out, -1, "ERROR: champs manquants");
+            return;
+        }
+        String fileId = nettoyerNom(data.get("file_id").getAsString());
+        int fragmentId = data.get("fragment_id").getAsInt();
+        String nomFichier = fileId + "_fragment_" + fragmentId + ".dat";
+        String nomSource = nettoyerNom(data.get("source_file_id").getAsString()) + "_fragment_"
+                + data.get("source_fragment_id").getAsInt() + ".dat";
+        if (!signeParMaster("LINK_FRAGMENT", data, ClusterTokens.fragment(data.get("file_id").getAsString(), fragmentId, -1) + ","
+                + ClusterTokens.fragment(data.get("source_file_id").getAsString(), data.get("source_fragment_id").getAsInt(), -1))) {
+            envoyerACK(out, fragmentId, "ERROR: jeton master manquant ou invalide");
+            return;
+        }
+
+        Path temp;
+        Path cheminFinal;
+        Map<String, Object> meta;
+        String mode = "link";
+        // sous le verrou de la source : ni déplacée entre niveaux ni supprimée pendant le lien
+        synchronized (niveaux.verrou(nomSource)) {
+            Map<String, Object> metaSource = index.get(nomSource);
+            Path source = niveaux.trouver(nomSource);
+            if (metaSource == null || source == null) {
+                envoyerACK(out, fragmentId, "ERROR: fragment source absent");
+                return;
+            }
+            ShardedLayout cible = niveaux.layoutDe(source);
+            temp = cible.cheminTemp(nomFichier);
+            cheminFinal = cible.preparerFragment(nomFichier);
+            Files.deleteIfExists(temp);
+            try {
+                Files.createLink(temp, source);
+            } catch (IOException | UnsupportedOperationException e) {
+                long taille = ((Number) metaSource.get("taille")).longValue();
+                if (obtenirEspaceLibre() < MIN_FREE_SPACE + taille) {
+                    envoyerACK(out, fragmentId, "ERROR: espace disque insuffisant");
+                    return;
+                }
+                Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+                mode = "copy";
+            }
+            meta = new HashMap<>(metaSource);
+        }
+        meta.put("fileId", fileId);
+        meta.put("fragmentId", fragmentId);
+        TieredStorage.initialiserAcces(meta, System.currentTimeMillis(), 0);
+
+        Path lien = cheminFinal;
+        Map<String, Object> metaLien = meta;
+        try {
+            committer.commit(FileChannel.open(temp, StandardOpenOption.WRITE), temp, lien, niveaux.verrou(nomFichier), () -> {
+                niveaux.supprimerAutresCopies(nomFichier, lien);
+                index.put(nomFichier, metaLien);
+            });
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            envoyerACK(out, fragmentId, "ERROR: impossible de valider le fragment: " + e.getMessage());
+            return;
+        }
+        sauvegarderIndex();
+        metrics.counter(Metrics.label("fragments_linked_total", "mode", mode)).increment();
+        log.debug("Fragment lié", "fragment", nomFichier, "source", nomSource, "mode", mode);
+        envoyerACK(out, fragmentId, "OK");
     }
 
     // ========== DELETE_FRAGMENT ==========
@@ -435,11 +1078,12 @@ public class Slave {
         
         String fileId = nettoyerNom(data.get("file_id").getAsString());
         int fragmentId = data.get("fragment_id").getAsInt();
+        if (!signeParMaster("DELETE_FRAGMENT", data, ClusterTokens.fragment(data.get("file_id").getAsString(), fragmentId, -1))) {
+            envoyerErreur(out, "unauthorized", "jeton master manquant ou invalide");
+            return;
+        }
         String nomFichier = fileId + "_fragment_" + fragmentId + ".dat";
-        String chemin = storageDir + "/" + nomFichier;
-        
-        File fichier = new File(chemin);
-        boolean supprime = fichier.delete();
+        boolean supprime = niveaux.supprimer(nomFichier);
         
         if (supprime) {
             index.remove(nomFichier);
@@ -447,7 +1091,7 @@ public class Slave {
             
             String json = "{\"type\":\"DELETE_ACK\",\"data\":{\"status\":\"OK\"}}";
             out.write((json + "\n").getBytes("UTF-8"));
-            afficher("Fragment supprimé: " + nomFichier);
+            log.debug("Fragment supprimé", "fragment", nomFichier);
         } else {
             envoyerErreur(out, "delete_error", "Impossible de supprimer le fichier");
         }
@@ -458,11 +1102,20 @@ public class Slave {
     private void repondrePong(OutputStream out) throws Exception {
         String json = "{\"type\":\"PONG\",\"data\":{\"slave_id\":\"" + slaveId + "\"}}";
         out.write((json + "\n").getBytes("UTF-8"));
-        afficher("PONG envoyé");
+        log.debug("PONG envoyé");
     }
 
 
     
+    private void envoyerStats(OutputStream out) throws Exception {
+        JsonObject stats = metrics.toJson();
+        stats.addProperty("slave_id", slaveId);
+        JsonObject msg = new JsonObject();
+        msg.addProperty("type", "STATS_RESPONSE");
+        msg.add("data", stats);
+        out.write((gson.toJson(msg) + "\n").getBytes("UTF-8"));
+    }
+
     private void envoyerACK(OutputStream out, int fragmentId, String status) throws Exception {
         String json = "{\"type\":\"ACK\",\"data\":{" +
                       "\"fragment_id\":" + fragmentId + "," +
@@ -471,6 +1124,16 @@ public class Slave {
         out.flush();
     }
 
+    // ACK d'une écriture directe : l'accusé signé est rapporté au master par le client
+    private void envoyerACK(OutputStream out, int fragmentId, String status, String accuse) throws Exception {
+        String json = "{\"type\":\"ACK\",\"data\":{" +
+                      "\"fragment_id\":" + fragmentId + "," +
+                      "\"status\":\"" + status + "\"," +
+                      "\"receipt\":\"" + accuse + "\"}}";
+        out.write((json + "\n").getBytes("UTF-8"));
+        out.flush();
+    }
+
    
     private void envoyerErreur(OutputStream out, String code, String message) throws Exception {
         String json = "{\"type\":\"ERROR\",\"data\":{" +
@@ -487,7 +1150,7 @@ public class Slave {
         File fichierIndex = new File(cheminIndex);
         
         if (!fichierIndex.exists()) {
-            afficher("Aucun index existant, création d'un nouvel index");
+            log.info("Aucun index existant, création d'un nouvel index");
             return;
         }
         
@@ -506,40 +1169,62 @@ public class Slave {
                 if (obj.has("checksum") && !obj.get("checksum").isJsonNull()) {
                     meta.put("checksum", obj.get("checksum").getAsString());
                 }
+                if (obj.has("empreinte") && !obj.get("empreinte").isJsonNull()) {
+                    meta.put("empreinte", obj.get("empreinte").getAsString());
+                }
+                // ancien index sans suivi des lectures : considéré comme lu au chargement
+                TieredStorage.initialiserAcces(meta,
+                        obj.has("dernierAcces") ? obj.get("dernierAcces").getAsLong() : System.currentTimeMillis(),
+                        obj.has("lectures") ? obj.get("lectures").getAsLong() : 0);
                 index.put(cle, meta);
             }
             
-            afficher("Index chargé: " + index.size() + " fragments");
+            log.info("Index chargé", "fragments", index.size());
         } catch (Exception e) {
-            afficherErreur("Erreur chargement index: " + e.getMessage());
+            log.error("Erreur chargement index", "erreur", e.getMessage());
         }
     }
     
-    private void sauvegarderIndex() {
-        String cheminIndex = storageDir + "/index.json";
+    // appelé par les threads de connexion et par le scrubber ; les entrées d'index ne sont jamais
+    // modifiées en structure (nouvelle map à chaque ajout de clé), l'écriture passe par un temporaire
+    // renommé : un index.json à moitié écrit ne remplace jamais le précédent
+    private synchronized void sauvegarderIndex() {
+        Path cheminIndex = Paths.get(storageDir, "index.json");
+        Path temp = Paths.get(storageDir, "index.json.tmp");
         
         try {
-            FileWriter writer = new FileWriter(cheminIndex);
-            gson.toJson(index, writer);
-            writer.flush();
-            writer.close();
+            try (Writer writer = Files.newBufferedWriter(temp)) {
+                gson.toJson(index, writer);
+            }
+            Files.move(temp, cheminIndex, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (Exception e) {
-            afficherErreur("Erreur sauvegarde index: " + e.getMessage());
+            log.error("Erreur sauvegarde index", "erreur", e.getMessage());
+            try { Files.deleteIfExists(temp); } catch (IOException ignored) {}
         }
     }
 
     
+    // seul le dossier tmp est parcouru ; les .tmp de l'ancien stockage plat sont traités par la migration
     private void nettoyerFichiersTemp() {
-        File dossier = new File(storageDir);
-        File[] fichiers = dossier.listFiles();
-        
-        if (fichiers == null) return;
-        
-        for (File f : fichiers) {
-            if (f.getName().endsWith(".tmp")) {
-                f.delete();
-                afficher("Fichier temporaire supprimé: " + f.getName());
+        if (layout == null) return;
+        try (DirectoryStream<Path> fichiers = Files.newDirectoryStream(layout.getDossierTemp())) {
+            for (Path f : fichiers) {
+                Files.deleteIfExists(f);
+                log.info("Fichier temporaire supprimé", "fichier", f.getFileName());
             }
+        } catch (IOException e) {
+            log.error("Nettoyage tmp impossible", "erreur", e.getMessage());
+        }
+    }
+
+    private void migrerStockage() {
+        try {
+            long debut = System.currentTimeMillis();
+            long deplaces = niveaux != null ? layout.migrer(niveaux::verrou) : layout.migrer();
+            log.info("Migration vers le stockage shardé terminée", "fragments", deplaces,
+                    "ms", System.currentTimeMillis() - debut);
+        } catch (IOException e) {
+            log.error("Migration du stockage interrompue", "erreur", e.getMessage());
         }
     }
 
@@ -553,6 +1238,7 @@ public class Slave {
 
     private long obtenirEspaceLibre() {
         try {
+            if (niveaux != null) return niveaux.espaceLibre();
             File f = new File(storageDir);
             return f.getUsableSpace();
         } catch (Exception e) {
@@ -561,21 +1247,13 @@ public class Slave {
     }
     
 
-    private String bytesToHex(byte[] bytes) {
+    static String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
             sb.append(String.format("%02x", b));
         }
         return sb.toString();
     }
-   
-    private void afficher(String message) {
-        System.out.println("[" + slaveId + "] " + message);
-    }
-    
-    private void afficherErreur(String message) {
-        System.err.println("[" + slaveId + "] ERREUR: " + message);
-    }
 
     // ========== MAIN  ==========
     
@@ -602,7 +1280,7 @@ public class Slave {
             
             slave.demarrer();
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.get("slave-" + slaveId).error("Démarrage du slave impossible", e);
         }
     }
 }
\ No newline at end of file
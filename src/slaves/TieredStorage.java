@@ -0,0 +1,328 @@
+package slaves;
+
+import common.Metrics;
+import common.RateLimiter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.IntSupplier;
+
+/**
+ * Stockage d'un slave sur plusieurs dossiers classés chaud (SSD) ou froid (HDD).
+ *
+ * storageDir est toujours le premier niveau chaud (index, tmp) ; slave.tiers en ajoute d'autres,
+ * ex. "cold:/hdd/slave{slave},hot:/ssd2/slave{slave}" ({slave} remplacé par l'id du slave).
+ * Chaque niveau garde sa propre disposition shardée. Les nouveaux fragments vont au chaud tant
+ * qu'il reste de la place ; l'index note pour chaque fragment sa dernière lecture et un compteur
+ * de lectures divisé par deux à chaque passe. En tâche de fond, au plus slave.tierMBps :
+ * rétrogradation au froid après slave.demoteAfterSec sans lecture ou quand le niveau chaud passe
+ * sous slave.hotMinFreePercent d'espace libre (les moins récemment lus d'abord), promotion au
+ * chaud dès slave.promoteReads lectures. Sans slave.tiers, un seul niveau et aucun déplacement.
+ */
+public class TieredStorage {
+    private static final long MIN_FREE_SPACE = 100L * 1024L * 1024L;
+    private static final int CHUNK = 64 * 1024;
+    private static final long PAUSE_MS = 200;
+    private static final int VERROUS = 64;
+
+    static class Niveau {
+        final Path racine;
+        final ShardedLayout layout;
+        final boolean chaud;
+
+        Niveau(Path racine, ShardedLayout layout, boolean chaud) {
+            this.racine = racine;
+            this.layout = layout;
+            this.chaud = chaud;
+        }
+
+        long libre() {
+            return racine.toFile().getUsableSpace();
+        }
+
+        double pourcentageLibre() {
+            long total = racine.toFile().getTotalSpace();
+            return total <= 0 ? 100 : 100.0 * libre() / total;
+        }
+    }
+
+    private final List<Niveau> niveaux = new ArrayList<>();
+    private final Map<String, Map<String, Object>> index;
+    private final Metrics metrics;
+    private final IntSupplier chargePremierPlan;
+    private final Object[] verrous = new Object[VERROUS];
+
+    private final RateLimiter debit = new RateLimiter(Long.getLong("slave.tierMBps", 20L) * 1024 * 1024);
+    private final int seuilPause = Integer.getInteger("slave.tierPauseAt", 2);
+    private final long intervalleMs = Long.getLong("slave.tierIntervalSec", 60L) * 1000;
+    private final long retrogradationMs = Long.getLong("slave.demoteAfterSec", 86_400L) * 1000;
+    private final long lecturesPromotion = Long.getLong("slave.promoteReads", 3L);
+    private final double libreMinChaud = Double.parseDouble(System.getProperty("slave.hotMinFreePercent", "10"));
+
+    private volatile Thread thread;
+
+    public TieredStorage(ShardedLayout principal, String storageDir, String config, String slaveId,
+                         Map<String, Map<String, Object>> index, Metrics metrics, IntSupplier chargePremierPlan) throws IOException {
+        this.index = index;
+        this.metrics = metrics;
+        this.chargePremierPlan = chargePremierPlan;
+        for (int i = 0; i < VERROUS; i++) verrous[i] = new Object();
+
+        niveaux.add(new Niveau(Paths.get(storageDir), principal, true));
+        if (config != null) {
+            for (String part : config.split(",")) {
+                part = part.trim();
+                if (part.isEmpty()) continue;
+                int sep = part.indexOf(':');
+                String classe = sep > 0 ? part.substring(0, sep).trim() : "";
+                if (!classe.equals("hot") && !classe.equals("cold")) {
+                    throw new IllegalArgumentException("slave.tiers: hot:<dossier> ou cold:<dossier> attendu, reçu " + part);
+                }
+                Path racine = Paths.get(part.substring(sep + 1).trim().replace("{slave}", slaveId));
+                Files.createDirectories(racine);
+                ShardedLayout layout = new ShardedLayout(racine.toString());
+                layout.migrer();
+                niveaux.add(new Niveau(racine, layout, classe.equals("hot")));
+            }
+        }
+        // les niveaux chauds d'abord : trouver() les consulte en premier
+        niveaux.sort(Comparator.comparing(n -> !n.chaud));
+    }
+
+    public boolean estMultiNiveaux() {
+        return niveaux.size() > 1;
+    }
+
+    /** Verrou d'un fragment : écriture, suppression et déplacement d'un même fragment ne se croisent pas. */
+    public Object verrou(String nomFichier) {
+        return verrous[Math.floorMod(nomFichier.hashCode(), VERROUS)];
+    }
+
+    /** Emplacement actuel d'un fragment, chaud d'abord ; null s'il n'existe nulle part. */
+    public Path trouver(String nomFichier) {
+        for (Niveau n : niveaux) {
+            Path p = n.layout.trouver(nomFichier);
+            if (p != null) return p;
+        }
+        return null;
+    }
+
+    /** Niveau où écrire un nouveau fragment : chaud s'il a la place, sinon le froid le plus libre. */
+    public ShardedLayout layoutPourEcriture(long taille) {
+        Niveau choisi = null;
+        for (Niveau n : niveaux) {
+            if (n.chaud && n.libre() >= MIN_FREE_SPACE + taille && n.pourcentageLibre() >= libreMinChaud) return n.layout;
+            if (!n.chaud && (choisi == null || n.libre() > choisi.libre())) choisi = n;
+        }
+        return choisi != null ? choisi.layout : niveaux.get(0).layout;
+    }
+
+    /** Après l'écriture d'une nouvelle version : les copies restées sur d'autres niveaux sont périmées. */
+    public void supprimerAutresCopies(String nomFichier, Path garde) {
+        for (Niveau n : niveaux) {
+            Path p = n.layout.cheminFragment(nomFichier);
+            if (p.equals(garde)) continue;
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Layout du niveau qui contient ce chemin (le premier niveau chaud si aucun). */
+    public ShardedLayout layoutDe(Path chemin) {
+        Niveau n = niveauDe(chemin);
+        return n != null ? n.layout : niveaux.get(0).layout;
+    }
+
+    /** Supprime le fragment de tous les niveaux ; false s'il n'existait nulle part. */
+    public boolean supprimer(String nomFichier) {
+        boolean supprime = false;
+        synchronized (verrou(nomFichier)) {
+            Path p;
+            while ((p = trouver(nomFichier)) != null) {
+                if (!p.toFile().delete()) break;
+                supprime = true;
+            }
+        }
+        return supprime;
+    }
+
+    /** Espace libre cumulé des niveaux (un système de fichiers partagé n'est compté qu'une fois). */
+    public long espaceLibre() {
+        long total = 0;
+        Set<Object> vus = new HashSet<>();
+        for (Niveau n : niveaux) {
+            Object cle;
+            try {
+                cle = Files.getFileStore(n.racine);
+            } catch (IOException e) {
+                cle = n.racine;
+            }
+            if (vus.add(cle)) total += n.libre();
+        }
+        return total;
+    }
+
+    /** Champs de suivi des lectures pour une entrée d'index (nouvelle ou chargée d'un ancien index). */
+    public static void initialiserAcces(Map<String, Object> meta, long dernierAcces, long lectures) {
+        meta.put("dernierAcces", dernierAcces);
+        meta.put("lectures", lectures);
+    }
+
+    // les clés existent déjà : simples remplacements de valeurs, sans modifier la structure de la map
+    public void noterLecture(String nomFichier, Path chemin) {
+        Map<String, Object> meta = index.get(nomFichier);
+        if (meta != null && meta.containsKey("lectures")) {
+            meta.put("dernierAcces", System.currentTimeMillis());
+            meta.put("lectures", ((Number) meta.get("lectures")).longValue() + 1);
+        }
+        if (estMultiNiveaux()) {
+            Niveau n = chemin == null ? null : niveauDe(chemin);
+            boolean chaud = n != null && n.chaud;
+            metrics.counter(Metrics.label("reads_by_tier_total", "tier", chaud ? "hot" : "cold")).increment();
+        }
+    }
+
+    public synchronized void demarrer() {
+        if (!estMultiNiveaux() || thread != null) return;
+        thread = new Thread(this::boucle, "tiering");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    public synchronized void arreter() {
+        if (thread != null) thread.interrupt();
+        thread = null;
+    }
+
+    private void boucle() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(intervalleMs);
+                passe();
+            }
+        } catch (InterruptedException e) {
+            // arrêt du slave
+        }
+    }
+
+    void passe() throws InterruptedException {
+        long maintenant = System.currentTimeMillis();
+        List<String> chauds = new ArrayList<>();
+        for (String nom : new ArrayList<>(index.keySet())) {
+            Map<String, Object> meta = index.get(nom);
+            if (meta == null || !meta.containsKey("lectures")) continue;
+            Path chemin = trouver(nom);
+            Niveau courant = chemin == null ? null : niveauDe(chemin);
+            if (courant == null) continue;
+            long lectures = ((Number) meta.get("lectures")).longValue();
+            long age = maintenant - ((Number) meta.get("dernierAcces")).longValue();
+
+            if (!courant.chaud && lectures >= lecturesPromotion) {
+                Niveau cible = plusLibre(true);
+                if (cible != null && cible.pourcentageLibre() > libreMinChaud + 5) {
+                    if (deplacer(nom, meta, chemin, cible)) metrics.counter("tier_promotions_total").increment();
+                }
+            } else if (courant.chaud && age > retrogradationMs && lectures < lecturesPromotion) {
+                Niveau cible = plusLibre(false);
+                if (cible != null && deplacer(nom, meta, chemin, cible)) metrics.counter("tier_demotions_total").increment();
+            } else if (courant.chaud) {
+                chauds.add(nom);
+            }
+            meta.put("lectures", lectures / 2);
+        }
+        libererChaud(chauds);
+    }
+
+    // niveau chaud trop plein : les fragments les moins récemment lus descendent jusqu'à retrouver de la marge
+    private void libererChaud(List<String> chauds) throws InterruptedException {
+        Niveau froid = plusLibre(false);
+        if (froid == null || !chaudSature()) return;
+        chauds.sort(Comparator.comparingLong(n -> {
+            Map<String, Object> meta = index.get(n);
+            return meta == null ? 0 : ((Number) meta.get("dernierAcces")).longValue();
+        }));
+        for (String nom : chauds) {
+            if (!chaudSature()) break;
+            Map<String, Object> meta = index.get(nom);
+            Path chemin = trouver(nom);
+            if (meta == null || chemin == null) continue;
+            if (deplacer(nom, meta, chemin, froid)) metrics.counter("tier_demotions_total").increment();
+        }
+    }
+
+    private boolean chaudSature() {
+        for (Niveau n : niveaux) {
+            if (n.chaud && n.pourcentageLibre() < libreMinChaud) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copie limitée en débit vers le tmp du niveau cible, puis, sous le verrou du fragment,
+     * rename dans le shard cible et suppression de la source. Abandon si le fragment a été
+     * réécrit ou supprimé pendant la copie (l'entrée d'index a changé).
+     */
+    private boolean deplacer(String nom, Map<String, Object> meta, Path source, Niveau cible) throws InterruptedException {
+        Path temp = cible.layout.cheminTemp(nom);
+        try {
+            try (InputStream in = Files.newInputStream(source);
+                 FileChannel canal = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING);
+                 OutputStream out = java.nio.channels.Channels.newOutputStream(canal)) {
+                byte[] buffer = new byte[CHUNK];
+                int n;
+                while (true) {
+                    debit.acquire(CHUNK);
+                    attendreCalme();
+                    if ((n = in.read(buffer)) == -1) break;
+                    out.write(buffer, 0, n);
+                    metrics.counter("tier_moved_bytes_total").add(n);
+                }
+                out.flush();
+                canal.force(true);
+            }
+            synchronized (verrou(nom)) {
+                if (index.get(nom) != meta || !Files.exists(source)) {
+                    Files.deleteIfExists(temp);
+                    return false;
+                }
+                Files.move(temp, cible.layout.preparerFragment(nom), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(source);
+            }
+            return true;
+        } catch (IOException e) {
+            try { Files.deleteIfExists(temp); } catch (IOException ignored) {}
+            metrics.counter("tier_move_errors_total").increment();
+            return false;
+        }
+    }
+
+    private Niveau plusLibre(boolean chaud) {
+        Niveau choisi = null;
+        for (Niveau n : niveaux) {
+            if (n.chaud == chaud && (choisi == null || n.libre() > choisi.libre())) choisi = n;
+        }
+        return choisi;
+    }
+
+    // racine la plus longue : un niveau peut être un sous-dossier de storageDir
+    private Niveau niveauDe(Path chemin) {
+        Niveau trouve = null;
+        for (Niveau n : niveaux) {
+            if (chemin.startsWith(n.racine) && (trouve == null || n.racine.getNameCount() > trouve.racine.getNameCount())) trouve = n;
+        }
+        return trouve;
+    }
+
+    private void attendreCalme() throws InterruptedException {
+        while (chargePremierPlan.getAsInt() >= seuilPause) Thread.sleep(PAUSE_MS);
+    }
+}
@@ -0,0 +1,323 @@
+package ui;
+
+import client.ClientSocket;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import javax.swing.*;
+import javax.swing.border.TitledBorder;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.List;
+
+/**
+ * Tableau de bord du cluster : interroge STATS sur le master à intervalle fixe et affiche
+ * le débit agrégé, les opérations en cours, l'espace libre et l'état de chaque slave, et les
+ * percentiles de latence.
+ *
+ * Un seul sondage à la fois : le Timer ne lance pas de nouveau SwingWorker tant que le
+ * précédent n'a pas rendu son instantané, et chaque instantané est appliqué en un seul passage
+ * sur l'EDT (un repaint par graphe), quel que soit le nombre de métriques.
+ */
+public class DashboardPanel extends JPanel {
+    private static final long serialVersionUID = 1L;
+
+    private static final int HISTORY = 120;
+    private static final double MB = 1024.0 * 1024.0;
+
+    private final Gson gson = new Gson();
+    private final javax.swing.Timer timer;
+    private ClientSocket client;
+    private SwingWorker<Snapshot, Void> pending;
+
+    private final LineChart throughput = new LineChart(new String[]{"Upload", "Download"},
+            new Color[]{new Color(0x2E7D32), new Color(0x1565C0)});
+    private final LineChart inflight = new LineChart(new String[]{"Uploads", "Downloads", "Stores slaves", "GET slaves"},
+            new Color[]{new Color(0x2E7D32), new Color(0x1565C0), new Color(0xEF6C00), new Color(0x6A1B9A)});
+    private final SlaveBars slaveBars = new SlaveBars();
+    private final DefaultTableModel latencyModel;
+    private final JLabel status = new JLabel("Non connecté");
+
+    // instantané décodé hors EDT
+    private static class Snapshot {
+        double uploadMBps;
+        double downloadMBps;
+        long[] inflight = new long[4];
+        final List<SlaveState> slaves = new ArrayList<>();
+        final List<Object[]> latency = new ArrayList<>();
+    }
+
+    private static class SlaveState {
+        int id;
+        String address;
+        long freeBytes;
+        boolean alive;
+        double outMBps;
+    }
+
+    public DashboardPanel() {
+        super(new BorderLayout(6, 6));
+        setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+
+        latencyModel = new DefaultTableModel(new String[]{"Opération", "Nb", "p50 ms", "p90 ms", "p99 ms", "max ms"}, 0) {
+            @Override public boolean isCellEditable(int row, int col) { return false; }
+        };
+        JTable latencyTable = new JTable(latencyModel);
+        latencyTable.setAutoCreateRowSorter(true);
+
+        JPanel grid = new JPanel(new GridLayout(2, 2, 6, 6));
+        grid.add(titled("Débit agrégé (Mo/s)", throughput));
+        grid.add(titled("Opérations en cours", inflight));
+        grid.add(titled("Slaves : espace libre (rouge = mort)", slaveBars));
+        grid.add(titled("Latences", new JScrollPane(latencyTable)));
+        add(grid, BorderLayout.CENTER);
+        add(status, BorderLayout.SOUTH);
+
+        timer = new javax.swing.Timer(Integer.getInteger("dashboard.pollMs", 1000), e -> poll());
+        timer.setInitialDelay(0);
+    }
+
+    private static JComponent titled(String title, JComponent c) {
+        JPanel p = new JPanel(new BorderLayout());
+        p.setBorder(new TitledBorder(title));
+        p.add(c, BorderLayout.CENTER);
+        return p;
+    }
+
+    public void setClient(ClientSocket client) {
+        this.client = client;
+        if (client != null) timer.start();
+        else timer.stop();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    private void poll() {
+        if (client == null || !isShowing()) return;
+        if (pending != null && !pending.isDone()) return;
+        ClientSocket c = client;
+        pending = new SwingWorker<>() {
+            @Override protected Snapshot doInBackground() throws Exception {
+                return parse(c.getStats());
+            }
+
+            @Override protected void done() {
+                try {
+                    apply(get());
+                } catch (Exception e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    status.setText("Erreur STATS: " + cause.getMessage());
+                    status.setForeground(Color.RED);
+                }
+            }
+        };
+        pending.execute();
+    }
+
+    private Snapshot parse(String json) {
+        JsonObject root = gson.fromJson(json, JsonObject.class);
+        JsonObject rates = obj(root, "rates");
+        JsonObject gauges = obj(root, "gauges");
+        Snapshot s = new Snapshot();
+        // les uploads directs ne passent pas par le master : comptés à leur validation
+        s.uploadMBps = (dbl(rates, "client_bytes_in_total") + dbl(rates, "direct_upload_bytes_total")) / MB;
+        s.downloadMBps = dbl(rates, "client_bytes_out_total") / MB;
+        s.inflight[0] = num(gauges, "inflight_uploads");
+        s.inflight[1] = num(gauges, "inflight_downloads");
+        s.inflight[2] = num(gauges, "inflight_store");
+        s.inflight[3] = num(gauges, "inflight_get");
+
+        if (root.has("slaves")) {
+            for (JsonElement e : root.getAsJsonArray("slaves")) {
+                JsonObject o = e.getAsJsonObject();
+                SlaveState st = new SlaveState();
+                st.id = o.get("id").getAsInt();
+                st.address = o.get("host").getAsString() + ":" + o.get("port").getAsInt();
+                st.freeBytes = o.get("capacity").getAsLong();
+                st.alive = o.get("actif").getAsBoolean();
+                st.outMBps = o.has("bytes_out_per_sec") ? o.get("bytes_out_per_sec").getAsDouble() / MB : 0;
+                s.slaves.add(st);
+            }
+            s.slaves.sort(Comparator.comparingInt(st -> st.id));
+        }
+        JsonObject latency = obj(root, "latency");
+        for (Map.Entry<String, JsonElement> e : latency.entrySet()) {
+            JsonObject h = e.getValue().getAsJsonObject();
+            s.latency.add(new Object[]{e.getKey(), h.get("count").getAsLong(), h.get("p50_ms").getAsDouble(),
+                    h.get("p90_ms").getAsDouble(), h.get("p99_ms").getAsDouble(), h.get("max_ms").getAsDouble()});
+        }
+        return s;
+    }
+
+    // sur l'EDT
+    private void apply(Snapshot s) {
+        throughput.add(new double[]{s.uploadMBps, s.downloadMBps});
+        inflight.add(new double[]{s.inflight[0], s.inflight[1], s.inflight[2], s.inflight[3]});
+        slaveBars.setSlaves(s.slaves);
+
+        latencyModel.setRowCount(0);
+        for (Object[] row : s.latency) latencyModel.addRow(row);
+
+        long dead = s.slaves.stream().filter(st -> !st.alive).count();
+        status.setText(String.format("Mis à jour %s — %d slave(s), %d mort(s) — upload %.1f Mo/s, download %.1f Mo/s",
+                new SimpleDateFormat("HH:mm:ss").format(new Date()), s.slaves.size(), dead, s.uploadMBps, s.downloadMBps));
+        status.setForeground(dead > 0 ? new Color(0xC62828) : Color.DARK_GRAY);
+    }
+
+    private static JsonObject obj(JsonObject o, String key) {
+        return o.has(key) ? o.getAsJsonObject(key) : new JsonObject();
+    }
+
+    private static double dbl(JsonObject o, String key) {
+        return o.has(key) ? o.get(key).getAsDouble() : 0;
+    }
+
+    private static long num(JsonObject o, String key) {
+        return o.has(key) ? o.get(key).getAsLong() : 0;
+    }
+
+    /** Courbes sur les HISTORY derniers sondages, échelle verticale ajustée au maximum visible. */
+    static class LineChart extends JComponent {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] names;
+        private final Color[] colors;
+        private final double[][] values;
+        private int count;
+        private int head;
+
+        LineChart(String[] names, Color[] colors) {
+            this.names = names;
+            this.colors = colors;
+            this.values = new double[HISTORY][];
+            setPreferredSize(new Dimension(360, 180));
+        }
+
+        void add(double[] sample) {
+            values[head] = sample;
+            head = (head + 1) % HISTORY;
+            if (count < HISTORY) count++;
+            repaint();
+        }
+
+        @Override protected void paintComponent(Graphics g0) {
+            Graphics2D g = (Graphics2D) g0.create();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            int w = getWidth(), h = getHeight();
+            int left = 48, right = 8, top = 18, bottom = 16;
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+
+            double max = 1;
+            for (int i = 0; i < count; i++) for (double v : sample(i)) max = Math.max(max, v);
+            max = niceCeiling(max);
+
+            int plotW = Math.max(1, w - left - right), plotH = Math.max(1, h - top - bottom);
+            g.setColor(new Color(0xE0E0E0));
+            for (int k = 0; k <= 4; k++) {
+                int y = top + plotH - k * plotH / 4;
+                g.drawLine(left, y, left + plotW, y);
+            }
+            g.setColor(Color.GRAY);
+            g.setFont(g.getFont().deriveFont(10f));
+            for (int k = 0; k <= 4; k++) {
+                int y = top + plotH - k * plotH / 4;
+                g.drawString(format(max * k / 4), 4, y + 4);
+            }
+
+            g.setStroke(new BasicStroke(1.6f));
+            for (int s = 0; s < names.length; s++) {
+                g.setColor(colors[s]);
+                int px = -1, py = -1;
+                for (int i = 0; i < count; i++) {
+                    int x = left + (HISTORY - count + i) * plotW / (HISTORY - 1);
+                    int y = top + plotH - (int) Math.round(sample(i)[s] / max * plotH);
+                    if (px >= 0) g.drawLine(px, py, x, y);
+                    px = x;
+                    py = y;
+                }
+            }
+            int lx = left + 6;
+            for (int s = 0; s < names.length; s++) {
+                g.setColor(colors[s]);
+                g.fillRect(lx, 6, 10, 4);
+                g.setColor(Color.DARK_GRAY);
+                g.drawString(names[s], lx + 13, 12);
+                lx += 18 + g.getFontMetrics().stringWidth(names[s]);
+            }
+            g.dispose();
+        }
+
+        // i-ème échantillon, du plus ancien au plus récent
+        private double[] sample(int i) {
+            return values[(head - count + i + HISTORY) % HISTORY];
+        }
+
+        private static double niceCeiling(double v) {
+            double p = Math.pow(10, Math.floor(Math.log10(v)));
+            for (double m : new double[]{1, 2, 5, 10}) if (m * p >= v) return m * p;
+            return 10 * p;
+        }
+
+        private static String format(double v) {
+            if (v == Math.rint(v)) return String.format("%.0f", v);
+            return String.format(v < 1 ? "%.2f" : "%.1f", v);
+        }
+    }
+
+    /** Une barre par slave : espace libre relatif au plus grand, verte si vivant, rouge si mort. */
+    static class SlaveBars extends JComponent {
+        private static final long serialVersionUID = 1L;
+
+        private List<SlaveState> slaves = new ArrayList<>();
+
+        SlaveBars() {
+            setPreferredSize(new Dimension(360, 180));
+        }
+
+        void setSlaves(List<SlaveState> slaves) {
+            this.slaves = slaves;
+            repaint();
+        }
+
+        @Override protected void paintComponent(Graphics g0) {
+            Graphics2D g = (Graphics2D) g0.create();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            int w = getWidth(), h = getHeight();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, w, h);
+            if (slaves.isEmpty()) {
+                g.setColor(Color.GRAY);
+                g.drawString("Aucun slave enregistré", 10, 20);
+                g.dispose();
+                return;
+            }
+            long maxFree = 1;
+            for (SlaveState s : slaves) maxFree = Math.max(maxFree, s.freeBytes);
+
+            g.setFont(g.getFont().deriveFont(11f));
+            int labelW = 130, textW = 150;
+            int rowH = Math.max(14, Math.min(28, (h - 8) / slaves.size()));
+            int barMax = Math.max(10, w - labelW - textW - 16);
+            int y = 4;
+            for (SlaveState s : slaves) {
+                if (y + rowH > h) break;
+                g.setColor(Color.DARK_GRAY);
+                g.drawString("#" + s.id + " " + s.address, 6, y + rowH - 5);
+                int bw = (int) Math.max(1, (double) s.freeBytes / maxFree * barMax);
+                g.setColor(s.alive ? new Color(0x43A047) : new Color(0xE53935));
+                g.fillRect(labelW, y + 3, bw, rowH - 6);
+                g.setColor(Color.DARK_GRAY);
+                g.drawString(String.format("%.1f Go libres, %.1f Mo/s", s.freeBytes / (MB * 1024), s.outMBps),
+                        labelW + bw + 6, y + rowH - 5);
+                y += rowH;
+            }
+            g.dispose();
+        }
+    }
+}
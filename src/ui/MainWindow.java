@@ -25,7 +25,7 @@ public class MainWindow extends JFrame {
     private JButton btnUpload;
     private JProgressBar progressUpload;
     private JLabel lblSelectedFile;
-    private File selectedFile;
+    private File[] selectedFiles;
 
     private DefaultTableModel tableModel;
     private JTable fileTable;
@@ -34,12 +34,14 @@ public class MainWindow extends JFrame {
     private JProgressBar progressDownload;
 
     private ClientSocket client;
+    private DashboardPanel dashboard;
     private boolean isConnected = false;
+    private static final int UPLOAD_WORKERS = Integer.getInteger("client.uploadWorkers", 4);
 
     public MainWindow() {
         setTitle("Client - Stockage Distribue (simplifie)");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(800, 500);
+        setSize(1000, 650);
         setLocationRelativeTo(null);
 
         initComponents();
@@ -119,13 +121,21 @@ public class MainWindow extends JFrame {
 
         left.add(listPanel, BorderLayout.CENTER);
 
-        main.add(left, BorderLayout.CENTER);
+        JPanel files = new JPanel(new BorderLayout(8, 8));
+        files.add(left, BorderLayout.CENTER);
 
         // Right: simple help/info
         JTextArea info = new JTextArea("Utilisation:\n1) Connecter au Master\n2) Choisir un fichier et uploader\n3) Rafraichir la liste et télécharger");
         info.setEditable(false);
         info.setBackground(getContentPane().getBackground());
-        main.add(info, BorderLayout.EAST);
+        files.add(info, BorderLayout.EAST);
+
+        // Onglets : fichiers, et tableau de bord du cluster (sondé seulement quand il est visible)
+        dashboard = new DashboardPanel();
+        JTabbedPane tabs = new JTabbedPane();
+        tabs.addTab("Fichiers", files);
+        tabs.addTab("Tableau de bord", dashboard);
+        main.add(tabs, BorderLayout.CENTER);
 
         setContentPane(main);
     }
@@ -147,6 +157,15 @@ public class MainWindow extends JFrame {
         SwingWorker<Boolean, Void> w = new SwingWorker<>() {
             @Override protected Boolean doInBackground() {
                 client = new ClientSocket(host, port);
+                String cacheDir = System.getProperty("client.cacheDir");
+                if (cacheDir != null) {
+                    try {
+                        client.setCache(new client.FragmentCache(java.nio.file.Paths.get(cacheDir),
+                                Long.getLong("client.cacheMB", 1024L) * 1024 * 1024));
+                    } catch (java.io.IOException e) {
+                        System.err.println("Cache local indisponible: " + e.getMessage());
+                    }
+                }
                 return client.testConnection();
             }
             @Override protected void done() {
@@ -158,6 +177,7 @@ public class MainWindow extends JFrame {
                         btnChooseFile.setEnabled(true);
                         btnRefresh.setEnabled(true);
                         btnConnect.setText("Reconnecter");
+                        dashboard.setClient(client);
                     } else {
                         lblConnectionStatus.setText("Echec connexion");
                         lblConnectionStatus.setForeground(Color.RED);
@@ -176,17 +196,32 @@ public class MainWindow extends JFrame {
 
     private void handleChooseFile() {
         JFileChooser chooser = new JFileChooser();
-        chooser.setDialogTitle("Choisir un fichier");
+        chooser.setDialogTitle("Choisir des fichiers ou un dossier");
+        chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        chooser.setMultiSelectionEnabled(true);
         int r = chooser.showOpenDialog(this);
         if (r == JFileChooser.APPROVE_OPTION) {
-            selectedFile = chooser.getSelectedFile();
-            lblSelectedFile.setText(selectedFile.getName() + " (" + humanSize(selectedFile.length()) + ")");
+            selectedFiles = chooser.getSelectedFiles();
+            if (selectedFiles.length == 1 && selectedFiles[0].isDirectory()) {
+                lblSelectedFile.setText(selectedFiles[0].getName() + "/ (dossier)");
+            } else if (selectedFiles.length == 1) {
+                lblSelectedFile.setText(selectedFiles[0].getName() + " (" + humanSize(selectedFiles[0].length()) + ")");
+            } else {
+                long total = 0;
+                for (File f : selectedFiles) total += f.length();
+                lblSelectedFile.setText(selectedFiles.length + " fichiers (" + humanSize(total) + ")");
+            }
             btnUpload.setEnabled(true);
         }
     }
 
     private void handleUpload() {
-        if (!isConnected || selectedFile == null) return;
+        if (!isConnected || selectedFiles == null || selectedFiles.length == 0) return;
+        if (selectedFiles.length > 1 || selectedFiles[0].isDirectory()) {
+            handleBulkUpload();
+            return;
+        }
+        File selectedFile = selectedFiles[0];
 
         btnUpload.setEnabled(false);
         btnChooseFile.setEnabled(false);
@@ -223,6 +258,53 @@ public class MainWindow extends JFrame {
         w.execute();
     }
 
+    // plusieurs fichiers ou un dossier : envoi parallèle, progression globale
+    private void handleBulkUpload() {
+        File[] files = selectedFiles;
+        btnUpload.setEnabled(false);
+        btnChooseFile.setEnabled(false);
+        progressUpload.setValue(0);
+
+        SwingWorker<ClientSocket.UploadManifest, Integer> w = new SwingWorker<>() {
+            @Override protected ClientSocket.UploadManifest doInBackground() throws Exception {
+                ClientSocket.ProgressListener listener = (sent, total) -> {
+                    int pct = total > 0 ? (int) ((sent * 100) / total) : 0;
+                    publish(pct);
+                };
+                if (files.length == 1) return client.uploadDirectory(files[0], UPLOAD_WORKERS, listener);
+                return client.uploadFiles(java.util.Arrays.asList(files), UPLOAD_WORKERS, listener);
+            }
+
+            @Override protected void process(List<Integer> chunks) {
+                progressUpload.setValue(chunks.get(chunks.size()-1));
+            }
+
+            @Override protected void done() {
+                try {
+                    ClientSocket.UploadManifest manifest = get();
+                    int count = manifest.getEntries().size();
+                    long failed = manifest.failedCount();
+                    String msg = (count - failed) + "/" + count + " fichier(s) envoyé(s)";
+                    if (failed > 0) {
+                        ClientSocket.UploadManifest.Entry first = manifest.getEntries().stream()
+                                .filter(e -> !e.isOk()).findFirst().get();
+                        msg += "\nPremière erreur: " + first.getPath() + " - " + first.getError();
+                    }
+                    JOptionPane.showMessageDialog(MainWindow.this, msg, failed > 0 ? "Upload partiel" : "OK",
+                            failed > 0 ? JOptionPane.WARNING_MESSAGE : JOptionPane.INFORMATION_MESSAGE);
+                    handleRefreshList();
+                } catch (Exception e) {
+                    JOptionPane.showMessageDialog(MainWindow.this, "Erreur upload: " + e.getMessage(), "Erreur", JOptionPane.ERROR_MESSAGE);
+                } finally {
+                    btnUpload.setEnabled(true);
+                    btnChooseFile.setEnabled(true);
+                    progressUpload.setValue(0);
+                }
+            }
+        };
+        w.execute();
+    }
+
     private void handleRefreshList() {
         if (!isConnected) return;
         btnRefresh.setEnabled(false);